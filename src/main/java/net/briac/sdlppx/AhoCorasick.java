@@ -0,0 +1,293 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton to find all the occurrences of many patterns (e.g.
+ * the terms of a termbase) in a single pass over the text. The matching
+ * ignores case and only reports whole words. The edges of a pattern written
+ * in a script without spaces (Chinese, Japanese, Thai...) need no word
+ * boundary, any neighbouring character is accepted there.
+ *
+ * Once built, the automaton is immutable and can be shared between threads.
+ *
+ * @author briac
+ *
+ * @param <T>
+ *            the value associated with a pattern
+ */
+public class AhoCorasick<T> {
+
+    /** Receives the matches found in a text. */
+    public interface Handler<T> {
+        /**
+         * @param values
+         *            the values of all the patterns equal to the match
+         * @param start
+         *            start of the match in the text
+         * @param end
+         *            end (exclusive) of the match in the text
+         */
+        void match(List<T> values, int start, int end);
+    }
+
+    public static class Builder<T> {
+        private final Map<String, List<T>> patterns = new LinkedHashMap<>();
+
+        /**
+         * Add a pattern, blank patterns are ignored.
+         */
+        public Builder<T> add(String pattern, T value) {
+            String key = normalize(pattern.trim());
+            if (!key.isEmpty()) {
+                patterns.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+            }
+            return this;
+        }
+
+        public int size() {
+            return patterns.size();
+        }
+
+        public AhoCorasick<T> build() {
+            return new AhoCorasick<>(patterns);
+        }
+    }
+
+    private static final int NONE = -1;
+
+    private final Transitions transitions = new Transitions();
+    private int nodeCount = 1;
+    // Per node
+    private int[] fail = new int[16];
+    private int[] output = new int[16];
+    private int[] outputLink = new int[16];
+    private int[] firstChild = new int[16];
+    private int[] nextSibling = new int[16];
+    private char[] nodeChar = new char[16];
+    // Per pattern
+    private final List<List<T>> values = new ArrayList<>();
+    private final int[] lengths;
+    // The first and last characters of the pattern need no word boundary
+    private final boolean[] unspacedStart;
+    private final boolean[] unspacedEnd;
+
+    private AhoCorasick(Map<String, List<T>> patterns) {
+        Arrays.fill(output, NONE);
+        Arrays.fill(firstChild, NONE);
+        lengths = new int[patterns.size()];
+        unspacedStart = new boolean[patterns.size()];
+        unspacedEnd = new boolean[patterns.size()];
+
+        for (Map.Entry<String, List<T>> pattern : patterns.entrySet()) {
+            String key = pattern.getKey();
+            int node = 0;
+            for (int i = 0; i < key.length(); i++) {
+                node = child(node, key.charAt(i));
+            }
+            output[node] = values.size();
+            lengths[values.size()] = key.length();
+            unspacedStart[values.size()] = Words.isUnspaced(key.codePointAt(0));
+            unspacedEnd[values.size()] = Words.isUnspaced(key.codePointBefore(key.length()));
+            values.add(Collections.unmodifiableList(pattern.getValue()));
+        }
+
+        buildFailureLinks();
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * @return the number of distinct patterns
+     */
+    public int size() {
+        return values.size();
+    }
+
+    private static String normalize(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private int child(int node, char c) {
+        int next = transitions.get(node, c);
+        if (next != NONE) {
+            return next;
+        }
+        next = nodeCount++;
+        if (next == fail.length) {
+            int size = next * 2;
+            fail = Arrays.copyOf(fail, size);
+            output = Arrays.copyOf(output, size);
+            outputLink = Arrays.copyOf(outputLink, size);
+            firstChild = Arrays.copyOf(firstChild, size);
+            nextSibling = Arrays.copyOf(nextSibling, size);
+            nodeChar = Arrays.copyOf(nodeChar, size);
+            Arrays.fill(output, next, size, NONE);
+            Arrays.fill(firstChild, next, size, NONE);
+        }
+        transitions.put(node, c, next);
+        nodeChar[next] = c;
+        nextSibling[next] = firstChild[node];
+        firstChild[node] = next;
+        return next;
+    }
+
+    /** Breadth first, the failure link of a node is always less deep. */
+    private void buildFailureLinks() {
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int child = firstChild[0]; child != NONE; child = nextSibling[child]) {
+            fail[child] = 0;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                char c = nodeChar[child];
+                int state = fail[node];
+                int next;
+                while ((next = transitions.get(state, c)) == NONE && state != 0) {
+                    state = fail[state];
+                }
+                fail[child] = next == NONE ? 0 : next;
+                int f = fail[child];
+                // Nearest node in the failure chain ending a pattern, the
+                // root (0) meaning none
+                outputLink[child] = output[f] != NONE ? f : outputLink[f];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * Report all the whole word occurrences of the patterns in the text.
+     */
+    public void scan(CharSequence text, Handler<T> handler) {
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while ((next = transitions.get(state, c)) == NONE && state != 0) {
+                state = fail[state];
+            }
+            state = next == NONE ? 0 : next;
+
+            int end = i + 1;
+            boolean endBoundary = end == length || isBoundary(Character.codePointAt(text, end));
+            for (int node = output[state] != NONE ? state : outputLink[state]; node != 0; node = outputLink[node]) {
+                int pattern = output[node];
+                if (!endBoundary && !unspacedEnd[pattern]) {
+                    continue;
+                }
+                int start = end - lengths[pattern];
+                if (start == 0 || unspacedStart[pattern] || isBoundary(Character.codePointBefore(text, start))) {
+                    handler.match(values.get(pattern), start, end);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a word can start or end next to the character
+     */
+    private static boolean isBoundary(int c) {
+        return !Character.isLetterOrDigit(c) || Words.isUnspaced(c);
+    }
+
+    /**
+     * Open addressing hash table of the (node, char) -> node transitions, much
+     * smaller than a map per node for large dictionaries.
+     */
+    private static class Transitions {
+        private long[] keys = new long[64];
+        private int[] targets = new int[64];
+        private int size = 0;
+
+        Transitions() {
+            Arrays.fill(keys, NONE);
+        }
+
+        private static long key(int node, char c) {
+            return ((long) node << 16) | c;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        int get(int node, char c) {
+            long key = key(node, c);
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask);; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return targets[i];
+                }
+                if (keys[i] == NONE) {
+                    return NONE;
+                }
+            }
+        }
+
+        void put(int node, char c, int target) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            insert(key(node, c), target);
+            size++;
+        }
+
+        private void insert(long key, int target) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            targets[i] = target;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldTargets = targets;
+            keys = new long[oldKeys.length * 2];
+            targets = new int[oldKeys.length * 2];
+            Arrays.fill(keys, NONE);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != NONE) {
+                    insert(oldKeys[i], oldTargets[i]);
+                }
+            }
+        }
+    }
+
+}
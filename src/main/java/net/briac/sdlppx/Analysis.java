@@ -0,0 +1,127 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Word counts of a SDLXLIFF by match band against the package TM.
+ *
+ * @author briac
+ *
+ */
+public class Analysis {
+
+    public enum Band {
+        EXACT("100%", 100), FUZZY_95("95% - 99%", 95), FUZZY_85("85% - 94%", 85), FUZZY_75("75% - 84%", 75),
+        FUZZY_50("50% - 74%", 50), NO_MATCH("No Match", 0);
+
+        private final String label;
+        private final int minScore;
+
+        private Band(String label, int minScore) {
+            this.label = label;
+            this.minScore = minScore;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public static Band of(int score) {
+            for (Band band : values()) {
+                if (score >= band.minScore) {
+                    return band;
+                }
+            }
+            return NO_MATCH;
+        }
+    }
+
+    private final String name;
+    private final long[] words = new long[Band.values().length];
+    private final long[] segments = new long[Band.values().length];
+
+    public Analysis(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Analyse the source segments of a SDLXLIFF.
+     *
+     * @param matcher
+     *            the TM of the file language pair, or null if there is none
+     */
+    public static Analysis analyze(Path sdlxliff, FuzzyMatcher matcher) throws IOException {
+        try (InputStream is = Files.newInputStream(sdlxliff)) {
+            return analyze(sdlxliff.toString(), is, matcher);
+        }
+    }
+
+    public static Analysis analyze(String name, InputStream is, FuzzyMatcher matcher) throws IOException {
+        Analysis analysis = new Analysis(name);
+        try {
+            SDLXLIFFReader.read(is, (transUnitId, mid, source, target) -> {
+                if (source != null) {
+                    analysis.add(matcher == null ? 0 : matcher.score(source), Words.count(source));
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read " + name, e);
+        }
+        return analysis;
+    }
+
+    public void add(int score, int wordCount) {
+        int band = Band.of(score).ordinal();
+        words[band] += wordCount;
+        segments[band]++;
+    }
+
+    public void add(Analysis other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] += other.words[i];
+            segments[i] += other.segments[i];
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getWords(Band band) {
+        return words[band.ordinal()];
+    }
+
+    public long getSegments(Band band) {
+        return segments[band.ordinal()];
+    }
+
+    public long getTotalWords() {
+        long total = 0;
+        for (long count : words) {
+            total += count;
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,250 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.briac.sdlppx.model.TranslationUnit;
+
+/**
+ * TMX writer committing its output every N TU, so an interrupted export can
+ * be resumed.
+ *
+ * The TU are written to a hidden partial file next to the TMX
+ * (<code>.file.tmx.part</code>), which replaces the TMX once the export is
+ * complete: the previous TMX is kept until then. At each commit the partial
+ * file is flushed and synced, then the id of the last TU written and its size
+ * are saved in a sidecar file (<code>file.tmx.checkpoint</code>). When the
+ * export is restarted, the partial file is truncated to the committed size and
+ * the TU are read again after the committed id, the TU being exported in id
+ * order. The sidecar is deleted once the TMX is complete.
+ *
+ * A gzipped TMX can be checkpointed too: each commit ends a gzip member, so
+ * the TMX truncated to the committed size is still a valid gzip file.
+ *
+ * @author briac
+ *
+ */
+public class CheckpointedTMXWriter implements TUWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointedTMXWriter.class.getName());
+
+    private static final String EXT_CHECKPOINT = ".checkpoint";
+    private static final String EXT_PARTIAL = ".part";
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_FILTER = "filter";
+    private static final String KEY_LAST_ID = "lastId";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_COUNT = "count";
+
+    private final File tmxFile;
+    private final Path partialFile;
+    private final File checkpointFile;
+    private final int interval;
+    private final String source;
+    private final String filter;
+    private final FileChannel channel;
+    private final TMXWriter tmx;
+
+    private final long resumedAfterId;
+    private long lastId;
+    private long committedId;
+    private long count;
+    private int uncommitted = 0;
+    private boolean complete = false;
+
+    /**
+     * Open the TMX, resuming the export from the checkpoint if there is one
+     * for the same source and filter.
+     *
+     * @param source
+     *            identifies the exported SDLTM and its content, and the
+     *            options changing the TU written
+     * @param filter
+     *            the filter of the export
+     * @param interval
+     *            number of TU between two commits
+     * @param compress
+     *            write a gzipped TMX
+     */
+    public CheckpointedTMXWriter(File tmxFile, String srcLang, String source, String filter, int interval,
+            boolean compress) throws IOException {
+        this.tmxFile = tmxFile;
+        this.partialFile = tmxFile.toPath().resolveSibling("." + tmxFile.getName() + EXT_PARTIAL);
+        this.checkpointFile = new File(tmxFile.getPath() + EXT_CHECKPOINT);
+        this.interval = Math.max(1, interval);
+        this.source = source;
+        this.filter = filter;
+
+        Properties checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            long offset = Long.parseLong(checkpoint.getProperty(KEY_OFFSET));
+            channel = FileChannel.open(partialFile, StandardOpenOption.WRITE);
+            channel.truncate(offset);
+            channel.position(offset);
+            resumedAfterId = Long.parseLong(checkpoint.getProperty(KEY_LAST_ID));
+            count = Long.parseLong(checkpoint.getProperty(KEY_COUNT));
+            LOGGER.log(Level.INFO, "Resuming the export of {0} after TU {1} ({2} TU already written)",
+                    new Object[] { tmxFile, resumedAfterId, count });
+            tmx = new TMXWriter(openStream(compress));
+        } else {
+            channel = FileChannel.open(partialFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            resumedAfterId = 0;
+            count = 0;
+            tmx = new TMXWriter(openStream(compress), srcLang);
+        }
+        lastId = resumedAfterId;
+        commit();
+    }
+
+    private OutputStream openStream(boolean compress) {
+        OutputStream os = Channels.newOutputStream(channel);
+        return compress ? new ParallelGzipOutputStream(os) : os;
+    }
+
+    /**
+     * @return the checkpoint of an interrupted export of the same TU to the
+     *         same TMX, or null to start from the beginning
+     */
+    private Properties readCheckpoint() throws IOException {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream is = Files.newInputStream(checkpointFile.toPath())) {
+            checkpoint.load(is);
+        }
+        try {
+            long offset = Long.parseLong(checkpoint.getProperty(KEY_OFFSET));
+            Long.parseLong(checkpoint.getProperty(KEY_LAST_ID));
+            Long.parseLong(checkpoint.getProperty(KEY_COUNT));
+            if (!source.equals(checkpoint.getProperty(KEY_SOURCE))
+                    || !filter.equals(checkpoint.getProperty(KEY_FILTER))) {
+                LOGGER.log(Level.WARNING, "The checkpoint {0} is for another export, starting from the beginning",
+                        checkpointFile);
+                return null;
+            }
+            if (!Files.isRegularFile(partialFile) || Files.size(partialFile) < offset) {
+                LOGGER.log(Level.WARNING, "{0} is shorter than its checkpoint, starting from the beginning",
+                        partialFile);
+                return null;
+            }
+            return checkpoint;
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid checkpoint {0}, starting from the beginning", checkpointFile);
+            return null;
+        }
+    }
+
+    /**
+     * @return the id after which the TU must be exported, 0 for all
+     */
+    public long getResumedAfterId() {
+        return resumedAfterId;
+    }
+
+    /**
+     * @return the number of TU in the TMX, including the ones of the resumed
+     *         export
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void writeTU(TranslationUnit tu) throws IOException {
+        tmx.writeTU(tu);
+        lastId = tu.getId();
+        count++;
+        if (++uncommitted >= interval) {
+            commit();
+        }
+    }
+
+    /**
+     * Make the TU written so far durable, then save the checkpoint. The
+     * checkpoint is replaced atomically, it never points past the synced data.
+     */
+    private void commit() throws IOException {
+        tmx.flush();
+        channel.force(false);
+
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(KEY_SOURCE, source);
+        checkpoint.setProperty(KEY_FILTER, filter);
+        checkpoint.setProperty(KEY_LAST_ID, String.valueOf(lastId));
+        checkpoint.setProperty(KEY_OFFSET, String.valueOf(channel.position()));
+        checkpoint.setProperty(KEY_COUNT, String.valueOf(count));
+        Path tmpFile = new File(checkpointFile.getPath() + ".tmp").toPath();
+        try (OutputStream os = Files.newOutputStream(tmpFile)) {
+            checkpoint.store(os, "Export of " + tmxFile.getName());
+        }
+        try {
+            Files.move(tmpFile, checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile, checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        committedId = lastId;
+        uncommitted = 0;
+    }
+
+    /**
+     * Mark the export as finished: on {@link #close()} the partial file
+     * replaces the TMX and the checkpoint is deleted. Otherwise the partial
+     * file and its checkpoint are left as they were at the last commit, and
+     * the TMX is unchanged.
+     */
+    public void complete() {
+        complete = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!complete) {
+            // The TU after the last commit are dropped on resume anyway
+            channel.close();
+            LOGGER.log(Level.WARNING, "Export of {0} interrupted, it will resume after TU {1}",
+                    new Object[] { tmxFile, committedId });
+            return;
+        }
+        tmx.close();
+        Path target = tmxFile.toPath();
+        if (Files.isRegularFile(target) && FileUtils.sameContent(partialFile, target)) {
+            LOGGER.log(Level.INFO, "{0} is unchanged", tmxFile);
+            Files.delete(partialFile);
+        } else {
+            FileUtils.replace(partialFile, target);
+        }
+        Files.deleteIfExists(checkpointFile.toPath());
+    }
+
+}
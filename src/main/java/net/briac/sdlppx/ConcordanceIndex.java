@@ -0,0 +1,751 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.briac.sdlppx.model.TranslationUnit;
+
+/**
+ * Trigram index of the source and target text of an exported TM, to search it
+ * without scanning the whole TMX.
+ *
+ * The index is a directory with:
+ * <ul>
+ * <li><code>docs.dat</code>: the source and target text of each TU (int
+ * length + UTF-8 bytes)</li>
+ * <li><code>docs.idx</code>: the offset of each TU in docs.dat (long)</li>
+ * <li><code>grams.idx</code>: the sorted trigrams with the offset and size of
+ * their postings (3 longs)</li>
+ * <li><code>postings.dat</code>: the TU numbers of each trigram, in ascending
+ * order (int)</li>
+ * </ul>
+ * The trigrams are taken from the lower-cased text, a trigram is packed in a
+ * long (3 x 16 bits chars).
+ *
+ * @author briac
+ *
+ */
+public class ConcordanceIndex implements Closeable {
+
+    static final String DOCS = "docs.dat";
+    static final String DOCS_INDEX = "docs.idx";
+    static final String GRAMS = "grams.idx";
+    static final String POSTINGS = "postings.dat";
+
+    private static final Logger LOGGER = Logger.getLogger(ConcordanceIndex.class.getName());
+
+    private static final int GRAM_ENTRY_SIZE = 3 * Long.BYTES;
+    // A trigram (long) and a TU number (int)
+    private static final int POSTING_BYTES = Long.BYTES + Integer.BYTES;
+    // Buffered postings of a builder before they are spilled, 64 MiB
+    private static final long MEMORY_BUDGET = 64L << 20;
+    private static final int MIN_POSTINGS = 1024;
+    private static final int MAX_POSTINGS = Integer.MAX_VALUE - 8;
+    // Runs read at once by a merge pass
+    private static final int MERGE_FACTOR = 64;
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+    private static final int POSTING_BLOCK_SIZE = 4096;
+
+    /** A TU found in the index. */
+    public static class Match {
+        private final int id;
+        private final String source;
+        private final String target;
+
+        Match(int id, String source, String target) {
+            this.id = id;
+            this.source = source;
+            this.target = target;
+        }
+
+        /** @return the position of the TU in the exported TM */
+        public int getId() {
+            return id;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return source + "\t" + target;
+        }
+    }
+
+    /**
+     * @return the index directory of an exported TMX file
+     */
+    public static File indexDir(File tmxFile) {
+        String name = tmxFile.getName();
+        if (name.endsWith(ParallelGzipOutputStream.EXT_GZIP)) {
+            name = name.substring(0, name.length() - ParallelGzipOutputStream.EXT_GZIP.length());
+        }
+        int dot = name.lastIndexOf('.');
+        return new File(tmxFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".index");
+    }
+
+    static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    static long gram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    /**
+     * Build the index while the TU are exported. The (trigram, TU) postings are
+     * buffered up to the memory budget, then sorted and spilled to a run file
+     * in the index directory. The runs are merged in the grams and postings
+     * files on close.
+     *
+     * Not thread safe.
+     */
+    public static class Builder implements TUWriter {
+        private final Path dir;
+        private final ReplacingFileOutputStream.Batch batch;
+        private final DataOutputStream docs;
+        private final DataOutputStream docsIndex;
+        private final int maxPostings;
+        private long[] bufferGrams = new long[MIN_POSTINGS];
+        private int[] bufferIds = new int[MIN_POSTINGS];
+        private int buffered = 0;
+        private final List<Path> runs = new ArrayList<>();
+        private long docsOffset = 0;
+        private int count = 0;
+
+        /**
+         * @param batch
+         *            the index files replace the previous ones when it is
+         *            committed, with the TMX
+         */
+        public Builder(File dir, ReplacingFileOutputStream.Batch batch) throws IOException {
+            this(dir, batch, MEMORY_BUDGET);
+        }
+
+        /**
+         * @param memoryBudget
+         *            maximum size in bytes of the buffered postings
+         */
+        Builder(File dir, ReplacingFileOutputStream.Batch batch, long memoryBudget) throws IOException {
+            this.dir = dir.toPath();
+            this.batch = batch;
+            maxPostings = (int) Math.max(MIN_POSTINGS, Math.min(memoryBudget / POSTING_BYTES, MAX_POSTINGS));
+            Files.createDirectories(this.dir);
+            docs = open(DOCS);
+            try {
+                docsIndex = open(DOCS_INDEX);
+            } catch (IOException e) {
+                docs.close();
+                throw e;
+            }
+        }
+
+        private DataOutputStream open(String name) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(
+                    new ReplacingFileOutputStream(dir.resolve(name).toFile(), batch), FileUtils.BUFFER_SIZE));
+        }
+
+        @Override
+        public void writeTU(TranslationUnit tu) throws IOException {
+            String source = tu.getSource().getText();
+            String target = tu.getTarget().getText();
+            docsIndex.writeLong(docsOffset);
+            docsOffset += writeText(source) + writeText(target);
+            addGrams(normalize(source));
+            addGrams(normalize(target));
+            count++;
+        }
+
+        private int writeText(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            docs.writeInt(bytes.length);
+            docs.write(bytes);
+            return Integer.BYTES + bytes.length;
+        }
+
+        private void addGrams(String text) throws IOException {
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                if (buffered == bufferGrams.length) {
+                    if (buffered < maxPostings) {
+                        int capacity = (int) Math.min((long) buffered * 2, maxPostings);
+                        bufferGrams = Arrays.copyOf(bufferGrams, capacity);
+                        bufferIds = Arrays.copyOf(bufferIds, capacity);
+                    } else {
+                        spill();
+                    }
+                }
+                bufferGrams[buffered] = gram(text, i);
+                bufferIds[buffered] = count;
+                buffered++;
+            }
+        }
+
+        /**
+         * Sort the buffered postings and write them to a new run. The
+         * duplicates of a TU are dropped when the runs are merged.
+         */
+        private void spill() throws IOException {
+            sort(bufferGrams, bufferIds, 0, buffered - 1);
+            Path run = createRun();
+            writeRun(new BufferPostings(bufferGrams, bufferIds, buffered), run);
+            LOGGER.log(Level.FINE, "Spilled {0} postings to {1}", new Object[] { buffered, run });
+            buffered = 0;
+        }
+
+        private Path createRun() throws IOException {
+            Path run = Files.createTempFile(dir, "postings_", ".run");
+            runs.add(run);
+            return run;
+        }
+
+        /**
+         * @return the number of spilled runs, for the tests
+         */
+        int getRunCount() {
+            return runs.size();
+        }
+
+        /**
+         * @return the number of TU indexed so far
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                try {
+                    docs.close();
+                } finally {
+                    docsIndex.close();
+                }
+
+                if (runs.isEmpty()) {
+                    sort(bufferGrams, bufferIds, 0, buffered - 1);
+                    writeIndex(new BufferPostings(bufferGrams, bufferIds, buffered));
+                    return;
+                }
+                if (buffered > 0) {
+                    spill();
+                }
+                bufferGrams = null;
+                bufferIds = null;
+
+                // Merge passes until the remaining runs can be read at once
+                List<Path> pending = new ArrayList<>(runs);
+                while (pending.size() > MERGE_FACTOR) {
+                    List<Path> merged = new ArrayList<>();
+                    for (int i = 0; i < pending.size(); i += MERGE_FACTOR) {
+                        List<Path> group = pending.subList(i, Math.min(i + MERGE_FACTOR, pending.size()));
+                        Path run = createRun();
+                        try (MergedPostings postings = new MergedPostings(group)) {
+                            writeRun(postings, run);
+                        }
+                        for (Path done : group) {
+                            Files.delete(done);
+                        }
+                        merged.add(run);
+                    }
+                    pending = merged;
+                }
+                try (MergedPostings postings = new MergedPostings(pending)) {
+                    writeIndex(postings);
+                }
+            } finally {
+                bufferGrams = null;
+                bufferIds = null;
+                for (Path run : runs) {
+                    Files.deleteIfExists(run);
+                }
+                runs.clear();
+            }
+        }
+
+        private static void writeRun(Postings postings, Path run) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run), FileUtils.BUFFER_SIZE))) {
+                while (postings.next()) {
+                    out.writeLong(postings.gram());
+                    out.writeInt(postings.id());
+                }
+            }
+        }
+
+        private void writeIndex(Postings postings) throws IOException {
+            try (DataOutputStream gramsOut = open(GRAMS); DataOutputStream postingsOut = open(POSTINGS)) {
+                long offset = 0;
+                long size = 0;
+                long gram = 0;
+                while (postings.next()) {
+                    if (size > 0 && postings.gram() != gram) {
+                        writeGram(gramsOut, gram, offset, size);
+                        offset += size;
+                        size = 0;
+                    }
+                    gram = postings.gram();
+                    postingsOut.writeInt(postings.id());
+                    size++;
+                }
+                if (size > 0) {
+                    writeGram(gramsOut, gram, offset, size);
+                }
+            }
+        }
+
+        private static void writeGram(DataOutputStream out, long gram, long offset, long size) throws IOException {
+            out.writeLong(gram);
+            out.writeLong(offset);
+            out.writeLong(size);
+        }
+    }
+
+    /**
+     * Postings in (trigram, TU) order, without duplicates.
+     */
+    private abstract static class Postings {
+        private long gram;
+        private int id;
+        private boolean started = false;
+
+        /**
+         * @return false once there are no more postings
+         */
+        boolean next() throws IOException {
+            while (read()) {
+                long nextGram = readGram();
+                int nextId = readId();
+                if (!started || nextGram != gram || nextId != id) {
+                    started = true;
+                    gram = nextGram;
+                    id = nextId;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long gram() {
+            return gram;
+        }
+
+        int id() {
+            return id;
+        }
+
+        /** Move to the next posting of the source, false at the end. */
+        abstract boolean read() throws IOException;
+
+        abstract long readGram();
+
+        abstract int readId();
+    }
+
+    /** The sorted buffer of a builder. */
+    private static class BufferPostings extends Postings {
+        private final long[] grams;
+        private final int[] ids;
+        private final int size;
+        private int pos = -1;
+
+        BufferPostings(long[] grams, int[] ids, int size) {
+            this.grams = grams;
+            this.ids = ids;
+            this.size = size;
+        }
+
+        @Override
+        boolean read() {
+            return ++pos < size;
+        }
+
+        @Override
+        long readGram() {
+            return grams[pos];
+        }
+
+        @Override
+        int readId() {
+            return ids[pos];
+        }
+    }
+
+    /** A spilled run, read sequentially. */
+    private static class RunPostings extends Postings implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        private long runGram;
+        private int runId;
+
+        RunPostings(Path run) throws IOException {
+            remaining = Files.size(run) / POSTING_BYTES;
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean read() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            runGram = in.readLong();
+            runId = in.readInt();
+            remaining--;
+            return true;
+        }
+
+        @Override
+        long readGram() {
+            return runGram;
+        }
+
+        @Override
+        int readId() {
+            return runId;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** K-way merge of runs. */
+    private static class MergedPostings extends Postings implements Closeable {
+        private final List<RunPostings> runs = new ArrayList<>();
+        private final PriorityQueue<RunPostings> heads = new PriorityQueue<>((a, b) -> {
+            int c = Long.compare(a.readGram(), b.readGram());
+            return c != 0 ? c : Integer.compare(a.readId(), b.readId());
+        });
+        private RunPostings current;
+
+        MergedPostings(List<Path> files) throws IOException {
+            try {
+                for (Path file : files) {
+                    RunPostings run = new RunPostings(file);
+                    runs.add(run);
+                    if (run.read()) {
+                        heads.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        boolean read() throws IOException {
+            if (current != null && current.read()) {
+                heads.add(current);
+            }
+            current = heads.poll();
+            return current != null;
+        }
+
+        @Override
+        long readGram() {
+            return current.readGram();
+        }
+
+        @Override
+        int readId() {
+            return current.readId();
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (RunPostings run : runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * In place quicksort of the postings between the indexes lo and hi, by
+     * trigram then TU.
+     */
+    private static void sort(long[] grams, int[] ids, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long pGram = grams[mid];
+            int pId = ids[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(grams[i], ids[i], pGram, pId) < 0) {
+                    i++;
+                }
+                while (compare(grams[j], ids[j], pGram, pId) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    long g = grams[i];
+                    grams[i] = grams[j];
+                    grams[j] = g;
+                    int id = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = id;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse on the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(grams, ids, lo, j);
+                lo = i;
+            } else {
+                sort(grams, ids, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static int compare(long gram1, int id1, long gram2, int id2) {
+        int c = Long.compare(gram1, gram2);
+        return c != 0 ? c : Integer.compare(id1, id2);
+    }
+
+    private final FileChannel docs;
+    private final FileChannel docsIndex;
+    private final FileChannel grams;
+    private final FileChannel postings;
+    private final int size;
+    private final int gramCount;
+
+    private ConcordanceIndex(Path dir) throws IOException {
+        List<FileChannel> opened = new ArrayList<>();
+        try {
+            docsIndex = open(dir.resolve(DOCS_INDEX), opened);
+            grams = open(dir.resolve(GRAMS), opened);
+            postings = open(dir.resolve(POSTINGS), opened);
+            docs = open(dir.resolve(DOCS), opened);
+            size = (int) (docsIndex.size() / Long.BYTES);
+            gramCount = (int) (grams.size() / GRAM_ENTRY_SIZE);
+        } catch (IOException e) {
+            for (FileChannel channel : opened) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private static FileChannel open(Path file, List<FileChannel> opened) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        opened.add(channel);
+        return channel;
+    }
+
+    public static ConcordanceIndex open(File dir) throws IOException {
+        return new ConcordanceIndex(dir.toPath());
+    }
+
+    /**
+     * @return the number of TU in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the TU whose source or target contains the query, ignoring case.
+     *
+     * @param limit
+     *            the maximum number of matches returned
+     */
+    public List<Match> search(String query, int limit) throws IOException {
+        String needle = normalize(query);
+        List<Match> matches = new ArrayList<>();
+        if (needle.isEmpty() || limit <= 0) {
+            return matches;
+        }
+
+        int[] candidates = needle.length() < 3 ? null : candidates(needle);
+        int candidateCount = candidates == null ? size() : candidates.length;
+        for (int i = 0; i < candidateCount && matches.size() < limit; i++) {
+            int id = candidates == null ? i : candidates[i];
+            Match match = readDoc(id);
+            if (normalize(match.source).contains(needle) || normalize(match.target).contains(needle)) {
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the TU having all the trigrams of the query, in ascending order
+     */
+    private int[] candidates(String needle) throws IOException {
+        long[][] entries = new long[needle.length() - 2][];
+        ByteBuffer entry = ByteBuffer.allocate(GRAM_ENTRY_SIZE);
+        for (int i = 0; i + 3 <= needle.length(); i++) {
+            int pos = findGram(gram(needle, i));
+            if (pos < 0) {
+                return new int[0];
+            }
+            entry.clear();
+            readFully(grams, entry, (long) pos * GRAM_ENTRY_SIZE);
+            entries[i] = new long[] { entry.getLong(Long.BYTES), entry.getLong(2 * Long.BYTES) };
+        }
+        // Start from the rarest trigram, the intersection can only shrink
+        Arrays.sort(entries, (a, b) -> Long.compare(a[1], b[1]));
+
+        int[] result = new int[(int) entries[0][1]];
+        PostingReader first = new PostingReader(entries[0][0] + entries[0][1]);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = first.get(entries[0][0] + i);
+        }
+        int size = result.length;
+        for (int e = 1; e < entries.length && size > 0; e++) {
+            long offset = entries[e][0];
+            long end = offset + entries[e][1];
+            PostingReader reader = new PostingReader(end);
+            int kept = 0;
+            for (int i = 0; i < size && offset < end; i++) {
+                int id = result[i];
+                while (offset < end && reader.get(offset) < id) {
+                    offset++;
+                }
+                if (offset < end && reader.get(offset) == id) {
+                    result[kept++] = id;
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private int findGram(long gram) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+        int low = 0;
+        int high = gramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            value.clear();
+            readFully(grams, value, (long) mid * GRAM_ENTRY_SIZE);
+            long midGram = value.getLong(0);
+            if (midGram < gram) {
+                low = mid + 1;
+            } else if (midGram > gram) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the postings of a trigram, a block at a time.
+     */
+    private class PostingReader {
+        private final ByteBuffer block = ByteBuffer.allocate(POSTING_BLOCK_SIZE);
+        private final long end;
+        private long start = 0;
+        private int count = 0;
+
+        PostingReader(long end) {
+            this.end = end;
+        }
+
+        int get(long index) throws IOException {
+            if (index < start || index >= start + count) {
+                start = index;
+                count = (int) Math.min(POSTING_BLOCK_SIZE / Integer.BYTES, end - index);
+                block.clear();
+                block.limit(count * Integer.BYTES);
+                readFully(postings, block, index * Integer.BYTES);
+            }
+            return block.getInt((int) (index - start) * Integer.BYTES);
+        }
+    }
+
+    private Match readDoc(int id) throws IOException {
+        ByteBuffer offsetBuffer = ByteBuffer.allocate(Long.BYTES);
+        readFully(docsIndex, offsetBuffer, (long) id * Long.BYTES);
+        long offset = offsetBuffer.getLong(0);
+        byte[] source = readText(offset);
+        byte[] target = readText(offset + Integer.BYTES + source.length);
+        return new Match(id, new String(source, StandardCharsets.UTF_8), new String(target, StandardCharsets.UTF_8));
+    }
+
+    private byte[] readText(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(docs, length, offset);
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(docs, bytes, offset + Integer.BYTES);
+        return bytes.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long start = offset - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Truncated concordance index");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (FileChannel channel : new FileChannel[] { docs, docsIndex, grams, postings }) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+}
@@ -0,0 +1,484 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+/**
+ * Set of the 128 bits hashes of the TU already exported, used to drop the
+ * duplicates when merging several TM.
+ *
+ * The hashes are kept in an open addressing table, which starts small and
+ * doubles up to the memory budget. When it is full at the budget, the table is
+ * sorted and spilled to a temporary file. One hash out of {@link #BLOCK_SIZE}
+ * of each spilled run stays in memory, so a lookup reads a single block of the
+ * run, with a positional read.
+ *
+ * Not thread safe.
+ *
+ * @author briac
+ *
+ */
+public class DuplicateFilter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(DuplicateFilter.class.getName());
+
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+    // Merge the spilled runs when there are too many of them to search
+    private static final int MAX_RUNS = 8;
+    // Largest table, 2^27 longs
+    private static final long MAX_TABLE_BYTES = 1L << 30;
+    private static final int MIN_SLOTS = 1024;
+    // Hashes per block of a spilled run, 2 KiB
+    static final int BLOCK_SIZE = 128;
+    private static final int HASH_BYTES = 16;
+
+    private final Path spillDir;
+    private final int maxSlots;
+    private long[] table;
+    private int mask;
+    private int maxEntries;
+    private int entries = 0;
+
+    private final List<Run> runs = new ArrayList<>();
+    private long duplicates = 0;
+
+    /**
+     * @param memoryBudget
+     *            maximum size in bytes of the in-memory table
+     * @param spillDir
+     *            directory for the spilled hashes, or null for the system
+     *            temporary directory
+     */
+    public DuplicateFilter(long memoryBudget, Path spillDir) {
+        this(memoryBudget, spillDir, 0);
+    }
+
+    /**
+     * @param expectedEntries
+     *            number of hashes that will be added, if known, to allocate
+     *            the table once. The table still grows up to the budget if
+     *            there are more.
+     */
+    public DuplicateFilter(long memoryBudget, Path spillDir, long expectedEntries) {
+        this.spillDir = spillDir;
+        // Two longs per slot, the number of slots must be a power of two
+        maxSlots = (int) Long.highestOneBit(Math.max(MIN_SLOTS, Math.min(memoryBudget, MAX_TABLE_BYTES) / 16));
+        int slots = MIN_SLOTS;
+        while (slots < maxSlots && slots / 4 * 3 <= expectedEntries) {
+            slots *= 2;
+        }
+        allocate(slots);
+    }
+
+    private void allocate(int slots) {
+        table = new long[slots * 2];
+        mask = slots - 1;
+        maxEntries = slots / 4 * 3;
+    }
+
+    /**
+     * @return true if the TU was not already seen
+     */
+    public boolean add(TranslationUnit tu) throws IOException {
+        long[] hash = MurmurHash3.hash128(key(tu));
+        boolean isNew = add(hash[0], hash[1]);
+        if (!isNew) {
+            duplicates++;
+        }
+        return isNew;
+    }
+
+    static String key(TranslationUnit tu) {
+        return key(tu.getSource()) + '\u0001' + key(tu.getTarget());
+    }
+
+    private static String key(Tuv tuv) {
+        return tuv.getLang().toLowerCase() + '\u0001' + normalize(tuv.getSeg());
+    }
+
+    /**
+     * Normalize a segment so that differences in Unicode composition or
+     * whitespaces are not significant.
+     */
+    static String normalize(String s) {
+        return WHITESPACES.matcher(Normalizer.normalize(s, Normalizer.Form.NFC)).replaceAll(" ").trim();
+    }
+
+    boolean add(long h1, long h2) throws IOException {
+        // 0 marks the empty slots
+        if (h1 == 0 && h2 == 0) {
+            h2 = 1;
+        }
+        for (Run run : runs) {
+            if (run.contains(h1, h2)) {
+                return false;
+            }
+        }
+        if (!insert(h1, h2)) {
+            return false;
+        }
+        entries++;
+
+        if (entries >= maxEntries) {
+            if (mask + 1 < maxSlots) {
+                grow();
+            } else {
+                spill();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the hash is already in the table
+     */
+    private boolean insert(long h1, long h2) {
+        int slot = (int) (h1 ^ (h1 >>> 32)) & mask;
+        while (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+            if (table[slot * 2] == h1 && table[slot * 2 + 1] == h2) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot * 2] = h1;
+        table[slot * 2 + 1] = h2;
+        return true;
+    }
+
+    private void grow() {
+        long[] old = table;
+        allocate((mask + 1) * 2);
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0 || old[i + 1] != 0) {
+                insert(old[i], old[i + 1]);
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        // Compact the table, then sort it
+        int n = 0;
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != 0 || table[i + 1] != 0) {
+                table[n * 2] = table[i];
+                table[n * 2 + 1] = table[i + 1];
+                n++;
+            }
+        }
+        sort(table, 0, n - 1);
+
+        Run run;
+        try (RunWriter out = new RunWriter(createRunFile())) {
+            for (int i = 0; i < n; i++) {
+                out.write(table[i * 2], table[i * 2 + 1]);
+            }
+            run = out.toRun();
+        }
+        runs.add(run);
+        LOGGER.log(Level.FINE, "Spilled {0} hashes to {1}", new Object[] { n, run.file });
+
+        Arrays.fill(table, 0);
+        entries = 0;
+
+        if (runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+
+    /**
+     * @return the number of spilled runs, for the tests
+     */
+    int getRunCount() {
+        return runs.size();
+    }
+
+    private Path createRunFile() throws IOException {
+        return spillDir == null ? Files.createTempFile("sdlppx_dup_", ".bin")
+                : Files.createTempFile(spillDir, "sdlppx_dup_", ".bin");
+    }
+
+    /**
+     * K-way merge of all the runs in a single one.
+     */
+    private void mergeRuns() throws IOException {
+        int k = runs.size();
+        DataInputStream[] ins = new DataInputStream[k];
+        long[] remaining = new long[k];
+        long[] heads = new long[k * 2];
+        Run merged;
+        try (RunWriter out = new RunWriter(createRunFile())) {
+            try {
+                for (int r = 0; r < k; r++) {
+                    ins[r] = new DataInputStream(
+                            new BufferedInputStream(Files.newInputStream(runs.get(r).file), 64 * 1024));
+                    remaining[r] = runs.get(r).size;
+                    next(ins[r], remaining, heads, r);
+                }
+                while (true) {
+                    int min = -1;
+                    for (int r = 0; r < k; r++) {
+                        if (remaining[r] >= 0 && (min < 0
+                                || compare(heads[r * 2], heads[r * 2 + 1], heads[min * 2], heads[min * 2 + 1]) < 0)) {
+                            min = r;
+                        }
+                    }
+                    if (min < 0) {
+                        break;
+                    }
+                    out.write(heads[min * 2], heads[min * 2 + 1]);
+                    next(ins[min], remaining, heads, min);
+                }
+            } finally {
+                for (DataInputStream in : ins) {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            }
+            merged = out.toRun();
+        }
+        for (Run run : runs) {
+            run.close();
+        }
+        runs.clear();
+        runs.add(merged);
+        LOGGER.log(Level.FINE, "Merged {0} runs, {1} hashes", new Object[] { k, merged.size });
+    }
+
+    /**
+     * Read the next hash of a run in heads, remaining is -1 once the run is
+     * exhausted.
+     */
+    private static void next(DataInputStream in, long[] remaining, long[] heads, int r) throws IOException {
+        if (remaining[r] == 0) {
+            remaining[r] = -1;
+            return;
+        }
+        heads[r * 2] = in.readLong();
+        heads[r * 2 + 1] = in.readLong();
+        remaining[r]--;
+    }
+
+    private static int compare(long a1, long a2, long b1, long b2) {
+        int c = Long.compare(a1, b1);
+        return c != 0 ? c : Long.compare(a2, b2);
+    }
+
+    /**
+     * In place quicksort of the pairs of longs between the pair indexes lo and
+     * hi.
+     */
+    private static void sort(long[] a, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p1 = a[mid * 2];
+            long p2 = a[mid * 2 + 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(a[i * 2], a[i * 2 + 1], p1, p2) < 0) {
+                    i++;
+                }
+                while (compare(a[j * 2], a[j * 2 + 1], p1, p2) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    long t1 = a[i * 2];
+                    long t2 = a[i * 2 + 1];
+                    a[i * 2] = a[j * 2];
+                    a[i * 2 + 1] = a[j * 2 + 1];
+                    a[j * 2] = t1;
+                    a[j * 2 + 1] = t2;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse on the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(a, lo, j);
+                lo = i;
+            } else {
+                sort(a, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    /**
+     * @return the number of duplicate TU dropped
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Close and delete the spilled runs.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Run run : runs) {
+            run.close();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Write the sorted hashes of a run, keeping the first hash of each block.
+     */
+    private static class RunWriter implements Closeable {
+        private final Path file;
+        private final DataOutputStream out;
+        private long size = 0;
+        private long[] index = new long[64];
+        private boolean done = false;
+
+        RunWriter(Path file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        }
+
+        void write(long h1, long h2) throws IOException {
+            if (size % BLOCK_SIZE == 0) {
+                int block = (int) (size / BLOCK_SIZE);
+                if (block * 2 == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[block * 2] = h1;
+                index[block * 2 + 1] = h2;
+            }
+            out.writeLong(h1);
+            out.writeLong(h2);
+            size++;
+        }
+
+        /**
+         * @return the written run, opened for the lookups
+         */
+        Run toRun() throws IOException {
+            out.close();
+            int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            Run run = new Run(file, size, Arrays.copyOf(index, blocks * 2));
+            done = true;
+            return run;
+        }
+
+        /**
+         * Delete the file if the run was not completed.
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (!done) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /** Sorted hashes spilled to disk, with the first hash of each block. */
+    private static class Run implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final long size;
+        private final long[] index;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * HASH_BYTES);
+
+        Run(Path file, long size, long[] index) throws IOException {
+            this.file = file;
+            this.size = size;
+            this.index = index;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        boolean contains(long h1, long h2) throws IOException {
+            // Last block starting at or before the hash
+            int lo = 0;
+            int hi = index.length / 2 - 1;
+            int b = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(index[mid * 2], index[mid * 2 + 1], h1, h2);
+                if (c == 0) {
+                    return true;
+                } else if (c < 0) {
+                    b = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (b < 0) {
+                return false;
+            }
+
+            long start = (long) b * BLOCK_SIZE;
+            int count = (int) Math.min(BLOCK_SIZE, size - start);
+            block.clear();
+            block.limit(count * HASH_BYTES);
+            while (block.hasRemaining()) {
+                if (channel.read(block, start * HASH_BYTES + block.position()) < 0) {
+                    throw new EOFException("Truncated run " + file);
+                }
+            }
+            lo = 1;
+            hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(block.getLong(mid * HASH_BYTES), block.getLong(mid * HASH_BYTES + 8), h1, h2);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete " + file, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * File helpers for the extraction and the packaging.
+ *
+ * @author briac
+ *
+ */
+public final class FileUtils {
+
+    // Large buffers, the entries are often several MB
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private FileUtils() {
+    }
+
+    /**
+     * The file is read through a heap buffer: a mapping would keep it locked
+     * on Windows until garbage collected, and the file is often replaced
+     * right after.
+     *
+     * @return the CRC32 of the file content, as stored in a zip entry
+     */
+    public static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return true if both files have the same size and content
+     */
+    public static boolean sameContent(Path file, Path other) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer otherBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel otherChannel = FileChannel.open(other, StandardOpenOption.READ)) {
+            if (channel.size() != otherChannel.size()) {
+                return false;
+            }
+            while (true) {
+                int read = fill(channel, buffer);
+                if (read != fill(otherChannel, otherBuffer)) {
+                    return false;
+                }
+                if (read == 0) {
+                    return true;
+                }
+                buffer.flip();
+                otherBuffer.flip();
+                if (!buffer.equals(otherBuffer)) {
+                    return false;
+                }
+                buffer.clear();
+                otherBuffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the end of the channel.
+     *
+     * @return the number of bytes read
+     */
+    private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read until full
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Write the stream to the file through a FileChannel with a large buffer.
+     *
+     * @return the number of bytes written
+     */
+    public static long copy(InputStream in, Path target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        try (ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (source.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                written += channel.write(buffer);
+                buffer.compact();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return the hidden temporary file in which the file is written before
+     *         replacing it
+     */
+    static Path tmpSibling(Path file) {
+        return file.resolveSibling("." + file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Move the file over the target, atomically if the file system can.
+     */
+    public static void replace(Path file, Path target) throws IOException {
+        try {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
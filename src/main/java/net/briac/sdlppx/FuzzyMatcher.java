@@ -0,0 +1,269 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fuzzy matching of segments against the source segments of translation
+ * memories, as used for a Trados-like analysis.
+ *
+ * The score is the word-level edit distance relative to the longest segment.
+ * A 100% match is only given to an identical segment, a segment differing only
+ * by case or punctuation is a 99% match.
+ *
+ * The TM segments are indexed by word (each word keeps the list of segments
+ * using it). The candidates of a segment are the TM segments sharing one of its
+ * rarest words (prefix filtering), they are only compared when they can share
+ * enough words to reach the minimum score, or the best score found so far, and
+ * the edit distance is bounded by the same score.
+ *
+ * Once built, a matcher is immutable and can be used by several threads.
+ *
+ * @author briac
+ *
+ */
+public class FuzzyMatcher {
+
+    public static final int MIN_SCORE = 50;
+
+    /** Collects the TM source segments. */
+    public static class Builder {
+        private final Set<String> exact = new HashSet<>();
+        private final Map<String, Integer> wordIds = new HashMap<>();
+        private final List<int[]> segments = new ArrayList<>();
+        private final List<IntList> postings = new ArrayList<>();
+
+        public Builder add(String source) {
+            String text = source.trim();
+            if (!exact.add(text)) {
+                return this;
+            }
+            List<String> words = Words.split(text);
+            if (words.isEmpty()) {
+                return this;
+            }
+            int id = segments.size();
+            int[] tokens = new int[words.size()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = wordIds.computeIfAbsent(words.get(i), w -> {
+                    postings.add(new IntList());
+                    return wordIds.size();
+                });
+                postings.get(tokens[i]).addOnce(id);
+            }
+            segments.add(tokens);
+            return this;
+        }
+
+        public int size() {
+            return segments.size();
+        }
+
+        public FuzzyMatcher build() {
+            int[][] wordPostings = new int[postings.size()][];
+            for (int i = 0; i < wordPostings.length; i++) {
+                wordPostings[i] = postings.get(i).toArray();
+            }
+            postings.clear();
+            return new FuzzyMatcher(exact, wordIds, segments.toArray(new int[segments.size()][]), wordPostings);
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[2];
+        private int size = 0;
+
+        void addOnce(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /** Per thread work area, sized on the number of TM segments. */
+    private static class Scratch {
+        final int[] shared;
+        final int[] touched;
+
+        Scratch(int size) {
+            shared = new int[size];
+            touched = new int[size];
+        }
+    }
+
+    private final Set<String> exact;
+    private final Map<String, Integer> wordIds;
+    private final int[][] segments;
+    private final int[][] postings;
+    private final ThreadLocal<Scratch> scratch;
+
+    private FuzzyMatcher(Set<String> exact, Map<String, Integer> wordIds, int[][] segments, int[][] postings) {
+        this.exact = exact;
+        this.wordIds = wordIds;
+        this.segments = segments;
+        this.postings = postings;
+        scratch = ThreadLocal.withInitial(() -> new Scratch(segments.length));
+    }
+
+    /**
+     * @return the number of TM segments
+     */
+    public int size() {
+        return segments.length;
+    }
+
+    /**
+     * @return the best match score (0 to 100) of the segment, 0 if below
+     *         {@link #MIN_SCORE}
+     */
+    public int score(String source) {
+        String text = source.trim();
+        if (exact.contains(text)) {
+            return 100;
+        }
+        List<String> words = Words.split(text);
+        if (words.isEmpty() || segments.length == 0) {
+            return 0;
+        }
+
+        // Words unknown to the TM get negative ids, they never match
+        int m = words.size();
+        int[] query = new int[m];
+        Map<Integer, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < m; i++) {
+            Integer id = wordIds.get(words.get(i));
+            query[i] = id == null ? -1 - i : id;
+            if (id != null) {
+                occurrences.merge(id, 1, Integer::sum);
+            }
+        }
+
+        // A TM segment reaching MIN_SCORE shares at least minShared words with
+        // the query, so at least one of its (m - minShared + 1) rarest words:
+        // only the postings of these words are read.
+        int minShared = (MIN_SCORE * m + 99) / 100;
+        int prefixSize = m - minShared + 1;
+        List<Map.Entry<Integer, Integer>> rarest = new ArrayList<>(occurrences.entrySet());
+        rarest.sort((w1, w2) -> Integer.compare(postings[w1.getKey()].length, postings[w2.getKey()].length));
+        // The unknown words are the rarest ones
+        int prefixWords = m;
+        for (int count : occurrences.values()) {
+            prefixWords -= count;
+        }
+        int otherWords = m - prefixWords;
+
+        Scratch work = scratch.get();
+        int touchedCount = 0;
+        for (Map.Entry<Integer, Integer> word : rarest) {
+            if (prefixWords >= prefixSize) {
+                break;
+            }
+            for (int id : postings[word.getKey()]) {
+                if (work.shared[id] == 0) {
+                    work.touched[touchedCount++] = id;
+                }
+                work.shared[id] += word.getValue();
+            }
+            prefixWords += word.getValue();
+            otherWords -= word.getValue();
+        }
+
+        int best = 0;
+        for (int t = 0; t < touchedCount; t++) {
+            int id = work.touched[t];
+            int[] candidate = segments[id];
+            int n = candidate.length;
+            int longest = Math.max(m, n);
+            // Upper bound, all the words outside the prefix may be shared
+            int shared = Math.min(work.shared[id] + otherWords, Math.min(m, n));
+            work.shared[id] = 0;
+
+            // Edit distance >= longest - shared words
+            int threshold = Math.max(MIN_SCORE, best + 1);
+            if (shared * 100 < threshold * longest) {
+                continue;
+            }
+            int maxDistance = longest - (threshold * longest + 99) / 100;
+            int distance = distance(query, candidate, maxDistance);
+            if (distance <= maxDistance) {
+                best = Math.max(best, Math.min(99, (longest - distance) * 100 / longest));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Levenshtein distance on words, only computed in the diagonal band that
+     * can stay below maxDistance.
+     *
+     * @return the distance, or maxDistance + 1 if greater than maxDistance
+     */
+    static int distance(int[] a, int[] b, int maxDistance) {
+        int m = a.length;
+        int n = b.length;
+        if (Math.abs(m - n) > maxDistance) {
+            return maxDistance + 1;
+        }
+        int over = maxDistance + 1;
+        int[] previous = new int[n + 1];
+        int[] current = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            previous[j] = j <= maxDistance ? j : over;
+        }
+        for (int i = 1; i <= m; i++) {
+            int from = Math.max(1, i - maxDistance);
+            int to = Math.min(n, i + maxDistance);
+            current[0] = i <= maxDistance ? i : over;
+            if (from > 1) {
+                current[from - 1] = over;
+            }
+            int rowMin = current[0];
+            for (int j = from; j <= to; j++) {
+                int cost = a[i - 1] == b[j - 1] ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                current[j] = Math.min(value, over);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to < n) {
+                current[to + 1] = over;
+            }
+            if (rowMin > maxDistance) {
+                return over;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[n], over);
+    }
+
+}
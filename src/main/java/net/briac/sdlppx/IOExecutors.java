@@ -0,0 +1,61 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Run the per-entry tasks that mostly wait for I/O (zip entry reads and
+ * writes, file copies).
+ *
+ * This is the Java 8 version, with a bounded pool of platform threads larger
+ * than the CPU count. The multi-release JAR replaces it on Java 21+ by a
+ * version using a virtual thread per task (src/main/java21). The CPU-bound
+ * work stays on {@link ParallelTasks}.
+ *
+ * @author briac
+ *
+ */
+public final class IOExecutors {
+
+    // The threads are mostly blocked, more of them than the CPU
+    private static final int IO_THREADS = Math.max(4, 2 * ParallelTasks.CPU_COUNT);
+
+    private IOExecutors() {
+    }
+
+    /**
+     * @return the kind of threads running the tasks
+     */
+    public static String getDescription() {
+        return "platform threads (" + IO_THREADS + ")";
+    }
+
+    /**
+     * Run all the tasks concurrently and wait for them.
+     *
+     * @return the results, in the order of the tasks
+     * @throws Exception
+     *             the first task failure, with the other ones as suppressed
+     *             exceptions
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws Exception {
+        return ParallelTasks.invokeAll(tasks, IO_THREADS);
+    }
+
+}
@@ -0,0 +1,150 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 128 bits MurmurHash3 (x64 variant), a fast non-cryptographic hash.
+ *
+ * From the public domain implementation at
+ * https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+ */
+public final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    /**
+     * @return the two 64 bits halves of the hash of the UTF-8 bytes of the
+     *         string
+     */
+    public static long[] hash128(String s) {
+        return hash128(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static long[] hash128(byte[] data) {
+        return hash128(data, 0, data.length, 0);
+    }
+
+    public static long[] hash128(byte[] data, int offset, int length, long seed) {
+        long h1 = seed;
+        long h2 = seed;
+        int nblocks = length >>> 4;
+
+        for (int i = 0; i < nblocks; i++) {
+            int p = offset + (i << 4);
+            long k1 = getLong(data, p);
+            long k2 = getLong(data, p + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = offset + (nblocks << 4);
+        switch (length & 15) {
+        case 15:
+            k2 ^= (data[tail + 14] & 0xffL) << 48;
+        case 14:
+            k2 ^= (data[tail + 13] & 0xffL) << 40;
+        case 13:
+            k2 ^= (data[tail + 12] & 0xffL) << 32;
+        case 12:
+            k2 ^= (data[tail + 11] & 0xffL) << 24;
+        case 11:
+            k2 ^= (data[tail + 10] & 0xffL) << 16;
+        case 10:
+            k2 ^= (data[tail + 9] & 0xffL) << 8;
+        case 9:
+            k2 ^= data[tail + 8] & 0xffL;
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        case 8:
+            k1 ^= (data[tail + 7] & 0xffL) << 56;
+        case 7:
+            k1 ^= (data[tail + 6] & 0xffL) << 48;
+        case 6:
+            k1 ^= (data[tail + 5] & 0xffL) << 40;
+        case 5:
+            k1 ^= (data[tail + 4] & 0xffL) << 32;
+        case 4:
+            k1 ^= (data[tail + 3] & 0xffL) << 24;
+        case 3:
+            k1 ^= (data[tail + 2] & 0xffL) << 16;
+        case 2:
+            k1 ^= (data[tail + 1] & 0xffL) << 8;
+        case 1:
+            k1 ^= data[tail] & 0xffL;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        default:
+            break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] { h1, h2 };
+    }
+
+    private static long getLong(byte[] data, int p) {
+        return (data[p] & 0xffL) | (data[p + 1] & 0xffL) << 8 | (data[p + 2] & 0xffL) << 16
+                | (data[p + 3] & 0xffL) << 24 | (data[p + 4] & 0xffL) << 32 | (data[p + 5] & 0xffL) << 40
+                | (data[p + 6] & 0xffL) << 48 | (data[p + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
@@ -0,0 +1,70 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Immutable description of the work on one package: the SDLPPX, the project
+ * directory and the options. It is run by a {@link PackagerEngine}.
+ *
+ * @author briac
+ *
+ */
+public final class PackageJob {
+
+    private final Path sdlPpx;
+    private final Path projectDir;
+    private final PackagerOptions options;
+
+    /**
+     * @param projectDir
+     *            the project directory, may be null for the jobs not writing
+     *            anything (statistics)
+     */
+    public PackageJob(Path sdlPpx, Path projectDir, PackagerOptions options) {
+        this.sdlPpx = Objects.requireNonNull(sdlPpx, "sdlPpx");
+        this.projectDir = projectDir;
+        this.options = options == null ? PackagerOptions.DEFAULTS : options;
+    }
+
+    public Path getSdlPpx() {
+        return sdlPpx;
+    }
+
+    public Path getProjectDir() {
+        return projectDir;
+    }
+
+    public PackagerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return a job on the same files with other options
+     */
+    public PackageJob withOptions(PackagerOptions options) {
+        return new PackageJob(sdlPpx, projectDir, options);
+    }
+
+    @Override
+    public String toString() {
+        return sdlPpx + " -> " + projectDir;
+    }
+
+}
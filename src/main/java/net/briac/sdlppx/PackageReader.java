@@ -0,0 +1,491 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only access to the entries of a package (SDLPPX, SDLRPX), without the
+ * zip file system.
+ *
+ * The central directory (Zip64 included) is parsed once into arrays indexed
+ * by entry number. The entries are then read with positional reads of a single
+ * channel: each stream keeps its own position, so any number of threads can
+ * read entries at the same time without locking.
+ *
+ * {@link #close()} closes the channel, the package can be moved or deleted
+ * right after, on Windows too. An interrupted read also closes the channel, as
+ * for any {@link FileChannel}, and fails the other reads of the package.
+ *
+ * @author briac
+ *
+ */
+public final class PackageReader implements Closeable {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOC_SIZE = 30;
+    private static final int CEN_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_ENCRYPTED = 0x1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private final String[] names;
+    private final int[] methods;
+    private final int[] flags;
+    private final long[] crcs;
+    private final long[] sizes;
+    private final long[] compressedSizes;
+    private final long[] headerOffsets;
+    private final Map<String, Integer> index;
+
+    private PackageReader(Path file, FileChannel channel, long fileSize, int count) {
+        this.file = file;
+        this.channel = channel;
+        this.fileSize = fileSize;
+        names = new String[count];
+        methods = new int[count];
+        flags = new int[count];
+        crcs = new long[count];
+        sizes = new long[count];
+        compressedSizes = new long[count];
+        headerOffsets = new long[count];
+        index = new HashMap<>(count * 2);
+    }
+
+    /**
+     * Open the package and read its central directory.
+     *
+     * @throws ZipException
+     *             if the file is not a zip
+     */
+    public static PackageReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return open(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static PackageReader open(Path file, FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+
+        // End of central directory record, before the archive comment
+        long endPos = -1;
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG && i + END_SIZE + (tail.getShort(i + 20) & 0xFFFF) <= tailSize) {
+                endPos = fileSize - tailSize + i;
+                break;
+            }
+        }
+        if (endPos < 0) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+        ByteBuffer end = read(channel, endPos, END_SIZE);
+        long count = end.getShort(10) & 0xFFFF;
+        long dirSize = end.getInt(12) & ZIP64_MAGIC;
+        long dirOffset = end.getInt(16) & ZIP64_MAGIC;
+
+        if ((count == ZIP64_MAGIC_COUNT || dirSize == ZIP64_MAGIC || dirOffset == ZIP64_MAGIC)
+                && endPos >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = read(channel, endPos - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                long zip64EndPos = locator.getLong(8);
+                checkRange(file, fileSize, zip64EndPos, ZIP64_END_SIZE);
+                ByteBuffer zip64End = read(channel, zip64EndPos, ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIG) {
+                    throw new ZipException("Invalid Zip64 end of central directory: " + file);
+                }
+                count = zip64End.getLong(32);
+                dirSize = zip64End.getLong(40);
+                dirOffset = zip64End.getLong(48);
+            }
+        }
+        checkRange(file, fileSize, dirOffset, dirSize);
+        if (dirSize > Integer.MAX_VALUE || count > dirSize / CEN_SIZE) {
+            throw new ZipException("Invalid central directory: " + file);
+        }
+
+        PackageReader reader = new PackageReader(file, channel, fileSize, (int) count);
+        reader.readDirectory(read(channel, dirOffset, (int) dirSize));
+        return reader;
+    }
+
+    private void readDirectory(ByteBuffer dir) throws ZipException {
+        int pos = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (pos + CEN_SIZE > dir.limit() || dir.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid central directory header " + i + ": " + file);
+            }
+            flags[i] = dir.getShort(pos + 8) & 0xFFFF;
+            methods[i] = dir.getShort(pos + 10) & 0xFFFF;
+            crcs[i] = dir.getInt(pos + 16) & ZIP64_MAGIC;
+            compressedSizes[i] = dir.getInt(pos + 20) & ZIP64_MAGIC;
+            sizes[i] = dir.getInt(pos + 24) & ZIP64_MAGIC;
+            int nameLength = dir.getShort(pos + 28) & 0xFFFF;
+            int extraLength = dir.getShort(pos + 30) & 0xFFFF;
+            int commentLength = dir.getShort(pos + 32) & 0xFFFF;
+            headerOffsets[i] = dir.getInt(pos + 42) & ZIP64_MAGIC;
+            if (pos + CEN_SIZE + nameLength + extraLength + commentLength > dir.limit()) {
+                throw new ZipException("Invalid central directory header " + i + ": " + file);
+            }
+
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = dir.get(pos + CEN_SIZE + j);
+            }
+            // The zip file system also reads the names as UTF-8
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            readZip64Extra(dir, i, pos + CEN_SIZE + nameLength, extraLength);
+            index.putIfAbsent(names[i], i);
+
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * The 64 bits sizes and offset of the Zip64 extra field, only for the
+     * fields set to 0xFFFFFFFF in the header.
+     */
+    private void readZip64Extra(ByteBuffer dir, int entry, int start, int length) {
+        int pos = start;
+        while (pos + 4 <= start + length) {
+            int id = dir.getShort(pos) & 0xFFFF;
+            int size = dir.getShort(pos + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA_ID) {
+                int field = pos + 4;
+                int fieldsEnd = Math.min(field + size, start + length);
+                if (sizes[entry] == ZIP64_MAGIC && field + 8 <= fieldsEnd) {
+                    sizes[entry] = dir.getLong(field);
+                    field += 8;
+                }
+                if (compressedSizes[entry] == ZIP64_MAGIC && field + 8 <= fieldsEnd) {
+                    compressedSizes[entry] = dir.getLong(field);
+                    field += 8;
+                }
+                if (headerOffsets[entry] == ZIP64_MAGIC && field + 8 <= fieldsEnd) {
+                    headerOffsets[entry] = dir.getLong(field);
+                }
+                return;
+            }
+            pos += 4 + size;
+        }
+    }
+
+    private static void checkRange(Path file, long fileSize, long pos, long length) throws ZipException {
+        if (pos < 0 || length < 0 || pos + length > fileSize) {
+            throw new ZipException("Invalid offset in the central directory: " + file);
+        }
+    }
+
+    /**
+     * @return a little endian buffer with the bytes of the package at [pos,
+     *         pos + length)
+     */
+    private static ByteBuffer read(FileChannel channel, long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of package");
+            }
+        }
+        buffer.flip();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of entries, directories included
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int entry) {
+        return names[entry];
+    }
+
+    /**
+     * @return the entry number, or -1 if there is no such entry
+     */
+    public int indexOf(String name) {
+        Integer entry = index.get(name);
+        return entry == null ? -1 : entry;
+    }
+
+    /**
+     * @return the entries whose name is accepted by the filter, in the
+     *         central directory order
+     */
+    public int[] find(Predicate<String> filter) {
+        return IntStream.range(0, names.length).filter(i -> filter.test(names[i])).toArray();
+    }
+
+    public boolean isDirectory(int entry) {
+        return names[entry].endsWith("/");
+    }
+
+    /** @return the compression method, {@link #STORED} or {@link #DEFLATED} */
+    public int getMethod(int entry) {
+        return methods[entry];
+    }
+
+    public long getCrc(int entry) {
+        return crcs[entry];
+    }
+
+    /** @return the uncompressed size */
+    public long getSize(int entry) {
+        return sizes[entry];
+    }
+
+    public long getCompressedSize(int entry) {
+        return compressedSizes[entry];
+    }
+
+    /**
+     * @return the position of the entry data, after its local header
+     */
+    private long dataOffset(int entry) throws IOException {
+        checkRange(file, fileSize, headerOffsets[entry], LOC_SIZE);
+        ByteBuffer header = read(channel, headerOffsets[entry], LOC_SIZE);
+        if (header.getInt(0) != LOC_SIG) {
+            throw new ZipException("Invalid local header for " + names[entry] + ": " + file);
+        }
+        long offset = headerOffsets[entry] + LOC_SIZE + (header.getShort(26) & 0xFFFF)
+                + (header.getShort(28) & 0xFFFF);
+        checkRange(file, fileSize, offset, compressedSizes[entry]);
+        return offset;
+    }
+
+    /**
+     * @return the stored bytes of the entry, compressed or not
+     */
+    public InputStream openRaw(int entry) throws IOException {
+        if ((flags[entry] & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("Encrypted entry " + names[entry]);
+        }
+        long start = dataOffset(entry);
+        return new ChannelInputStream(start, start + compressedSizes[entry]);
+    }
+
+    /**
+     * @return the content of the entry
+     */
+    public InputStream open(int entry) throws IOException {
+        switch (methods[entry]) {
+        case STORED:
+            return openRaw(entry);
+        case DEFLATED:
+            return new EntryInflaterInputStream(openRaw(entry), sizes[entry]);
+        default:
+            throw new ZipException("Unsupported compression method " + methods[entry] + " for " + names[entry]);
+        }
+    }
+
+    /**
+     * Write the stored bytes of the entry, compressed or not, with a channel
+     * transfer.
+     *
+     * @return the number of bytes written
+     */
+    public long transferRaw(int entry, WritableByteChannel out) throws IOException {
+        long start = dataOffset(entry);
+        long size = compressedSizes[entry];
+        long written = 0;
+        while (written < size) {
+            long n = channel.transferTo(start + written, size - written, out);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of " + names[entry]);
+            }
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * Write the content of the entry to a file. A stored entry is transferred
+     * without going through the heap.
+     *
+     * @return the number of bytes written
+     */
+    public long copy(int entry, Path target) throws IOException {
+        if (methods[entry] != STORED) {
+            try (InputStream is = open(entry)) {
+                return FileUtils.copy(is, target);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return transferRaw(entry, channel);
+        }
+    }
+
+    /**
+     * Close the package, the streams still open fail on their next read.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** Stream of a range of the package, read at its own position. */
+    private final class ChannelInputStream extends InputStream {
+        private long pos;
+        private final long end;
+
+        ChannelInputStream(long start, long end) {
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos));
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of package");
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+    }
+
+    /**
+     * Inflate a raw deflated entry, releasing the inflater when closed.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        private long remaining;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        EntryInflaterInputStream(InputStream raw, long size) {
+            super(raw, new Inflater(true), (int) Math.max(512, Math.min(FileUtils.BUFFER_SIZE / 16, size)));
+            remaining = size;
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of deflated entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // The inflater may need one more byte to finish, as in
+                // ZipFile
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed || remaining <= 0) {
+                return 0;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Integrity check of a package: every entry is inflated and its CRC32 and
+ * size compared to the central directory. The entries written by the
+ * packager can also be compared to the files they were copied from.
+ *
+ * The entries are checked in parallel, the largest ones first so that a big
+ * SDLTM does not end up alone at the end.
+ *
+ * @author briac
+ *
+ */
+public final class PackageVerifier {
+
+    private PackageVerifier() {
+    }
+
+    /**
+     * @param expected
+     *            the files some entries must be identical to, by entry name
+     * @return the problems found, empty if the package is sound
+     */
+    public static List<String> verify(Path file, Map<String, Path> expected) throws Exception {
+        List<String> problems = new ArrayList<>();
+        try (PackageReader reader = PackageReader.open(file)) {
+            for (String name : expected.keySet()) {
+                if (reader.indexOf(name) < 0) {
+                    problems.add(name + ": missing entry");
+                }
+            }
+
+            List<Integer> entries = IntStream.range(0, reader.size()).filter(entry -> !reader.isDirectory(entry))
+                    .boxed().sorted(Comparator.comparingLong(reader::getCompressedSize).reversed())
+                    .collect(Collectors.toList());
+            List<Callable<String>> tasks = new ArrayList<>();
+            for (int entry : entries) {
+                Path source = expected.get(reader.getName(entry));
+                tasks.add(() -> verifyEntry(reader, entry, source));
+            }
+            for (String problem : ParallelTasks.invokeAll(tasks, ParallelTasks.CPU_COUNT)) {
+                if (problem != null) {
+                    problems.add(problem);
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * @return the problem with the entry, or null if it is sound
+     */
+    private static String verifyEntry(PackageReader reader, int entry, Path source) {
+        String name = reader.getName(entry);
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[(int) Math.min(FileUtils.BUFFER_SIZE, Math.max(512, reader.getSize(entry)))];
+        try (InputStream is = reader.open(entry)) {
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                crc.update(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            return name + ": " + e;
+        }
+        if (size != reader.getSize(entry)) {
+            return name + ": " + size + " bytes instead of " + reader.getSize(entry);
+        }
+        if (crc.getValue() != reader.getCrc(entry)) {
+            return String.format("%s: CRC %08x instead of %08x", name, crc.getValue(), reader.getCrc(entry));
+        }
+        if (source != null) {
+            try {
+                if (Files.size(source) != size || FileUtils.crc32(source) != crc.getValue()) {
+                    return name + ": different from " + source;
+                }
+            } catch (IOException e) {
+                return name + ": cannot read " + source + ": " + e;
+            }
+        }
+        return null;
+    }
+
+}
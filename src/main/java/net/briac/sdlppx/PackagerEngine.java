@@ -0,0 +1,1134 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import net.briac.sdlppx.SDLPPXPackager.PackageTypes;
+import net.briac.sdlppx.TermChecker.Report;
+import net.briac.sdlppx.model.TermBase;
+import net.briac.sdlppx.model.TranslationMemory;
+
+/**
+ * Runs the {@link PackageJob}: extraction of a SDLPPX to a project directory,
+ * creation of the SDLRPX return package, and the reports on the package.
+ *
+ * The engine has no state, everything about a package is in the job and in
+ * local variables, so one instance can run several jobs concurrently.
+ *
+ * @author briac
+ *
+ */
+public class PackagerEngine {
+
+    static final String TARGET_DIR = "target";
+    static final String SOURCE_DIR = "source";
+    static final String TM_DIR = "tm";
+    static final String GLOSSARY_DIR = "glossary";
+
+    private static final String EXT_SDLPROJ = ".sdlproj";
+    private static final String EXT_SDLTM = ".sdltm";
+    private static final String EXT_SDLTB = ".sdltb";
+    private static final String EXT_SDLXLIFF = ".sdlxliff";
+
+    private static final String ATTRIBUTE_PACKAGE_TYPE = "PackageType";
+    private static final int MAX_DEPTH = 10;
+    // Largest byte array we can allocate to hold a SDLTM
+    private static final long MAX_IN_MEMORY_SIZE = Integer.MAX_VALUE - 8;
+    private static final String TERM_REPORT = "term_report.txt";
+    private static final String ANALYSIS_REPORT = "analysis.txt";
+
+    // The glossaries are always written in the OmegaT format
+    private static final SDLTBConverter SDLTB_CONVERTER = new SDLTBConverter();
+    private static final SDLTBConverter SDLTB_GZIP_CONVERTER = new SDLTBConverter(SDLTBConverter.OutputType.OMEGAT,
+            SDLTBConverter.Synonym.COLUMN, true);
+
+    private static final Logger LOGGER = Logger.getLogger(PackagerEngine.class.getName());
+
+    /**
+     * Extract the SDLXLIFF, SDLTM and SDLTB of the package to the project
+     * directory.
+     *
+     * @return false if some files could not be extracted
+     */
+    public boolean extract(PackageJob job) throws Exception {
+        String projectDir = job.getProjectDir().toString();
+        PackagerOptions options = job.getOptions();
+        boolean allOk = true;
+
+        if (!options.isNoSource()) {
+            try {
+                extractSources(job, projectDir);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error extracting SDLXLIFF", e);
+                allOk = false;
+            }
+        }
+
+        if (!options.isNoTMX()) {
+            try {
+                extractTM(job, projectDir);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error extracting SDLTM", e);
+                allOk = false;
+            }
+        }
+
+        if (!options.isNoGlossary()) {
+            try {
+                extractGlossaries(job, projectDir);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error extracting SDLTB", e);
+                allOk = false;
+            }
+        }
+
+        return allOk;
+    }
+
+    private void extractSources(PackageJob job, String projectDir) throws Exception {
+
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            SDLProject project = readSDLProj(reader, MAX_DEPTH);
+            if (project == null) {
+                return;
+            }
+
+            // All the entries of all the target languages are extracted
+            // concurrently from the same package reader
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (String language : project.targetLanguages) {
+                File sourceDir = new File(languageDir(projectDir, project, language), SOURCE_DIR);
+                sourceDir.mkdirs();
+
+                // We assume the target directories are always flat with
+                // sdlxliff?
+                for (int entry : reader.find(name -> name.startsWith(language + "/")
+                        && name.toLowerCase().endsWith(EXT_SDLXLIFF))) {
+                    String name = reader.getName(entry);
+                    tasks.add(() -> extractEntry(reader, entry,
+                            sourceDir.toPath().resolve(name.substring(name.lastIndexOf('/') + 1))));
+                }
+            }
+
+            StartupTiming.firstOutput(job.getSdlPpx().getFileName());
+            List<Boolean> copied = IOExecutors.invokeAll(tasks);
+            long copiedCount = copied.stream().filter(Boolean::booleanValue).count();
+            LOGGER.log(Level.INFO, "{0} source files extracted, {1} unchanged, on {2}",
+                    new Object[] { copiedCount, copied.size() - copiedCount, IOExecutors.getDescription() });
+        }
+    }
+
+    /**
+     * Copy a zip entry to a file, unless the file already has the same size
+     * and CRC.
+     *
+     * @return true if the file was written
+     */
+    private static boolean extractEntry(PackageReader reader, int entry, Path target) throws IOException {
+        String name = reader.getName(entry);
+        try {
+            if (Files.isRegularFile(target) && Files.size(target) == reader.getSize(entry)
+                    && FileUtils.crc32(target) == reader.getCrc(entry)) {
+                LOGGER.log(Level.FINE, "Source file {0} is unchanged", target);
+                return false;
+            }
+
+            // Written next to the target then moved, the target is never
+            // partially written
+            LOGGER.log(Level.INFO, "Copy source file {0} to {1}", new Object[] { name, target });
+            Path tmpFile = FileUtils.tmpSibling(target);
+            try {
+                reader.copy(entry, tmpFile);
+                FileUtils.replace(tmpFile, target);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not extract " + name + " to " + target, e);
+            throw new IOException("Could not extract " + name + " to " + target, e);
+        }
+    }
+
+    /**
+     * Directory of the project for a target language. Packages with several
+     * target languages get a sub-directory per language, each with its own
+     * source/ and target/ directories.
+     */
+    private static File languageDir(String projectDir, SDLProject project, String language) {
+        if (project.targetLanguages.size() > 1) {
+            return new File(projectDir, language);
+        }
+        return new File(projectDir);
+    }
+
+    /**
+     * Directory of the project for the target language of a SDLTM, or the
+     * project directory if the package has no such target language.
+     */
+    private static File languageDirOf(String projectDir, SDLProject project, String tmLanguage) {
+        if (project != null) {
+            for (String language : project.targetLanguages) {
+                if (language.equalsIgnoreCase(tmLanguage)) {
+                    return languageDir(projectDir, project, language);
+                }
+            }
+        }
+        return new File(projectDir);
+    }
+
+    private void extractGlossaries(PackageJob job, String projectDir) throws Exception {
+        SDLTBConverter converter = job.getOptions().isCompress() ? SDLTB_GZIP_CONVERTER : SDLTB_CONVERTER;
+        if (job.getOptions().isIncrementalGlossary()) {
+            converter = new SDLTBConverter(SDLTBConverter.OutputType.OMEGAT, SDLTBConverter.Synonym.COLUMN,
+                    job.getOptions().isCompress(), true);
+        }
+
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            int[] sdltbFiles = reader.find(name -> name.toLowerCase().endsWith(EXT_SDLTB));
+            LOGGER.log(Level.INFO, "SDLTB file: {0} found", sdltbFiles.length);
+
+            // A termbase holds all its languages: each language project gets
+            // the whole glossary
+            List<File> glossaryDirs = new ArrayList<>();
+            SDLProject project = sdltbFiles.length == 0 ? null : readSDLProj(reader, MAX_DEPTH);
+            if (project == null) {
+                glossaryDirs.add(new File(projectDir, GLOSSARY_DIR));
+            } else {
+                for (String language : project.targetLanguages) {
+                    File glossaryDir = new File(languageDir(projectDir, project, language), GLOSSARY_DIR);
+                    if (!glossaryDirs.contains(glossaryDir)) {
+                        glossaryDirs.add(glossaryDir);
+                    }
+                }
+            }
+
+            // The termbase is converted once, in the first directory, which
+            // also holds the incremental state, and copied to the other ones
+            String glossaryPrefix = job.getSdlPpx().getFileName().toString().replaceFirst("\\.\\w+$", "");
+            for (int sdltb : sdltbFiles) {
+                File glossary;
+                try (InputStream is = reader.open(sdltb)) {
+                    glossary = converter.convertSDLTB(is, reader.getName(sdltb), glossaryDirs.get(0),
+                            glossaryPrefix);
+                }
+                for (File glossaryDir : glossaryDirs.subList(1, glossaryDirs.size())) {
+                    glossaryDir.mkdirs();
+                    copyIfChanged(glossary.toPath(), new File(glossaryDir, glossary.getName()).toPath());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Copy a file, unless the target already has the same content: like the
+     * other outputs, an unchanged target keeps its modification time.
+     */
+    private static void copyIfChanged(Path file, Path target) throws IOException {
+        if (Files.isRegularFile(target) && FileUtils.sameContent(file, target)) {
+            LOGGER.log(Level.FINE, "{0} is unchanged", target);
+            return;
+        }
+        LOGGER.log(Level.INFO, "Copy {0} to {1}", new Object[] { file, target });
+        Path tmpFile = FileUtils.tmpSibling(target);
+        try {
+            Files.copy(file, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            FileUtils.replace(tmpFile, target);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private void extractTM(PackageJob job, String projectDir) throws Exception {
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            int[] sdltmFiles = reader.find(name -> name.toLowerCase().endsWith(EXT_SDLTM));
+            LOGGER.log(Level.INFO, "SDLTM file: {0} found", sdltmFiles.length);
+            // Each TMX goes to the project of its target language
+            SDLProject project = sdltmFiles.length == 0 ? null : readSDLProj(reader, MAX_DEPTH);
+
+            if (job.getOptions().isMergeTM()) {
+                mergeTM(job, reader, sdltmFiles, projectDir, project);
+                return;
+            }
+
+            SDLTMConverter converter = newConverter(job.getOptions());
+            for (int sdltm : sdltmFiles) {
+                try (EmbeddedTM embeddedTM = openEmbeddedTM(job.getOptions(), reader, sdltm)) {
+                    TranslationMemory tm = converter.readTranslationMemory(embeddedTM.connection);
+                    converter.convertSDLTM(embeddedTM.connection,
+                            new File(languageDirOf(projectDir, project, tm.getTargetLanguage()), TM_DIR),
+                            "size " + reader.getSize(sdltm) + ", CRC " + Long.toHexString(reader.getCrc(sdltm)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the TU of all the SDLTM in a single TMX per language pair, without
+     * the duplicates. The TMX are only replaced once all the SDLTM are
+     * exported.
+     */
+    private void mergeTM(PackageJob job, PackageReader reader, int[] sdltmFiles, String projectDir,
+            SDLProject project) throws Exception {
+        PackagerOptions options = job.getOptions();
+        SDLTMConverter converter = newConverter(options);
+        String prefix = job.getSdlPpx().getFileName().toString().replaceFirst("\\.\\w+$", "");
+        Map<String, TUWriter> writers = new TreeMap<>();
+        Map<String, File> tmxFiles = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+
+        try (DuplicateFilter duplicates = new DuplicateFilter(options.getDedupMemory(), options.getTmpDir());
+                ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            try {
+                for (int sdltm : sdltmFiles) {
+                    try (EmbeddedTM embeddedTM = openEmbeddedTM(options, reader, sdltm)) {
+                        TranslationMemory tm = converter.readTranslationMemory(embeddedTM.connection);
+                        String pair = tm.getSourceLanguage() + "_" + tm.getTargetLanguage();
+                        TUWriter writer = writers.get(pair);
+                        if (writer == null) {
+                            File tmDir = new File(languageDirOf(projectDir, project, tm.getTargetLanguage()),
+                                    TM_DIR);
+                            tmDir.mkdirs();
+                            File tmxFile = converter.tmxFile(tmDir, prefix + "_" + pair);
+                            writer = converter.openTMX(tmDir, prefix + "_" + pair, tm.getSourceLanguage(), batch);
+                            writers.put(pair, writer);
+                            tmxFiles.put(pair, tmxFile);
+                        }
+                        counts.merge(pair, converter.exportTUs(embeddedTM.connection, tm, writer, duplicates),
+                                Integer::sum);
+                    }
+                }
+            } finally {
+                for (TUWriter writer : writers.values()) {
+                    writer.close();
+                }
+            }
+            batch.commit();
+
+            for (String pair : writers.keySet()) {
+                LOGGER.log(Level.INFO, "Merged {0} TU to file {1}", new Object[] { counts.get(pair), tmxFiles.get(pair) });
+            }
+            LOGGER.log(Level.INFO, "{0} duplicate TU dropped", duplicates.getDuplicates());
+        }
+    }
+
+    private static SDLTMConverter newConverter(PackagerOptions options) {
+        SDLTMConverter converter = new SDLTMConverter();
+        converter.setFilter(options.getTmFilter());
+        converter.setConcordanceIndex(options.isConcordanceIndex());
+        converter.setCheckpointInterval(options.getCheckpointInterval());
+        converter.setCompress(options.isCompress());
+        converter.setSharding(options.getTmSharding());
+        converter.setMetadata(options.isTmMetadata());
+        converter.setSegmentCacheSize(options.getSegmentCacheSize());
+        return converter;
+    }
+
+    /**
+     * Open a SDLTM of the package, in memory if it is small enough, otherwise
+     * through a temporary file.
+     */
+    private static EmbeddedTM openEmbeddedTM(PackagerOptions options, PackageReader reader, int sdltm)
+            throws IOException, SQLException {
+        long size = reader.getSize(sdltm);
+        if (size <= Math.min(options.getInMemoryLimit(), MAX_IN_MEMORY_SIZE)) {
+            LOGGER.log(Level.INFO, "Loading {0} ({1} bytes) in memory",
+                    new Object[] { reader.getName(sdltm), size });
+            byte[] content = new byte[(int) size];
+            try (DataInputStream is = new DataInputStream(reader.open(sdltm))) {
+                is.readFully(content);
+            }
+            return new EmbeddedTM(SDLTMConverter.openInMemory(content), null);
+        }
+
+        Path tmpFile = createTempFile(options, "sdlppx_", EXT_SDLTM);
+        try {
+            reader.copy(sdltm, tmpFile);
+            return new EmbeddedTM(SDLTMConverter.openReadOnly(tmpFile.toFile()), tmpFile);
+        } catch (IOException | SQLException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+    }
+
+    /** A SDLTM opened from the package, and its temporary copy if any. */
+    private static class EmbeddedTM implements Closeable {
+        private final Connection connection;
+        private final Path tmpFile;
+
+        EmbeddedTM(Connection connection, Path tmpFile) {
+            this.connection = connection;
+            this.tmpFile = tmpFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.log(Level.SEVERE, "Error while closing SDLTM", e);
+            } finally {
+                if (tmpFile != null) {
+                    Files.deleteIfExists(tmpFile);
+                }
+            }
+        }
+    }
+
+    private static Path createTempFile(PackagerOptions options, String prefix, String suffix) throws IOException {
+        Path tmpDir = options.getTmpDir();
+        if (tmpDir == null) {
+            return Files.createTempFile(prefix, suffix);
+        }
+        Files.createDirectories(tmpDir);
+        return Files.createTempFile(tmpDir, prefix, suffix);
+    }
+
+    /**
+     * Replace the SDLXLIFF of the package by the translated ones of the
+     * project directory, and turn the SDLPPX into a SDLRPX return package.
+     *
+     * @return true if the package was renamed to SDLRPX
+     */
+    public boolean createReturnPackage(PackageJob job) throws Exception {
+        Path sdlPpx = job.getSdlPpx();
+        String projectDir = job.getProjectDir().toString();
+
+        // Check the translated files before touching the package
+        if (job.getOptions().isValidate()) {
+            validateTargets(job, projectDir);
+        }
+
+        StartupTiming.firstOutput(sdlPpx.getFileName());
+        Files.copy(sdlPpx, sdlPpx.resolveSibling(sdlPpx.getFileName().toString() + ".bak"),
+                StandardCopyOption.REPLACE_EXISTING);
+
+        boolean isUpdated = false;
+        // The files the rewritten entries must be identical to, by entry name
+        Map<String, Path> expected = new ConcurrentHashMap<>();
+        Path patchedSdlProj = createTempFile(job.getOptions(), "sdlproj_", ".tmp");
+        try {
+            try (FileSystem zipfs = FileSystems.newFileSystem(job.getSdlPpx(), null)) {
+                Path sdlProj = findSDLProj(zipfs, 1);
+                if (sdlProj == null) {
+                    return false;
+                }
+                SDLProject project = parseSDLProj(sdlProj);
+                if (project == null) {
+                    return false;
+                }
+                isUpdated = markReturnPackage(sdlProj, project, patchedSdlProj);
+                if (isUpdated) {
+                    expected.put(entryName(sdlProj), patchedSdlProj);
+                }
+
+                // One task per entry, all the languages at once
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (String language : project.targetLanguages) {
+                    updateTargets(zipfs, language,
+                            new File(languageDir(projectDir, project, language), TARGET_DIR), tasks, expected);
+                }
+                IOExecutors.invokeAll(tasks);
+            }
+
+            Path result = sdlPpx;
+            if (isUpdated) {
+                result = sdlPpx
+                        .resolveSibling(sdlPpx.getFileName().toString().replaceAll("\\.sdlppx$", ".sdlrpx"));
+                LOGGER.log(Level.INFO, "Renaming {0} to {1}", new Object[] { sdlPpx, result });
+                Files.move(sdlPpx, result, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (job.getOptions().isVerify()) {
+                verifyPackage(result, expected);
+            }
+        } finally {
+            Files.deleteIfExists(patchedSdlProj);
+        }
+        return isUpdated;
+    }
+
+    /**
+     * Check the CRC of every entry of the package in parallel.
+     *
+     * @return the problems found, empty if the package is sound
+     */
+    public List<String> verify(PackageJob job) throws Exception {
+        return PackageVerifier.verify(job.getSdlPpx(), new HashMap<>());
+    }
+
+    private static void verifyPackage(Path sdlRpx, Map<String, Path> expected) throws Exception {
+        long start = System.nanoTime();
+        List<String> problems = PackageVerifier.verify(sdlRpx, expected);
+        if (!problems.isEmpty()) {
+            LOGGER.log(Level.SEVERE, "Corrupted package {0}:\n  {1}",
+                    new Object[] { sdlRpx, String.join("\n  ", problems) });
+            throw new IOException("Corrupted package " + sdlRpx + ", the original package is in the .bak file");
+        }
+        LOGGER.log(Level.INFO, "{0} verified in {1} ms",
+                new Object[] { sdlRpx.getFileName(), (System.nanoTime() - start) / 1_000_000 });
+    }
+
+    /**
+     * @return the name of the entry of the zip file system path, as in the
+     *         central directory
+     */
+    private static String entryName(Path path) {
+        String name = path.toString();
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+
+    /**
+     * Validate all the translated SDLXLIFF of the project concurrently.
+     *
+     * @throws IOException
+     *             if any file is invalid, the problems being logged for each
+     *             file
+     */
+    private void validateTargets(PackageJob job, String projectDir) throws Exception {
+        Map<String, List<String>> report = new TreeMap<>();
+        // The package is closed before it is updated
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            SDLProject project = readSDLProj(reader, 1);
+            if (project == null) {
+                return;
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (String language : project.targetLanguages) {
+                File targetDir = new File(languageDir(projectDir, project, language), TARGET_DIR);
+                for (int original : findSDLXLIFF(reader, language, 1)) {
+                    Path translated = targetDir.toPath().resolve(fileName(reader.getName(original)));
+                    if (!Files.exists(translated)) {
+                        // The untranslated entry would be left in the return
+                        // package
+                        report.put(translated.toString(),
+                                Collections.singletonList("Missing translated file for " + reader.getName(original)));
+                        continue;
+                    }
+                    tasks.add(() -> {
+                        List<String> problems;
+                        try (InputStream is = reader.open(original)) {
+                            problems = SDLXLIFFValidator.validate(is, translated);
+                        }
+                        if (!problems.isEmpty()) {
+                            synchronized (report) {
+                                report.put(translated.toString(), problems);
+                            }
+                        }
+                        return null;
+                    });
+                }
+            }
+            // Each task reads an entry of the package and a file of the project
+            IOExecutors.invokeAll(tasks);
+            LOGGER.log(Level.INFO, "{0} SDLXLIFF files validated", tasks.size());
+        }
+
+        if (!report.isEmpty()) {
+            for (Map.Entry<String, List<String>> file : report.entrySet()) {
+                LOGGER.log(Level.SEVERE, "Invalid SDLXLIFF {0}:\n  {1}",
+                        new Object[] { file.getKey(), String.join("\n  ", file.getValue()) });
+            }
+            throw new IOException("Invalid SDLXLIFF files, the package was not updated: " + report.keySet());
+        }
+    }
+
+    /**
+     * Scan all the SDLXLIFF of the package (or their translation, if already in
+     * the project directory) for the terms of the package termbases, and write
+     * the hits and forbidden terms to term_report.txt in the project directory.
+     *
+     * @return the number of forbidden terms used in the targets
+     */
+    public int checkTerms(PackageJob job) throws Exception {
+        String projectDir = job.getProjectDir().toString();
+        List<Report> reports;
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            SDLProject project = readSDLProj(reader, 1);
+            if (project == null) {
+                return 0;
+            }
+
+            List<TermBase> termbases = new ArrayList<>();
+            for (int sdltb : reader.find(name -> name.toLowerCase().endsWith(EXT_SDLTB))) {
+                try (InputStream is = reader.open(sdltb)) {
+                    termbases.add(SDLTB_CONVERTER.readTermBase(is));
+                }
+            }
+            if (termbases.isEmpty()) {
+                LOGGER.log(Level.WARNING, "No SDLTB in the package, no terms to check");
+                return 0;
+            }
+            TermChecker checker = new TermChecker(termbases);
+
+            List<Callable<Report>> tasks = new ArrayList<>();
+            for (String language : project.targetLanguages) {
+                File targetDir = new File(languageDir(projectDir, project, language), TARGET_DIR);
+                for (int entry : findSDLXLIFF(reader, language, MAX_DEPTH)) {
+                    Path translated = targetDir.toPath().resolve(fileName(reader.getName(entry)));
+                    if (Files.isRegularFile(translated)) {
+                        tasks.add(() -> checker.check(translated));
+                    } else {
+                        tasks.add(() -> {
+                            try (InputStream is = reader.open(entry)) {
+                                return checker.check(entryURI(reader, entry), is);
+                            }
+                        });
+                    }
+                }
+            }
+            reports = ParallelTasks.invokeAll(tasks, ParallelTasks.CPU_COUNT);
+        }
+
+        int hitCount = 0;
+        int forbiddenCount = 0;
+        File reportFile = new File(projectDir, TERM_REPORT);
+        reportFile.getParentFile().mkdirs();
+        try (Writer out = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Report report : reports) {
+                String file = report.getFile();
+                for (Map.Entry<String, Integer> hit : report.getHits().entrySet()) {
+                    out.write(file + "\tHIT\t" + hit.getKey() + "\t" + hit.getValue() + "\n");
+                    hitCount += hit.getValue();
+                }
+                for (Map.Entry<String, Set<String>> segment : report.getForbidden().entrySet()) {
+                    for (String term : segment.getValue()) {
+                        out.write(file + "\tFORBIDDEN\t" + term + "\t" + segment.getKey() + "\n");
+                        forbiddenCount++;
+                    }
+                }
+            }
+        }
+
+        LOGGER.log(Level.INFO, "{0} files checked, {1} term hits, report written to {2}",
+                new Object[] { reports.size(), hitCount, reportFile });
+        if (forbiddenCount > 0) {
+            LOGGER.log(Level.WARNING, "{0} forbidden terms used in the targets", forbiddenCount);
+        }
+        return forbiddenCount;
+    }
+
+    /**
+     * Count the source segments of the package SDLXLIFF, streamed from the
+     * package, and print the figures of each file and the totals of each
+     * language.
+     *
+     * @return the totals for each target language
+     */
+    public Map<String, Statistics> printStatistics(PackageJob job, PrintStream out) throws Exception {
+        PackagerOptions options = job.getOptions();
+        Map<String, Statistics> totals = new TreeMap<>();
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            SDLProject project = readSDLProj(reader, 1);
+            if (project == null) {
+                return totals;
+            }
+
+            List<Callable<Statistics>> tasks = new ArrayList<>();
+            List<String> taskLanguages = new ArrayList<>();
+            for (String language : project.targetLanguages) {
+                int[] sdlxliffs = IntStream.of(findSDLXLIFF(reader, language, MAX_DEPTH)).boxed()
+                        .sorted(Comparator.comparing(reader::getName)).mapToInt(Integer::intValue).toArray();
+                for (int entry : sdlxliffs) {
+                    tasks.add(() -> {
+                        try (InputStream is = reader.open(entry)) {
+                            return Statistics.count(reader.getName(entry), is);
+                        }
+                    });
+                    taskLanguages.add(language);
+                }
+            }
+            List<Statistics> files = ParallelTasks.invokeAll(tasks, ParallelTasks.CPU_COUNT);
+
+            Map<String, Long> languageSegments = new HashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                languageSegments.merge(taskLanguages.get(i), files.get(i).getSegments(), Long::sum);
+            }
+
+            // The repetitions are counted within each language, in file order.
+            // The files of a language follow each other, so only one filter is
+            // open at a time.
+            DuplicateFilter languageSeen = null;
+            try {
+                StartupTiming.firstOutput("statistics");
+                out.println("File\tSegments\tWords\tCharacters\tRepeated segments\tRepeated words");
+                for (int i = 0; i < files.size(); i++) {
+                    String language = taskLanguages.get(i);
+                    if (i == 0 || !language.equals(taskLanguages.get(i - 1))) {
+                        if (languageSeen != null) {
+                            languageSeen.close();
+                        }
+                        languageSeen = new DuplicateFilter(options.getDedupMemory(), options.getTmpDir(),
+                                languageSegments.get(language));
+                    }
+                    Statistics stats = files.get(i);
+                    stats.countRepetitions(languageSeen);
+                    printStatistics(out, stats);
+                    totals.computeIfAbsent(language, l -> new Statistics("Total " + l)).add(stats);
+                }
+            } finally {
+                if (languageSeen != null) {
+                    languageSeen.close();
+                }
+            }
+        }
+        for (Statistics total : totals.values()) {
+            printStatistics(out, total);
+            LOGGER.log(Level.INFO, "{0}: {1} words, {2} repeated", new Object[] { total.getName(),
+                    total.getWords(), total.getRepeatedWords() });
+        }
+        out.flush();
+        return totals;
+    }
+
+    private static void printStatistics(PrintStream out, Statistics stats) {
+        out.println(stats.getName() + "\t" + stats.getSegments() + "\t" + stats.getWords() + "\t"
+                + stats.getCharacters() + "\t" + stats.getRepeatedSegments() + "\t" + stats.getRepeatedWords());
+    }
+
+    /**
+     * Fuzzy match analysis of the source segments of the package against its
+     * SDLTM, written to analysis.txt in the project directory.
+     *
+     * @return the totals for each target language
+     */
+    public Map<String, Analysis> analyze(PackageJob job) throws Exception {
+        String projectDir = job.getProjectDir().toString();
+        Map<String, Analysis> totals = new TreeMap<>();
+        List<Analysis> analyses;
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            SDLProject project = readSDLProj(reader, 1);
+            if (project == null) {
+                return totals;
+            }
+
+            // One index per target language, with all the TM of that language
+            Map<String, FuzzyMatcher.Builder> builders = new HashMap<>();
+            SDLTMConverter converter = newConverter(job.getOptions());
+            for (int sdltm : reader.find(name -> name.toLowerCase().endsWith(EXT_SDLTM))) {
+                try (EmbeddedTM embeddedTM = openEmbeddedTM(job.getOptions(), reader, sdltm)) {
+                    TranslationMemory tm = converter.readTranslationMemory(embeddedTM.connection);
+                    FuzzyMatcher.Builder builder = builders
+                            .computeIfAbsent(tm.getTargetLanguage().toLowerCase(), l -> new FuzzyMatcher.Builder());
+                    int count = converter.readSources(embeddedTM.connection, builder::add);
+                    LOGGER.log(Level.INFO, "{0} segments indexed from {1}", new Object[] { count, tm.getName() });
+                }
+            }
+
+            List<Callable<Analysis>> tasks = new ArrayList<>();
+            List<String> taskLanguages = new ArrayList<>();
+            for (String language : project.targetLanguages) {
+                FuzzyMatcher.Builder builder = builders.get(language.toLowerCase());
+                FuzzyMatcher matcher = builder == null ? null : builder.build();
+                if (matcher == null) {
+                    LOGGER.log(Level.WARNING, "No TM for {0}, all the segments are new", language);
+                }
+                for (int entry : findSDLXLIFF(reader, language, MAX_DEPTH)) {
+                    tasks.add(() -> {
+                        try (InputStream is = reader.open(entry)) {
+                            return Analysis.analyze(reader.getName(entry), is, matcher);
+                        }
+                    });
+                    taskLanguages.add(language);
+                }
+            }
+            analyses = ParallelTasks.invokeAll(tasks, ParallelTasks.CPU_COUNT);
+            for (int i = 0; i < analyses.size(); i++) {
+                totals.computeIfAbsent(taskLanguages.get(i), l -> new Analysis("Total " + l)).add(analyses.get(i));
+            }
+        }
+
+        File reportFile = new File(projectDir, ANALYSIS_REPORT);
+        reportFile.getParentFile().mkdirs();
+        try (Writer out = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+            out.write("File");
+            for (Analysis.Band band : Analysis.Band.values()) {
+                out.write("\t" + band.getLabel());
+            }
+            out.write("\tTotal\n");
+            for (Analysis analysis : analyses) {
+                writeAnalysis(out, analysis);
+            }
+            for (Analysis total : totals.values()) {
+                writeAnalysis(out, total);
+                LOGGER.log(Level.INFO, "{0}: {1} words, {2} new", new Object[] { total.getName(),
+                        total.getTotalWords(), total.getWords(Analysis.Band.NO_MATCH) });
+            }
+        }
+        LOGGER.log(Level.INFO, "Analysis written to {0}", reportFile);
+        return totals;
+    }
+
+    /**
+     * Describe the package without extracting it: only the central directory,
+     * the start of the SDLPROJ and the first pages of each SDLTM are read.
+     *
+     * @return the description, as maps and lists that {@link Json} can write
+     */
+    public Map<String, Object> inspect(PackageJob job) throws Exception {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("package", job.getSdlPpx().getFileName().toString());
+        result.put("size", Files.size(job.getSdlPpx()));
+        try (PackageReader reader = PackageReader.open(job.getSdlPpx())) {
+            int sdlProj = findSDLProj(reader, 1);
+            if (sdlProj >= 0) {
+                try (InputStream is = reader.open(sdlProj)) {
+                    inspectSDLProj(is, result);
+                }
+            }
+
+            List<Object> files = new ArrayList<>();
+            List<Object> memories = new ArrayList<>();
+            List<Object> termbases = new ArrayList<>();
+            for (int entry = 0; entry < reader.size(); entry++) {
+                if (reader.isDirectory(entry)) {
+                    continue;
+                }
+                String name = reader.getName(entry).toLowerCase();
+                if (name.endsWith(EXT_SDLTM)) {
+                    memories.add(inspectTM(job.getOptions(), reader, entry));
+                } else if (name.endsWith(EXT_SDLTB)) {
+                    termbases.add(inspectEntry(reader, entry));
+                } else {
+                    files.add(inspectEntry(reader, entry));
+                }
+            }
+            result.put("files", files);
+            result.put("translationMemories", memories);
+            result.put("termbases", termbases);
+        }
+        return result;
+    }
+
+    /**
+     * Read the package type, name and languages, stopping after the language
+     * directions: the rest of the SDLPROJ can be large.
+     */
+    private static void inspectSDLProj(InputStream is, Map<String, Object> result) throws XMLStreamException {
+        String sourceLanguage = null;
+        List<String> targetLanguages = new ArrayList<>();
+        XMLStreamReader xml = XmlPools.createXMLStreamReader(is);
+        try {
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("PackageProject".equals(xml.getLocalName())) {
+                        result.put("name", xml.getAttributeValue(null, "Name"));
+                        result.put("packageType", xml.getAttributeValue(null, "PackageType"));
+                    } else if ("LanguageDirection".equals(xml.getLocalName())) {
+                        if (sourceLanguage == null) {
+                            sourceLanguage = xml.getAttributeValue(null, "SourceLanguageCode");
+                        }
+                        String targetLanguage = xml.getAttributeValue(null, "TargetLanguageCode");
+                        if (targetLanguage != null && !targetLanguages.contains(targetLanguage)) {
+                            targetLanguages.add(targetLanguage);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && "LanguageDirections".equals(xml.getLocalName())) {
+                    break;
+                }
+            }
+        } finally {
+            xml.close();
+        }
+        result.put("sourceLanguage", sourceLanguage);
+        result.put("targetLanguages", targetLanguages);
+    }
+
+    private static Map<String, Object> inspectEntry(PackageReader reader, int entry) {
+        Map<String, Object> file = new LinkedHashMap<>();
+        file.put("name", reader.getName(entry));
+        file.put("size", reader.getSize(entry));
+        file.put("compressedSize", reader.getCompressedSize(entry));
+        return file;
+    }
+
+    /**
+     * Read the description of the TM from its translation_memories table,
+     * without copying the SDLTM out of the package. A SDLTM the page reader
+     * doesn't support is opened with SQLite instead.
+     */
+    private static Map<String, Object> inspectTM(PackagerOptions options, PackageReader reader, int entry) {
+        Map<String, Object> tm = inspectEntry(reader, entry);
+        try (SQLiteFileReader db = new SQLiteFileReader(() -> reader.open(entry))) {
+            Map<String, Object> row = db.readFirstRow("translation_memories");
+            if (row != null) {
+                tm.put("tmName", row.get("name"));
+                tm.put("sourceLanguage", row.get("source_language"));
+                tm.put("targetLanguage", row.get("target_language"));
+                tm.put("tuCount", row.get("tucount"));
+            }
+            return tm;
+        } catch (IOException e) {
+            LOGGER.log(Level.INFO, "Cannot read the pages of the SDLTM {0}, opening it with SQLite: {1}",
+                    new Object[] { reader.getName(entry), e.getMessage() });
+        }
+
+        try (EmbeddedTM embeddedTM = openEmbeddedTM(options, reader, entry)) {
+            TranslationMemory description = newConverter(options).readTranslationMemory(embeddedTM.connection);
+            tm.put("tmName", description.getName());
+            tm.put("sourceLanguage", description.getSourceLanguage());
+            tm.put("targetLanguage", description.getTargetLanguage());
+            tm.put("tuCount", description.getTuCount());
+        } catch (IOException | SQLException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the SDLTM {0}: {1}",
+                    new Object[] { reader.getName(entry), e.getMessage() });
+            tm.put("error", e.getMessage());
+        }
+        return tm;
+    }
+
+    private static void writeAnalysis(Writer out, Analysis analysis) throws IOException {
+        out.write(analysis.getName());
+        for (Analysis.Band band : Analysis.Band.values()) {
+            out.write("\t" + analysis.getWords(band));
+        }
+        out.write("\t" + analysis.getTotalWords() + "\n");
+    }
+
+    /**
+     * Add a task replacing each SDLXLIFF of the language by its translation.
+     */
+    private static void updateTargets(FileSystem zipfs, String language, File targetDir,
+            List<Callable<Void>> tasks, Map<String, Path> replaced) throws IOException {
+        // We assume the target directories are always flat with sdlxliff?
+        try (Stream<Path> sdlxliffs = Files.find(zipfs.getPath(language), 1,
+                (path, basicFileAttributes) -> path.getFileName().toString().endsWith(".sdlxliff"))) {
+            sdlxliffs.forEach(actionPath -> tasks.add(() -> {
+                Path source = targetDir.toPath().resolve(actionPath.getFileName().toString());
+                try {
+                    Files.copy(source, actionPath, StandardCopyOption.REPLACE_EXISTING);
+                    replaced.put(entryName(actionPath), source);
+                    LOGGER.log(Level.INFO, "Replace {0} > {1}", new Object[] { source, actionPath });
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not replace {0} > {1}", new Object[] { source, actionPath });
+                    LOGGER.log(Level.WARNING, "", e);
+                }
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * @return the first SDLPROJ entry at most maxDepth directories deep, or -1
+     */
+    private static int findSDLProj(PackageReader reader, int maxDepth) {
+        for (int entry : reader.find(name -> name.toLowerCase().endsWith(EXT_SDLPROJ))) {
+            String name = reader.getName(entry);
+            if (name.split("/").length <= maxDepth) {
+                LOGGER.log(Level.INFO, "SDLProj file: {0}", name);
+                return entry;
+            }
+        }
+        LOGGER.log(Level.WARNING, "Cannot find .sdlproj file inside the .sdlppx");
+        return -1;
+    }
+
+    /**
+     * @return the project of the first SDLPROJ at most maxDepth directories
+     *         deep, or null if there is none
+     */
+    private static SDLProject readSDLProj(PackageReader reader, int maxDepth)
+            throws ParserConfigurationException, SAXException, IOException {
+        int sdlProj = findSDLProj(reader, maxDepth);
+        if (sdlProj < 0) {
+            return null;
+        }
+        try (InputStream is = reader.open(sdlProj)) {
+            return parseSDLProj(is);
+        }
+    }
+
+    /**
+     * @return the SDLXLIFF entries of the language directory, at most maxDepth
+     *         directories below it, as {@link Files#find} would
+     */
+    private static int[] findSDLXLIFF(PackageReader reader, String language, int maxDepth) {
+        String prefix = language + "/";
+        return reader.find(name -> name.startsWith(prefix) && name.toLowerCase().endsWith(EXT_SDLXLIFF)
+                && name.split("/").length - 1 <= maxDepth);
+    }
+
+    private static String fileName(String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the URI of the entry, the same as the zip file system one
+     */
+    private static String entryURI(PackageReader reader, int entry) {
+        return "jar:" + reader.getFile().toUri() + "!/" + reader.getName(entry);
+    }
+
+    private static Path findSDLProj(FileSystem zipfs, int maxDepth) throws IOException {
+        try (Stream<Path> sdlProjStream = Files.find(zipfs.getRootDirectories().iterator().next(), maxDepth,
+                (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLPROJ))) {
+            Optional<Path> projPath = sdlProjStream.findFirst();
+            if (!projPath.isPresent()) {
+                LOGGER.log(Level.WARNING, "Cannot find .sdlproj file inside the .sdlppx");
+                return null;
+            }
+            LOGGER.log(Level.INFO, "SDLProj file: {0}", projPath.get());
+            return projPath.get();
+        }
+    }
+
+    /** The target languages and the document of a SDLPROJ. */
+    private static final class SDLProject {
+        private final List<String> targetLanguages;
+        private final Document document;
+
+        SDLProject(List<String> targetLanguages, Document document) {
+            this.targetLanguages = targetLanguages;
+            this.document = document;
+        }
+    }
+
+    /**
+     * @return the project, or null if the SDLPROJ cannot be read
+     */
+    private static SDLProject parseSDLProj(final Path sdlProj) throws ParserConfigurationException, SAXException {
+        // Important, the DocumentBuilder must be created with an InputStream,
+        // otherwise
+        // the zip can't be updated as the stream is not explicitely closed.
+        try (InputStream is = Files.newInputStream(sdlProj, StandardOpenOption.READ)) {
+            return parseSDLProj(is);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static SDLProject parseSDLProj(InputStream is)
+            throws ParserConfigurationException, SAXException, IOException {
+        Document sdlProjDoc = XmlPools.documentBuilder().parse(is);
+
+        // /PackageProject/LanguageDirections/LanguageDirection/@TargetLanguageCode="fr-FR"
+        List<String> targetLanguages = new ArrayList<>();
+        NodeList languageDirections = ((Element) ((Element) sdlProjDoc.getElementsByTagName("PackageProject")
+                .item(0)).getElementsByTagName("LanguageDirections").item(0))
+                        .getElementsByTagName("LanguageDirection");
+        for (int i = 0; i < languageDirections.getLength(); i++) {
+            String targetLanguage = ((Element) languageDirections.item(i)).getAttribute("TargetLanguageCode");
+            if (!targetLanguages.contains(targetLanguage)) {
+                targetLanguages.add(targetLanguage);
+            }
+        }
+
+        LOGGER.log(Level.INFO, "Target Languages: {0}", targetLanguages);
+        return new SDLProject(targetLanguages, sdlProjDoc);
+    }
+
+    /**
+     * Change the package type of the SDLPROJ to ReturnPackage.
+     *
+     * @return true if the SDLPROJ was updated, false if it was already a
+     *         return package
+     */
+    private static boolean markReturnPackage(final Path sdlProj, SDLProject project, Path patchedSdlProj)
+            throws TransformerException, IOException {
+        final Node attrPackageType = project.document.getDocumentElement().getAttributeNode(ATTRIBUTE_PACKAGE_TYPE);
+        final PackageTypes packageType = PackageTypes.valueOf(attrPackageType.getTextContent());
+        switch (packageType) {
+        case ProjectPackage:
+            LOGGER.info("This is a project package. Changing to ReturnPackage");
+            attrPackageType.setNodeValue(PackageTypes.ReturnPackage.toString());
+            updateDoc(sdlProj, project.document, patchedSdlProj);
+            return true;
+
+        case ReturnPackage:
+            LOGGER.info("This is a return package. Nothing to do.");
+            break;
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the document to the SDLPROJ, through a temporary file kept for the
+     * verification of the package.
+     */
+    private static void updateDoc(final Path sdlProj, final Document doc, Path tmpSdlProj)
+            throws IOException, TransformerException {
+        // write the content into xml file
+        Transformer transformer = XmlPools.transformer();
+
+        // https://stackoverflow.com/questions/32353423/can-a-jar-file-be-updated-programmatically-without-rewriting-the-whole-file#32944829
+        try (FileChannel channel = FileChannel.open(tmpSdlProj, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING); OutputStream cos = Channels.newOutputStream(channel)) {
+            StreamResult result = new StreamResult(cos);
+            transformer.transform(new DOMSource(doc), result);
+
+            cos.close();
+        }
+
+        Files.copy(tmpSdlProj, sdlProj, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
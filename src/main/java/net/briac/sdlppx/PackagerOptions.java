@@ -0,0 +1,321 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.nio.file.Path;
+
+/**
+ * Immutable options of a packager job, created with a {@link Builder}.
+ *
+ * @author briac
+ *
+ */
+public final class PackagerOptions {
+
+    /** The options of the command line without any flag. */
+    public static final PackagerOptions DEFAULTS = builder().build();
+
+    private final boolean noGlossary;
+    private final boolean noTMX;
+    private final boolean noSource;
+    private final TMFilter tmFilter;
+    private final long inMemoryLimit;
+    private final Path tmpDir;
+    private final boolean mergeTM;
+    private final long dedupMemory;
+    private final long segmentCacheSize;
+    private final boolean validate;
+    private final boolean verify;
+    private final boolean concordanceIndex;
+    private final int checkpointInterval;
+    private final boolean compress;
+    private final TMSharding tmSharding;
+    private final boolean tmMetadata;
+    private final boolean incrementalGlossary;
+
+    private PackagerOptions(Builder builder) {
+        noGlossary = builder.noGlossary;
+        noTMX = builder.noTMX;
+        noSource = builder.noSource;
+        tmFilter = new TMFilter(builder.tmFilter);
+        inMemoryLimit = builder.inMemoryLimit;
+        tmpDir = builder.tmpDir;
+        mergeTM = builder.mergeTM;
+        dedupMemory = builder.dedupMemory;
+        segmentCacheSize = builder.segmentCacheSize;
+        validate = builder.validate;
+        verify = builder.verify;
+        concordanceIndex = builder.concordanceIndex;
+        checkpointInterval = builder.checkpointInterval;
+        compress = builder.compress;
+        tmSharding = new TMSharding(builder.tmSharding);
+        tmMetadata = builder.tmMetadata;
+        incrementalGlossary = builder.incrementalGlossary;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder initialized with these options
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.noGlossary = noGlossary;
+        builder.noTMX = noTMX;
+        builder.noSource = noSource;
+        builder.tmFilter = new TMFilter(tmFilter);
+        builder.inMemoryLimit = inMemoryLimit;
+        builder.tmpDir = tmpDir;
+        builder.mergeTM = mergeTM;
+        builder.dedupMemory = dedupMemory;
+        builder.segmentCacheSize = segmentCacheSize;
+        builder.validate = validate;
+        builder.verify = verify;
+        builder.concordanceIndex = concordanceIndex;
+        builder.checkpointInterval = checkpointInterval;
+        builder.compress = compress;
+        builder.tmSharding = new TMSharding(tmSharding);
+        builder.tmMetadata = tmMetadata;
+        builder.incrementalGlossary = incrementalGlossary;
+        return builder;
+    }
+
+    public boolean isNoGlossary() {
+        return noGlossary;
+    }
+
+    public boolean isNoTMX() {
+        return noTMX;
+    }
+
+    public boolean isNoSource() {
+        return noSource;
+    }
+
+    /**
+     * TMFilter is mutable: the options keep their own copy, and return a new
+     * one, so the jobs sharing them can't change each other's filter.
+     */
+    public TMFilter getTmFilter() {
+        return new TMFilter(tmFilter);
+    }
+
+    public long getInMemoryLimit() {
+        return inMemoryLimit;
+    }
+
+    public Path getTmpDir() {
+        return tmpDir;
+    }
+
+    public boolean isMergeTM() {
+        return mergeTM;
+    }
+
+    public long getDedupMemory() {
+        return dedupMemory;
+    }
+
+    public long getSegmentCacheSize() {
+        return segmentCacheSize;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public boolean isConcordanceIndex() {
+        return concordanceIndex;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @return a copy of the sharding, like the filter
+     */
+    public TMSharding getTmSharding() {
+        return new TMSharding(tmSharding);
+    }
+
+    public boolean isTmMetadata() {
+        return tmMetadata;
+    }
+
+    public boolean isIncrementalGlossary() {
+        return incrementalGlossary;
+    }
+
+    public static final class Builder {
+        private boolean noGlossary = false;
+        private boolean noTMX = false;
+        private boolean noSource = false;
+        private TMFilter tmFilter = new TMFilter();
+        private long inMemoryLimit = 0;
+        private Path tmpDir;
+        private boolean mergeTM = false;
+        private long dedupMemory = 64L * 1024 * 1024;
+        private long segmentCacheSize = SDLTMConverter.DEFAULT_SEGMENT_CACHE_SIZE;
+        private boolean validate = true;
+        private boolean verify = true;
+        private boolean concordanceIndex = false;
+        private int checkpointInterval = 0;
+        private boolean compress = false;
+        private TMSharding tmSharding = new TMSharding();
+        private boolean tmMetadata = false;
+        private boolean incrementalGlossary = false;
+
+        private Builder() {
+        }
+
+        /** Skip the SDLTB glossary extraction. */
+        public Builder noGlossary(boolean noGlossary) {
+            this.noGlossary = noGlossary;
+            return this;
+        }
+
+        /** Skip the SDLTM memory extraction. */
+        public Builder noTMX(boolean noTMX) {
+            this.noTMX = noTMX;
+            return this;
+        }
+
+        /** Skip the SDLXLIFF sources extraction. */
+        public Builder noSource(boolean noSource) {
+            this.noSource = noSource;
+            return this;
+        }
+
+        public Builder tmFilter(TMFilter tmFilter) {
+            this.tmFilter = tmFilter == null ? new TMFilter() : tmFilter;
+            return this;
+        }
+
+        /**
+         * Maximum size (in bytes) of the embedded SDLTM to load in memory
+         * rather than in a temporary file. 0 to always use a temporary file.
+         */
+        public Builder inMemoryLimit(long inMemoryLimit) {
+            this.inMemoryLimit = inMemoryLimit;
+            return this;
+        }
+
+        /**
+         * Directory for the temporary files (a local or tmpfs scratch space is
+         * best), or null for the system default.
+         */
+        public Builder tmpDir(Path tmpDir) {
+            this.tmpDir = tmpDir;
+            return this;
+        }
+
+        /** Merge all the SDLTM in one TMX per language pair. */
+        public Builder mergeTM(boolean mergeTM) {
+            this.mergeTM = mergeTM;
+            return this;
+        }
+
+        /**
+         * Memory budget (in bytes) of the duplicate TU detection when merging
+         * the SDLTM.
+         */
+        public Builder dedupMemory(long dedupMemory) {
+            this.dedupMemory = dedupMemory;
+            return this;
+        }
+
+        /**
+         * Memory budget (in bytes) of the cache of the decoded segments of
+         * each SDLTM, 0 to decode every segment.
+         */
+        public Builder segmentCacheSize(long segmentCacheSize) {
+            this.segmentCacheSize = segmentCacheSize;
+            return this;
+        }
+
+        /** Check the translated SDLXLIFF before creating the return package. */
+        public Builder validate(boolean validate) {
+            this.validate = validate;
+            return this;
+        }
+
+        /** Check the CRC of every entry of the return package once written. */
+        public Builder verify(boolean verify) {
+            this.verify = verify;
+            return this;
+        }
+
+        /** Build a concordance index next to each exported TMX. */
+        public Builder concordanceIndex(boolean concordanceIndex) {
+            this.concordanceIndex = concordanceIndex;
+            return this;
+        }
+
+        /**
+         * Commit each TMX every checkpointInterval TU so an interrupted export
+         * can be resumed, 0 to write the TMX in one go.
+         */
+        public Builder checkpointInterval(int checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        /** Write gzipped TMX and glossaries, compressed in parallel. */
+        public Builder compress(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /** Split each exported TMX in several shards. */
+        public Builder tmSharding(TMSharding tmSharding) {
+            this.tmSharding = tmSharding == null ? new TMSharding() : tmSharding;
+            return this;
+        }
+
+        /** Export the dates, users, usage counts and field values of the TU. */
+        public Builder tmMetadata(boolean tmMetadata) {
+            this.tmMetadata = tmMetadata;
+            return this;
+        }
+
+        /**
+         * Keep the concepts read from each SDLTB in a state file next to the
+         * glossary, and only parse the concepts changed since the last
+         * extraction.
+         */
+        public Builder incrementalGlossary(boolean incrementalGlossary) {
+            this.incrementalGlossary = incrementalGlossary;
+            return this;
+        }
+
+        public PackagerOptions build() {
+            return new PackagerOptions(this);
+        }
+    }
+
+}
@@ -0,0 +1,543 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP service running the packager in a warm JVM.
+ *
+ * <pre>
+ * POST   /jobs?action=extract&amp;name=x.sdlppx  submit a package (request body), 202 or 429 if the queue is full
+ * GET    /jobs                               all the jobs
+ * GET    /jobs/{id}                          status and timings of a job
+ * POST   /jobs/{id}/return                   create the return package, once the targets are uploaded
+ * POST   /jobs/{id}/extract                  extract the package again
+ * GET    /jobs/{id}/files                    files of the project directory
+ * GET    /jobs/{id}/files/{path}             download a file of the project directory
+ * PUT    /jobs/{id}/files/{path}             upload a file (e.g. target/doc.sdlxliff) to the project directory
+ * GET    /jobs/{id}/package                  download the package (the SDLRPX once returned)
+ * DELETE /jobs/{id}                          delete the job and its files
+ * GET    /metrics                            queue and job counters
+ * </pre>
+ *
+ * Each job has its own directory in the work directory, with the package and
+ * the project directory. The jobs run on a bounded pool with a bounded queue,
+ * a job submitted when the queue is full gets a 429 response.
+ *
+ * @author briac
+ *
+ */
+public class PackagerServer {
+    private static final Logger LOGGER = Logger.getLogger(PackagerServer.class.getName());
+
+    private static final String PROJECT_DIR = "project";
+    private static final String EXT_SDLPPX = ".sdlppx";
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    public enum Action {
+        EXTRACT, RETURN
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private static class Job {
+        private final String id;
+        private final Path dir;
+        private volatile Path packageFile;
+        private volatile Action action;
+        private volatile PackagerOptions options;
+        private volatile Status status;
+        private volatile String error;
+        private volatile long submitted;
+        private volatile long started;
+        private volatile long finished;
+        // Uploads in progress, guarded by the job
+        private int uploads = 0;
+
+        Job(String id, Path dir, Path packageFile) {
+            this.id = id;
+            this.dir = dir;
+            this.packageFile = packageFile;
+        }
+
+        Path projectDir() {
+            return dir.resolve(PROJECT_DIR);
+        }
+
+        boolean isActive() {
+            return status == Status.QUEUED || status == Status.RUNNING;
+        }
+
+        /**
+         * @return why the job can't be run, deleted or uploaded to, or null
+         *         if it can, the caller holding the job lock
+         */
+        String busy() {
+            if (isActive()) {
+                return "Job " + id + " is " + status;
+            }
+            if (uploads > 0) {
+                return "Job " + id + " has uploads in progress";
+            }
+            return null;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("id", id);
+            map.put("package", packageFile.getFileName().toString());
+            map.put("action", action == null ? null : action.name().toLowerCase());
+            map.put("status", status);
+            map.put("error", error);
+            map.put("submitted", submitted);
+            map.put("queueMs", started == 0 ? null : started - submitted);
+            map.put("runMs", finished == 0 ? null : finished - started);
+            return map;
+        }
+    }
+
+    private final Path workDir;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final ThreadPoolExecutor jobExecutor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    // All the jobs run on the same engine
+    private final PackagerEngine engine;
+    private volatile PackagerOptions options = PackagerOptions.DEFAULTS;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong doneCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param workDir
+     *            directory of the job files
+     * @param address
+     *            address to listen to, port 0 for any free port
+     * @param maxJobs
+     *            number of jobs running concurrently
+     * @param maxQueued
+     *            number of jobs waiting for a thread before refusing new ones
+     */
+    public PackagerServer(Path workDir, InetSocketAddress address, int maxJobs, int maxQueued) throws IOException {
+        this(workDir, address, maxJobs, maxQueued, new PackagerEngine());
+    }
+
+    PackagerServer(Path workDir, InetSocketAddress address, int maxJobs, int maxQueued, PackagerEngine engine)
+            throws IOException {
+        this.workDir = workDir;
+        this.engine = engine;
+        Files.createDirectories(workDir);
+        jobExecutor = new ThreadPoolExecutor(maxJobs, maxJobs, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)), new ThreadPoolExecutor.AbortPolicy());
+        requestExecutor = Executors.newFixedThreadPool(Math.max(4, maxJobs));
+        server = HttpServer.create(address, 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/jobs", this::handle);
+        server.createContext("/metrics", this::handle);
+    }
+
+    /**
+     * Options of the jobs submitted from now on.
+     */
+    public void setOptions(PackagerOptions options) {
+        this.options = options == null ? PackagerOptions.DEFAULTS : options;
+    }
+
+    public void start() {
+        server.start();
+        StartupTiming.firstOutput("HTTP service");
+        LOGGER.log(Level.INFO, "Listening on http://{0}:{1,number,#}/jobs, jobs in {2}",
+                new Object[] { getAddress().getHostString(), getAddress().getPort(), workDir });
+    }
+
+    /**
+     * Stop accepting requests and wait for the running jobs.
+     */
+    public void stop() throws InterruptedException {
+        server.stop(1);
+        jobExecutor.shutdown();
+        jobExecutor.awaitTermination(1, TimeUnit.HOURS);
+        requestExecutor.shutdownNow();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getRawPath().replaceAll("^/+|/+$", "").split("/", 4);
+
+            if (path[0].equals("metrics")) {
+                sendJson(exchange, 200, metrics());
+                return;
+            }
+            if (path.length == 1) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    sendJson(exchange, 200, jobs.values().stream().sorted(Comparator.comparingLong(j -> j.submitted))
+                            .map(Job::toMap).collect(Collectors.toList()));
+                } else {
+                    sendError(exchange, 405, "Method not allowed");
+                }
+                return;
+            }
+
+            Job job = jobs.get(path[1]);
+            if (job == null) {
+                sendError(exchange, 404, "Unknown job " + path[1]);
+                return;
+            }
+            String resource = path.length > 2 ? path[2] : "";
+            String file = path.length > 3 ? URLDecoder.decode(path[3], "UTF-8") : null;
+
+            if (resource.isEmpty() && method.equals("GET")) {
+                sendJson(exchange, 200, job.toMap());
+            } else if (resource.isEmpty() && method.equals("DELETE")) {
+                delete(exchange, job);
+            } else if ((resource.equals("extract") || resource.equals("return")) && method.equals("POST")) {
+                run(exchange, job, Action.valueOf(resource.toUpperCase()));
+            } else if (resource.equals("package") && method.equals("GET")) {
+                sendFile(exchange, job.packageFile);
+            } else if (resource.equals("files") && file == null && method.equals("GET")) {
+                sendJson(exchange, 200, listFiles(job.projectDir()));
+            } else if (resource.equals("files") && file != null && method.equals("GET")) {
+                Path target = resolve(job, file);
+                if (target == null || !Files.isRegularFile(target)) {
+                    sendError(exchange, 404, "No file " + file);
+                } else {
+                    sendFile(exchange, target);
+                }
+            } else if (resource.equals("files") && file != null && method.equals("PUT")) {
+                upload(exchange, job, file);
+            } else {
+                sendError(exchange, 404, "Not found");
+            }
+        } catch (RuntimeException | IOException e) {
+            LOGGER.log(Level.WARNING, "Error handling " + exchange.getRequestURI(), e);
+            sendError(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        Action action;
+        try {
+            action = Action.valueOf(query.getOrDefault("action", "extract").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "Unknown action " + query.get("action"));
+            return;
+        }
+        // Refuse early, before reading the whole package
+        if (isFull()) {
+            reject(exchange);
+            return;
+        }
+
+        String name = packageName(query.getOrDefault("name", "package" + EXT_SDLPPX));
+        if (name == null) {
+            sendError(exchange, 400, "Invalid name " + query.get("name"));
+            return;
+        }
+        String id = UUID.randomUUID().toString();
+        Path dir = workDir.resolve(id);
+        Files.createDirectories(dir.resolve(PROJECT_DIR));
+        Path packageFile = dir.resolve(name);
+        try (InputStream is = exchange.getRequestBody()) {
+            FileUtils.copy(is, packageFile);
+        } catch (IOException | RuntimeException e) {
+            // Nothing refers to the job yet
+            deleteRecursively(dir);
+            throw e;
+        }
+
+        Job job = new Job(id, dir, packageFile);
+        jobs.put(id, job);
+        if (!enqueue(job, action)) {
+            jobs.remove(id);
+            deleteRecursively(dir);
+            reject(exchange);
+            return;
+        }
+        exchange.getResponseHeaders().set("Location", "/jobs/" + id);
+        sendJson(exchange, 202, job.toMap());
+    }
+
+    private void run(HttpExchange exchange, Job job, Action action) throws IOException {
+        synchronized (job) {
+            String busy = job.busy();
+            if (busy != null) {
+                sendError(exchange, 409, busy);
+                return;
+            }
+            if (!enqueue(job, action)) {
+                reject(exchange);
+                return;
+            }
+        }
+        sendJson(exchange, 202, job.toMap());
+    }
+
+    private boolean enqueue(Job job, Action action) {
+        Status previous = job.status;
+        job.action = action;
+        job.status = Status.QUEUED;
+        job.error = null;
+        // The options when the job is submitted, whatever the changes after
+        job.options = options;
+        job.submitted = System.currentTimeMillis();
+        job.started = 0;
+        job.finished = 0;
+        try {
+            jobExecutor.execute(() -> execute(job));
+            submittedCount.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            job.status = previous;
+            return false;
+        }
+    }
+
+    private void execute(Job job) {
+        job.started = System.currentTimeMillis();
+        job.status = Status.RUNNING;
+        try {
+            PackageJob packageJob = new PackageJob(job.packageFile, job.projectDir(), job.options);
+            if (job.action == Action.EXTRACT) {
+                if (!engine.extract(packageJob)) {
+                    throw new IOException("Some files could not be extracted, see the server log");
+                }
+            } else if (engine.createReturnPackage(packageJob)) {
+                job.packageFile = job.packageFile.resolveSibling(
+                        job.packageFile.getFileName().toString().replaceAll("\\.sdlppx$", ".sdlrpx"));
+            }
+            job.status = Status.DONE;
+            doneCount.incrementAndGet();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Job " + job.id + " failed", e);
+            job.error = e.getLocalizedMessage();
+            job.status = Status.FAILED;
+            failedCount.incrementAndGet();
+        } finally {
+            job.finished = System.currentTimeMillis();
+        }
+    }
+
+    private boolean isFull() {
+        return jobExecutor.getQueue().remainingCapacity() == 0
+                && jobExecutor.getActiveCount() >= jobExecutor.getMaximumPoolSize();
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        rejectedCount.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+        sendError(exchange, 429, "Too many jobs, retry later");
+    }
+
+    private void upload(HttpExchange exchange, Job job, String file) throws IOException {
+        Path target = resolve(job, file);
+        if (target == null) {
+            sendError(exchange, 400, "Invalid path " + file);
+            return;
+        }
+        // The job can't start while the file is written, the copy is outside
+        // of the lock so that a slow upload doesn't block the other requests
+        synchronized (job) {
+            if (job.isActive()) {
+                sendError(exchange, 409, job.busy());
+                return;
+            }
+            job.uploads++;
+        }
+        long size;
+        try {
+            Files.createDirectories(target.getParent());
+            try (InputStream is = exchange.getRequestBody()) {
+                size = FileUtils.copy(is, target);
+            }
+        } finally {
+            synchronized (job) {
+                job.uploads--;
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("file", file);
+        result.put("size", size);
+        sendJson(exchange, 201, result);
+    }
+
+    private void delete(HttpExchange exchange, Job job) throws IOException {
+        synchronized (job) {
+            String busy = job.busy();
+            if (busy != null) {
+                sendError(exchange, 409, busy);
+                return;
+            }
+            jobs.remove(job.id);
+        }
+        deleteRecursively(job.dir);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    /**
+     * @return the file of the project directory, or null if the path goes
+     *         outside of it
+     */
+    private static Path resolve(Job job, String file) {
+        Path projectDir = job.projectDir().toAbsolutePath().normalize();
+        Path target;
+        try {
+            target = projectDir.resolve(file).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return target.startsWith(projectDir) && !target.equals(projectDir) ? target : null;
+    }
+
+    /**
+     * @return the file name of the uploaded package, or null if the name is
+     *         not a valid file name
+     */
+    private static String packageName(String name) {
+        Path fileName;
+        try {
+            fileName = Paths.get(name).getFileName();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (fileName == null || fileName.toString().isEmpty()) {
+            return null;
+        }
+        String packageName = fileName.toString();
+        return packageName.toLowerCase().endsWith(EXT_SDLPPX) ? packageName : packageName + EXT_SDLPPX;
+    }
+
+    private static List<String> listFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).map(f -> dir.relativize(f).toString().replace('\\', '/'))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("running", jobExecutor.getActiveCount());
+        metrics.put("queued", jobExecutor.getQueue().size());
+        metrics.put("maxRunning", jobExecutor.getMaximumPoolSize());
+        metrics.put("maxQueued", jobExecutor.getQueue().size() + jobExecutor.getQueue().remainingCapacity());
+        metrics.put("submitted", submittedCount.get());
+        metrics.put("rejected", rejectedCount.get());
+        metrics.put("done", doneCount.get());
+        metrics.put("failed", failedCount.get());
+        metrics.put("jobs", jobs.size());
+        return metrics;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = Json.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        sendJson(exchange, code, error);
+    }
+
+    private static void sendFile(HttpExchange exchange, Path file) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"" + file.getFileName().toString().replace("\"", "") + "\"");
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream os = exchange.getResponseBody()) {
+            Files.copy(file, os);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toCollection(ArrayList::new));
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing its blocks in parallel.
+ *
+ * The data is cut in blocks, each block being compressed on a shared pool as
+ * an independent gzip member. The members are written in order, and the
+ * concatenation of gzip members is itself a gzip file (RFC 1952) that the
+ * standard tools and {@link java.util.zip.GZIPInputStream} read as one.
+ *
+ * {@link #flush()} ends the current member, so the data written so far can be
+ * decompressed (the output can be truncated after a flush and appended to
+ * later).
+ *
+ * @author briac
+ *
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+
+    public static final String EXT_GZIP = ".gz";
+
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /** Compressed blocks waiting to be written, per stream. */
+    private static final int MAX_PENDING = Math.max(2, 2 * ParallelTasks.CPU_COUNT);
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private static class Pool {
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(ParallelTasks.CPU_COUNT, r -> {
+            Thread thread = new Thread(r, "gzip-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final int blockSize;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int length = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int blockSize) {
+        super(out);
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == blockSize) {
+            submit();
+        }
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == blockSize) {
+                submit();
+            }
+            int n = Math.min(len, blockSize - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compress the current block, writing the members already compressed, or
+     * waiting for the oldest one when too many blocks are pending.
+     */
+    private void submit() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        byte[] data = block;
+        int size = length;
+        pending.add(Pool.EXECUTOR.submit(() -> compress(data, size)));
+        block = new byte[blockSize];
+        length = 0;
+        empty = false;
+
+        while (!pending.isEmpty() && (pending.size() >= MAX_PENDING || pending.peek().isDone())) {
+            writeMember(pending.poll());
+        }
+    }
+
+    private void writeMember(Future<byte[]> member) throws IOException {
+        try {
+            out.write(member.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Error while compressing", e.getCause());
+        }
+    }
+
+    private void drain() throws IOException {
+        submit();
+        while (!pending.isEmpty()) {
+            writeMember(pending.poll());
+        }
+    }
+
+    /**
+     * @return the block as a complete gzip member
+     */
+    static byte[] compress(byte[] data, int length) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+        member.write(HEADER, 0, HEADER.length);
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            member.write(buffer, 0, n);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(member, (int) crc.getValue());
+        writeInt(member, length);
+        return member.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, int value) {
+        os.write(value);
+        os.write(value >>> 8);
+        os.write(value >>> 16);
+        os.write(value >>> 24);
+    }
+
+    /**
+     * Compress and write all the data written so far, ending the current
+     * member.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+            if (empty) {
+                // A gzip file holds at least one member
+                out.write(compress(block, 0));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Run independent tasks (one per language, per file...) concurrently.
+ *
+ * @author briac
+ *
+ */
+public final class ParallelTasks {
+
+    public static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * Run all the tasks on at most maxThreads threads and wait for them.
+     *
+     * @return the results, in the order of the tasks
+     * @throws Exception
+     *             the first task failure, with the other ones as suppressed
+     *             exceptions
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int maxThreads) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.isEmpty()) {
+            return results;
+        }
+        if (tasks.size() == 1) {
+            results.add(tasks.get(0).call());
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxThreads, tasks.size())));
+        try {
+            return collect(executor.invokeAll(tasks));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static <T> List<T> collect(List<Future<T>> futures) throws Exception {
+        List<T> results = new ArrayList<>(futures.size());
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (failure == null) {
+                    failure = (Exception) cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+                results.add(null);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+}
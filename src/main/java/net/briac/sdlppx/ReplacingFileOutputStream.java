@@ -0,0 +1,219 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Output stream to a file that is only replaced if its content changed, once
+ * the whole output it belongs to is written.
+ *
+ * The data is written to a hidden temporary file next to the target. When
+ * the batch of the stream is committed, if the target already has the same
+ * size and bytes, the temporary file is deleted and the target keeps its
+ * modification time, so OmegaT or a file synchronization tool see no change.
+ * Otherwise the temporary file is moved over the target atomically.
+ *
+ * @author briac
+ *
+ */
+public class ReplacingFileOutputStream extends FilterOutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplacingFileOutputStream.class.getName());
+
+    /**
+     * The files of one output, which replace their targets together once it
+     * is complete. Closing a batch that was not committed, e.g. because the
+     * export failed, deletes the temporary files: the targets are left as they
+     * were.
+     */
+    public static final class Batch implements Closeable {
+        private final List<ReplacingFileOutputStream> files = new ArrayList<>();
+        private final List<File> staleDirs = new ArrayList<>();
+        private final List<Pattern> staleNames = new ArrayList<>();
+        private boolean committed = false;
+
+        private synchronized void add(ReplacingFileOutputStream file) {
+            files.add(file);
+        }
+
+        /**
+         * On commit, delete the files and directories of dir whose name
+         * matches and that the batch did not write: the outputs of a previous
+         * export that this one no longer produces.
+         */
+        public synchronized void deleteStale(File dir, Pattern names) {
+            staleDirs.add(dir);
+            staleNames.add(names);
+        }
+
+        /**
+         * Replace the targets whose content changed. All the streams of the
+         * batch must be closed.
+         */
+        public synchronized void commit() throws IOException {
+            for (ReplacingFileOutputStream file : files) {
+                if (!file.closed) {
+                    throw new IOException(file.target + " is still being written");
+                }
+            }
+            committed = true;
+            Set<Path> written = new HashSet<>();
+            for (ReplacingFileOutputStream file : files) {
+                file.replace();
+                Path target = file.target.toAbsolutePath();
+                written.add(target);
+                written.add(target.getParent());
+            }
+            for (int i = 0; i < staleDirs.size(); i++) {
+                Pattern names = staleNames.get(i);
+                File[] stale = staleDirs.get(i).listFiles((dir, name) -> names.matcher(name).matches());
+                if (stale == null) {
+                    continue;
+                }
+                for (File file : stale) {
+                    if (!written.contains(file.toPath().toAbsolutePath())) {
+                        LOGGER.log(Level.INFO, "Deleting {0}, not written by this export", file);
+                        delete(file.toPath());
+                    }
+                }
+            }
+        }
+
+        private static void delete(Path file) throws IOException {
+            if (Files.isDirectory(file)) {
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(file)) {
+                    for (Path child : children) {
+                        delete(child);
+                    }
+                }
+            }
+            Files.deleteIfExists(file);
+        }
+
+        /**
+         * Delete the temporary files left, the targets are only replaced by
+         * {@link #commit()}.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (!committed && !files.isEmpty()) {
+                LOGGER.log(Level.WARNING, "Output not complete, {0} files left unchanged", files.size());
+            }
+            IOException failure = null;
+            for (ReplacingFileOutputStream file : files) {
+                try {
+                    file.discard();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            files.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private final Path target;
+    private final Path tmpFile;
+    private long size = 0;
+    private volatile boolean closed = false;
+    private boolean changed = false;
+
+    public ReplacingFileOutputStream(File target, Batch batch) throws IOException {
+        super(null);
+        this.target = target.toPath();
+        this.tmpFile = FileUtils.tmpSibling(this.target);
+        this.out = Files.newOutputStream(tmpFile);
+        batch.add(this);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Close the temporary file, the target is replaced when the batch is
+     * committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        out.close();
+        closed = true;
+    }
+
+    /**
+     * Replace the target if its content changed.
+     */
+    private void replace() throws IOException {
+        if (Files.isRegularFile(target) && Files.size(target) == size && FileUtils.sameContent(tmpFile, target)) {
+            LOGGER.log(Level.INFO, "{0} is unchanged", target);
+        } else {
+            FileUtils.replace(tmpFile, target);
+            changed = true;
+        }
+    }
+
+    private void discard() throws IOException {
+        try {
+            if (!closed) {
+                out.close();
+                closed = true;
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * @return true if the target was written, false if it already had the
+     *         same content or the batch was not committed
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+}
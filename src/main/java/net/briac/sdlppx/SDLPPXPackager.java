@@ -18,38 +18,18 @@ package net.briac.sdlppx;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -57,10 +37,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 /**
  * Convert a Trados SDLPPX Project Package to SDLRPX Return Package.
@@ -72,28 +48,21 @@ import org.xml.sax.SAXException;
  */
 public class SDLPPXPackager {
 
-    private static final String TARGET_DIR = "target";
-    private static final String SOURCE_DIR = "source";
-    private static final String TM_DIR = "tm";
-    private static final String GLOSSARY_DIR = "glossary";
+    private static final String TM_DIR = PackagerEngine.TM_DIR;
+    private static final String GLOSSARY_DIR = PackagerEngine.GLOSSARY_DIR;
     private static final String HELP_LINE = "SDLPPXPackager [options] --project-dir project_dir [sdlppx|sdltm|sdltb]";
 
-    private static final String EXT_SDLPROJ = ".sdlproj";
-    private static final String EXT_SDLTM = ".sdltm";
-    private static final String EXT_SDLTB = ".sdltb";
-    private static final String EXT_SDLXLIFF = ".sdlxliff";
+    // The engine has no state, all the packagers share it
+    private static final PackagerEngine ENGINE = new PackagerEngine();
 
     private final Path sdlPpx;
-    private String targetLanguage;
-    private Document sdlProjDoc;
-    private boolean noGlossary = false;
-    private boolean noTMX = false;
-    private boolean noSource = false;
+    // Replaced, never changed, by the setters so a running job keeps its
+    // options
+    private volatile PackagerOptions options = PackagerOptions.DEFAULTS;
 
-    private static final String ATTRIBUTE_PACKAGE_TYPE = "PackageType";
-    private static final int MAX_DEPTH = 10;
-
-    private final DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+    private static final int SEARCH_LIMIT = 100;
+    // The sizes given in MB must still fit in a long in bytes
+    private static final long MAX_MB = Long.MAX_VALUE >> 20;
 
     static {
         System.setProperty("java.util.logging.SimpleFormatter.format",
@@ -115,6 +84,8 @@ public class SDLPPXPackager {
     }
 
     public static void main(String[] args) {
+        StartupTiming.mainStarted();
+
         // CLI mode
         Options options = new Options();
         options.addOption("h", "help", false, "print this message");
@@ -125,6 +96,56 @@ public class SDLPPXPackager {
         options.addOption("ng", "no-glossary", false, "skip the SDLTB glossary extraction");
         options.addOption("nt", "no-tm", false, "skip the SDLTM memory extraction");
         options.addOption("ns", "no-source", false, "skip the SDLXLIFF sources extraction");
+        options.addOption(null, "tm-changed-after", true, "only export the TU changed since this date (yyyy-MM-dd)");
+        options.addOption(null, "tm-changed-before", true, "only export the TU changed before this date (yyyy-MM-dd)");
+        options.addOption(null, "tm-user", true, "only export the TU created or changed by this user");
+        options.addOption(null, "tm-attribute", true, "only export the TU with this field value (name=value)");
+        options.addOption(null, "tm-min-length", true,
+                "only export the TU whose source text (without tags) has at least N characters");
+        options.addOption(null, "tm-max-length", true,
+                "only export the TU whose source text (without tags) has at most N characters");
+        options.addOption(null, "tm-metadata", false,
+                "export the dates, users, usage counts and field values of the TU");
+        options.addOption(null, "incremental-glossary", false,
+                "only read the termbase concepts changed since the last extraction");
+        options.addOption(null, "in-memory-limit", true,
+                "load the embedded SDLTM up to this size (in MB) in memory instead of a temporary file");
+        options.addOption(null, "tmp-dir", true, "directory for the temporary files");
+        options.addOption(null, "no-validate", false,
+                "don't check the translated SDLXLIFF before creating the return package");
+        options.addOption(null, "no-verify", false,
+                "don't check the CRC of the entries of the return package once written");
+        options.addOption(null, "verify", false,
+                "check the CRC of all the entries of the package, without extracting it");
+        options.addOption(null, "merge-tm", false,
+                "merge all the SDLTM in one TMX per language pair, without duplicates");
+        options.addOption(null, "dedup-memory", true,
+                "memory (in MB) used to find the duplicates before spilling to disk (default 64)");
+        options.addOption(null, "segment-cache", true,
+                "memory (in MB) of the cache of the decoded TM segments, 0 to disable it (default 16)");
+        options.addOption(null, "term-report", false,
+                "report the glossary terms used in the sources and the forbidden terms used in the targets");
+        options.addOption(null, "stats-only", false,
+                "print the word, character and repetition counts of the package without extracting it");
+        options.addOption(null, "inspect", false,
+                "print the languages, files, TM and termbases of the package as JSON, without extracting it");
+        options.addOption(null, "analyze", false,
+                "word counts by match band of the source segments against the package TM");
+        options.addOption(null, "serve", true,
+                "run as a HTTP service on this port (localhost), the project directory holding the jobs");
+        options.addOption(null, "serve-jobs", true, "number of jobs the service runs concurrently (default 2)");
+        options.addOption(null, "serve-queue", true,
+                "number of jobs waiting before the service refuses new ones (default 16)");
+        options.addOption(null, "index", false, "build a concordance index of the exported TMX");
+        options.addOption(null, "checkpoint", true,
+                "commit the TMX every N TU and resume an interrupted export from the last commit");
+        options.addOption(null, "gzip", false, "write gzipped TMX and glossaries (.tmx.gz, .txt.gz)");
+        options.addOption(null, "shard-tu", true, "split each TMX in shards of N TU");
+        options.addOption(null, "shard-size", true, "split each TMX in shards of this size (in MB)");
+        options.addOption(null, "shard-by", true,
+                "split each TMX in a shard per year, month (of the change date) or value of this field");
+        options.addOption(null, "search", true,
+                "search the concordance indexes of the project directory instead of processing a package");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -137,25 +158,7 @@ public class SDLPPXPackager {
 
         String projectDir = cmd.getOptionValue("p");
         if (args.length == 0 || cmd.hasOption("G")) {
-            SDLPPXPackagerWindow win = new SDLPPXPackagerWindow();
-
-            if (cmd.hasOption("p")) {
-                win.targetDir.setText(projectDir);
-            }
-            if (!cmd.getArgList().isEmpty()) {
-                win.sdlppxFile.setText(cmd.getArgList().get(0));
-            }
-            if (cmd.hasOption("ng")) {
-                win.cbSkipGlossary.setSelected(true);
-            }
-            if (cmd.hasOption("nt")) {
-                win.cbSkipTM.setSelected(true);
-            }
-            if (cmd.hasOption("ns")) {
-                win.cbSkipSources.setSelected(true);
-            }
-
-            win.setVisible(true);
+            startGui(cmd);
             return;
         }
 
@@ -165,12 +168,68 @@ public class SDLPPXPackager {
             System.exit(2);
         }
 
+        TMFilter tmFilter = null;
+        try {
+            tmFilter = parseTMFilter(cmd);
+        } catch (ParseException | RuntimeException e) {
+            System.err.println("Invalid TM filter: " + e.getLocalizedMessage());
+            formatter.printHelp(HELP_LINE, options);
+            System.exit(4);
+        }
+
+        PackagerOptions packagerOptions = null;
+        try {
+            packagerOptions = parseOptions(cmd, tmFilter);
+        } catch (ParseException e) {
+            System.err.println(e.getLocalizedMessage());
+            formatter.printHelp(HELP_LINE, options);
+            System.exit(4);
+        }
+
+        if (cmd.hasOption("search")) {
+            if (!cmd.hasOption("p")) {
+                System.err.println("Missing required 'project-dir' parameter.");
+                formatter.printHelp(HELP_LINE, options);
+                System.exit(4);
+            }
+            try {
+                search(new File(projectDir), cmd.getOptionValue("search"));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error searching the concordance index", e);
+                System.exit(8);
+            }
+            return;
+        }
+
+        if (cmd.hasOption("serve")) {
+            if (!cmd.hasOption("p")) {
+                System.err.println("Missing required 'project-dir' parameter.");
+                formatter.printHelp(HELP_LINE, options);
+                System.exit(4);
+            }
+            int port = 0;
+            int jobs = 0;
+            int queue = 0;
+            try {
+                port = (int) parseNumber(cmd, "serve", 0, 0, 65535);
+                jobs = (int) parseNumber(cmd, "serve-jobs", 2, 1, Integer.MAX_VALUE);
+                queue = (int) parseNumber(cmd, "serve-queue", 16, 1, Integer.MAX_VALUE);
+            } catch (ParseException e) {
+                System.err.println(e.getLocalizedMessage());
+                formatter.printHelp(HELP_LINE, options);
+                System.exit(4);
+            }
+            serve(projectDir, port, jobs, queue, packagerOptions);
+            return;
+        }
+
         if (cmd.getArgList().isEmpty()) {
             System.err.println("Missing required 'sdlppx' file parameter");
             formatter.printHelp(HELP_LINE, options);
             System.exit(3);
         }
-        if (!cmd.hasOption("p")) {
+        if (!cmd.hasOption("p") && !cmd.hasOption("stats-only") && !cmd.hasOption("inspect")
+                && !cmd.hasOption("verify")) {
             System.err.println("Missing required 'project-dir' parameter.");
             formatter.printHelp(HELP_LINE, options);
             System.exit(4);
@@ -186,32 +245,54 @@ public class SDLPPXPackager {
         }
 
         if (f.getName().toLowerCase().endsWith(".sdltb")) {
-            String glossaryPrefix = f.getName().replaceFirst("\\.\\w+$", "");
-            try {
-                new SDLTBConverter().convertSDLTB(f, new File(projectDir, GLOSSARY_DIR), glossaryPrefix);
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error converting the SLTB file", e);
-                System.exit(5);
-            }
+            convertGlossary(f, projectDir, packagerOptions);
         } else if (f.getName().toLowerCase().endsWith(".sdltm")) {
-            try {
-                new SDLTMConverter().convertSDLTM(f, new File(projectDir, TM_DIR));
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error converting the SLTM file", e);
-                System.exit(5);
-            }
+            convertMemory(f, projectDir, tmFilter, packagerOptions);
         } else {
-            if (cmd.hasOption("ng")) {
-                sdl.noGlossary = true;
-            }
-            if (cmd.hasOption("nt")) {
-                sdl.noTMX = true;
-            }
-            if (cmd.hasOption("ns")) {
-                sdl.noSource = true;
-            }
+            sdl.setOptions(packagerOptions);
 
-            if (cmd.hasOption("extract")) {
+            if (cmd.hasOption("inspect")) {
+                try {
+                    System.out.println(Json.toJson(sdl.inspect()));
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error inspecting the package", e);
+                    System.exit(13);
+                }
+            } else if (cmd.hasOption("verify")) {
+                try {
+                    List<String> problems = sdl.verify();
+                    for (String problem : problems) {
+                        System.out.println(problem);
+                    }
+                    if (!problems.isEmpty()) {
+                        System.exit(14);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error verifying the package", e);
+                    System.exit(14);
+                }
+            } else if (cmd.hasOption("stats-only")) {
+                try {
+                    sdl.printStatistics(System.out);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error counting the package", e);
+                    System.exit(11);
+                }
+            } else if (cmd.hasOption("analyze")) {
+                try {
+                    sdl.analyze(projectDir);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error analysing the package", e);
+                    System.exit(10);
+                }
+            } else if (cmd.hasOption("term-report")) {
+                try {
+                    sdl.checkTerms(projectDir);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error checking the glossary terms", e);
+                    System.exit(9);
+                }
+            } else if (cmd.hasOption("extract")) {
                 try {
                     sdl.extractFiles(projectDir);
                 } catch (Exception e) {
@@ -230,271 +311,460 @@ public class SDLPPXPackager {
 
     }
 
-    public boolean extractFiles(String projectDir) throws Exception {
-        boolean allOk = true;
+    /**
+     * The GUI is started from its own method, Swing is only loaded when it is
+     * used.
+     */
+    private static void startGui(CommandLine cmd) {
+        SDLPPXPackagerWindow win = new SDLPPXPackagerWindow();
 
-        if (!noSource) {
-            try {
-                extractSources(projectDir);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Error extracting SDLTM", e);
-                allOk = false;
-            }
+        if (cmd.hasOption("p")) {
+            win.targetDir.setText(cmd.getOptionValue("p"));
+        }
+        if (!cmd.getArgList().isEmpty()) {
+            win.sdlppxFile.setText(cmd.getArgList().get(0));
+        }
+        if (cmd.hasOption("ng")) {
+            win.cbSkipGlossary.setSelected(true);
+        }
+        if (cmd.hasOption("nt")) {
+            win.cbSkipTM.setSelected(true);
+        }
+        if (cmd.hasOption("ns")) {
+            win.cbSkipSources.setSelected(true);
         }
 
-        if (!noTMX) {
-            try {
-                extractTM(projectDir);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Error extracting SDLTM", e);
-                allOk = false;
-            }
+        win.setVisible(true);
+    }
+
+    private static void serve(String projectDir, int port, int jobs, int queue, PackagerOptions options) {
+        try {
+            PackagerServer server = new PackagerServer(Paths.get(projectDir),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), jobs, queue);
+            server.setOptions(options);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.stop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error starting the service", e);
+            System.exit(12);
         }
+    }
 
-        if (!noGlossary) {
-            try {
-                extractGlossaries(projectDir);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Error extracting SDLTB", e);
-                allOk = false;
-            }
+    private static void convertGlossary(File sdltb, String projectDir, PackagerOptions options) {
+        String glossaryPrefix = sdltb.getName().replaceFirst("\\.\\w+$", "");
+        try {
+            new SDLTBConverter(SDLTBConverter.OutputType.OMEGAT, SDLTBConverter.Synonym.COLUMN, options.isCompress(),
+                    options.isIncrementalGlossary()).convertSDLTB(sdltb, new File(projectDir, GLOSSARY_DIR), glossaryPrefix);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error converting the SLTB file", e);
+            System.exit(5);
         }
+    }
 
-        return allOk;
+    private static void convertMemory(File sdltm, String projectDir, TMFilter tmFilter, PackagerOptions options) {
+        try {
+            SDLTMConverter converter = new SDLTMConverter();
+            converter.setFilter(tmFilter);
+            converter.setConcordanceIndex(options.isConcordanceIndex());
+            converter.setCheckpointInterval(options.getCheckpointInterval());
+            converter.setSegmentCacheSize(options.getSegmentCacheSize());
+            converter.setCompress(options.isCompress());
+            converter.setSharding(options.getTmSharding());
+            converter.setMetadata(options.isTmMetadata());
+            converter.convertSDLTM(sdltm, new File(projectDir, TM_DIR));
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error converting the SLTM file", e);
+            System.exit(5);
+        }
     }
 
-    private void extractSources(String projectDir)
-            throws IOException, ParserConfigurationException, SAXException, TransformerConfigurationException,
-            TransformerFactoryConfigurationError, TransformerException {
+    /**
+     * The packager options given on the command line.
+     */
+    private static PackagerOptions parseOptions(CommandLine cmd, TMFilter tmFilter) throws ParseException {
+        PackagerOptions.Builder options = PackagerOptions.builder()
+                .noGlossary(cmd.hasOption("ng"))
+                .noTMX(cmd.hasOption("nt"))
+                .noSource(cmd.hasOption("ns"))
+                .tmFilter(tmFilter)
+                .mergeTM(cmd.hasOption("merge-tm"))
+                .validate(!cmd.hasOption("no-validate"))
+                .verify(!cmd.hasOption("no-verify"))
+                .concordanceIndex(cmd.hasOption("index"))
+                .compress(cmd.hasOption("gzip"))
+                .tmSharding(parseTMSharding(cmd))
+                .tmMetadata(cmd.hasOption("tm-metadata"))
+                .incrementalGlossary(cmd.hasOption("incremental-glossary"));
+        if (cmd.hasOption("in-memory-limit")) {
+            options.inMemoryLimit(parseNumber(cmd, "in-memory-limit", 0, 0, MAX_MB) * 1024 * 1024);
+        }
+        if (cmd.hasOption("tmp-dir")) {
+            options.tmpDir(Paths.get(cmd.getOptionValue("tmp-dir")));
+        }
+        if (cmd.hasOption("checkpoint")) {
+            options.checkpointInterval((int) parseNumber(cmd, "checkpoint", 0, 0, Integer.MAX_VALUE));
+        }
+        if (cmd.hasOption("dedup-memory")) {
+            options.dedupMemory(parseNumber(cmd, "dedup-memory", 0, 0, MAX_MB) * 1024 * 1024);
+        }
+        if (cmd.hasOption("segment-cache")) {
+            options.segmentCacheSize(parseNumber(cmd, "segment-cache", 0, 0, MAX_MB) * 1024 * 1024);
+        }
+        return options.build();
+    }
+
+    /**
+     * @return the value of a numeric option, or the default value if the
+     *         option is not given
+     * @throws ParseException
+     *             if the value is not an integer between min and max
+     */
+    private static long parseNumber(CommandLine cmd, String option, long defaultValue, long min, long max)
+            throws ParseException {
+        String value = cmd.getOptionValue(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number >= min && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ParseException(
+                "Invalid value for --" + option + ": " + value + ", expected a number from " + min + " to " + max);
+    }
 
-        try (FileSystem zipfs = FileSystems.newFileSystem(sdlPpx, null)) {
-            Stream<Path> sdlProjStream = Files.find(zipfs.getRootDirectories().iterator().next(), MAX_DEPTH,
-                    (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLPROJ));
-            Optional<Path> projPath = sdlProjStream.findFirst();
+    private static TMSharding parseTMSharding(CommandLine cmd) throws ParseException {
+        TMSharding sharding = new TMSharding();
+        if (cmd.hasOption("shard-tu")) {
+            sharding.setMaxTUs((int) parseNumber(cmd, "shard-tu", 0, 0, Integer.MAX_VALUE));
+        }
+        if (cmd.hasOption("shard-size")) {
+            sharding.setMaxBytes(parseNumber(cmd, "shard-size", 0, 0, MAX_MB) * 1024 * 1024);
+        }
+        if (cmd.hasOption("shard-by")) {
+            sharding.setKey(cmd.getOptionValue("shard-by"));
+        }
+        return sharding;
+    }
 
-            if (!projPath.isPresent()) {
-                LOGGER.log(Level.WARNING, "Cannot find .sdlproj file inside the .sdlppx");
-                sdlProjStream.close();
-                return;
+    /**
+     * Print the TU of the concordance indexes in the directory containing the
+     * query.
+     */
+    private static void search(File projectDir, String query) throws IOException {
+        // The TM of a package with several target languages are in the
+        // project of each language
+        List<File> tmDirs = new ArrayList<>();
+        tmDirs.add(new File(projectDir, TM_DIR));
+        File[] languageDirs = projectDir.listFiles(File::isDirectory);
+        if (languageDirs != null) {
+            Arrays.sort(languageDirs);
+            for (File languageDir : languageDirs) {
+                tmDirs.add(new File(languageDir, TM_DIR));
             }
+        }
 
-            Path sdlProj = projPath.get();
-            sdlProjStream.close();
-
-            LOGGER.log(Level.INFO, "SDLProj file: {0}", sdlProj);
-            parseSDLProj(sdlProj, false);
-            File sourceDir = new File(projectDir, SOURCE_DIR);
-            sourceDir.mkdirs();
-
-            // We assume the target directories are always flat with sdlxliff?
-            Files.find(zipfs.getPath(targetLanguage), MAX_DEPTH,
-                    (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLXLIFF))
-                    .forEach(actionPath -> {
-                        Path source = Paths.get(sourceDir.getAbsolutePath(),
-                                actionPath.getFileName().toString());
-                        LOGGER.log(Level.INFO, "Copy source file {0} to {1}",
-                                new Object[] { actionPath, source });
-                        try {
-                            Files.copy(actionPath, source, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
-        }
-    }
-
-    private void extractGlossaries(String projectDir) throws Exception {
-
-        try (FileSystem zipfs = FileSystems.newFileSystem(sdlPpx, null)) {
-            List<Path> sdltmFiles = Files
-                    .find(zipfs.getRootDirectories().iterator().next(), MAX_DEPTH,
-                            (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLTB))
-                    .collect(Collectors.toList());
-            LOGGER.log(Level.INFO, "SDLTB file: {0} found", sdltmFiles.size());
-            for (Path sdltm : sdltmFiles) {
-                File tmpFile = File.createTempFile("sdlppx_", ".sdltb");
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                Files.copy(sdltm, fos);
-                fos.close();
-                String glossaryPrefix = sdlPpx.getFileName().toString().replaceFirst("\\.\\w+$", "");
-                new SDLTBConverter().convertSDLTB(tmpFile, new File(projectDir, GLOSSARY_DIR),
-                        glossaryPrefix);
-                tmpFile.delete();
+        List<File> indexDirs = new ArrayList<>();
+        for (File tmDir : tmDirs) {
+            File[] tmIndexDirs = tmDir.listFiles(file -> file.isDirectory() && file.getName().endsWith(".index"));
+            if (tmIndexDirs != null) {
+                Arrays.sort(tmIndexDirs);
+                indexDirs.addAll(Arrays.asList(tmIndexDirs));
             }
         }
+        if (indexDirs.isEmpty()) {
+            LOGGER.log(Level.WARNING, "No concordance index in {0}, export the TM with --index", projectDir);
+            return;
+        }
 
+        long start = System.nanoTime();
+        int found = 0;
+        for (File indexDir : indexDirs) {
+            try (ConcordanceIndex index = ConcordanceIndex.open(indexDir)) {
+                for (ConcordanceIndex.Match match : index.search(query, SEARCH_LIMIT - found)) {
+                    StartupTiming.firstOutput("search");
+                    System.out.println(indexDir.getName() + "\t" + match);
+                    found++;
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "{0} TU found in {1} ms",
+                new Object[] { found, (System.nanoTime() - start) / 1_000_000 });
     }
 
-    private void extractTM(String projectDir) throws Exception {
-        try (FileSystem zipfs = FileSystems.newFileSystem(sdlPpx, null)) {
-            List<Path> sdltmFiles = Files
-                    .find(zipfs.getRootDirectories().iterator().next(), 10,
-                            (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLTM))
-                    .collect(Collectors.toList());
-            LOGGER.log(Level.INFO, "SDLTM file: {0} found", sdltmFiles.size());
-            for (Path sdltm : sdltmFiles) {
-                File tmpFile = File.createTempFile("sdlppx_", ".sdltm");
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                Files.copy(sdltm, fos);
-                fos.close();
-                new SDLTMConverter().convertSDLTM(tmpFile, new File(projectDir, TM_DIR));
-                tmpFile.delete();
+    private static TMFilter parseTMFilter(CommandLine cmd) throws ParseException {
+        TMFilter filter = new TMFilter();
+        filter.setChangedAfter(cmd.getOptionValue("tm-changed-after"));
+        filter.setChangedBefore(cmd.getOptionValue("tm-changed-before"));
+        filter.setUser(cmd.getOptionValue("tm-user"));
+        if (cmd.hasOption("tm-min-length")) {
+            filter.setMinLength((int) parseNumber(cmd, "tm-min-length", 0, 0, Integer.MAX_VALUE));
+        }
+        if (cmd.hasOption("tm-max-length")) {
+            filter.setMaxLength((int) parseNumber(cmd, "tm-max-length", 0, 0, Integer.MAX_VALUE));
+        }
+        if (cmd.hasOption("tm-attribute")) {
+            for (String attribute : cmd.getOptionValues("tm-attribute")) {
+                int eq = attribute.indexOf('=');
+                if (eq < 1) {
+                    throw new IllegalArgumentException("Expected name=value for attribute " + attribute);
+                }
+                filter.addAttribute(attribute.substring(0, eq), attribute.substring(eq + 1));
             }
         }
+        return filter;
     }
 
+    /**
+     * Extract the package to the project directory, with the options of this
+     * packager.
+     *
+     * @return false if some files could not be extracted
+     */
+    public boolean extractFiles(String projectDir) throws Exception {
+        return ENGINE.extract(job(projectDir));
+    }
+
+    /**
+     * Create the SDLRPX return package from the translated files of the
+     * project directory.
+     *
+     * @return true if the package was renamed to SDLRPX
+     */
     public boolean updateSdlppx(String projectDir) throws Exception {
+        return ENGINE.createReturnPackage(job(projectDir));
+    }
 
-        Map<String, String> env = new HashMap<>();
-        env.put("create", "false");
+    /**
+     * @see PackagerEngine#checkTerms(PackageJob)
+     */
+    public int checkTerms(String projectDir) throws Exception {
+        return ENGINE.checkTerms(job(projectDir));
+    }
 
-        Files.copy(sdlPpx, sdlPpx.resolveSibling(sdlPpx.getFileName().toString() + ".bak"),
-                StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * @see PackagerEngine#printStatistics(PackageJob, PrintStream)
+     */
+    public Map<String, Statistics> printStatistics(PrintStream out) throws Exception {
+        return ENGINE.printStatistics(new PackageJob(sdlPpx, null, options), out);
+    }
 
-        boolean isUpdated = false;
-        try (FileSystem zipfs = FileSystems.newFileSystem(sdlPpx, null)) {
-            Stream<Path> sdlProjStream = Files.find(zipfs.getRootDirectories().iterator().next(), 1,
-                    (path, basicFileAttributes) -> path.toString().toLowerCase().endsWith(EXT_SDLPROJ));
-            Optional<Path> projPath = sdlProjStream.findFirst();
+    /**
+     * @see PackagerEngine#inspect(PackageJob)
+     */
+    public Map<String, Object> inspect() throws Exception {
+        return ENGINE.inspect(new PackageJob(sdlPpx, null, options));
+    }
 
-            if (!projPath.isPresent()) {
-                LOGGER.log(Level.WARNING, "Cannot find .sdlproj file inside the .sdlppx");
-                sdlProjStream.close();
-                return false;
-            }
+    /**
+     * @see PackagerEngine#verify(PackageJob)
+     */
+    public List<String> verify() throws Exception {
+        return ENGINE.verify(new PackageJob(sdlPpx, null, options));
+    }
 
-            Path sdlProj = projPath.get();
-            sdlProjStream.close();
-
-            LOGGER.log(Level.INFO, "SDLProj file: {0}", sdlProj);
-            isUpdated = parseSDLProj(sdlProj, true);
-
-            // We assume the target directories are always flat with sdlxliff?
-            Files.find(zipfs.getPath(targetLanguage), 1,
-                    (path, basicFileAttributes) -> path.getFileName().toString().endsWith(".sdlxliff"))
-                    .forEach(actionPath -> {
-                        Path source = Paths.get(projectDir, TARGET_DIR, actionPath.getFileName().toString());
-                        try {
-                            Files.copy(source, actionPath, StandardCopyOption.REPLACE_EXISTING);
-                            LOGGER.log(Level.INFO, "Replace {0} > {1}", new Object[] { source, actionPath });
-                        } catch (IOException e) {
-                            LOGGER.log(Level.WARNING, "Could not replace {0} > {1}",
-                                    new Object[] { source, actionPath });
-                            LOGGER.log(Level.WARNING, "", e);
-                        }
-                    });
-        }
-        if (isUpdated) {
-            Path sdlRpx = sdlPpx
-                    .resolveSibling(sdlPpx.getFileName().toString().replaceAll("\\.sdlppx$", ".sdlrpx"));
-            LOGGER.log(Level.INFO, "Renaming {0} to {1}", new Object[] { sdlPpx, sdlRpx });
-            Files.move(sdlPpx, sdlRpx, StandardCopyOption.REPLACE_EXISTING);
-            return true;
-        }
-
-        return false;
-    }
-
-    private boolean parseSDLProj(final Path sdlProj, final boolean doUpdate)
-            throws ParserConfigurationException, SAXException, TransformerConfigurationException,
-            TransformerFactoryConfigurationError, IOException, TransformerException {
-
-        final DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-        // Important, the DocumentBuilder must be created with an InputStream,
-        // otherwise
-        // the zip can't be updated as the stream is not explicitely closed.
-        try (InputStream is = Files.newInputStream(sdlProj, StandardOpenOption.READ)) {
-            sdlProjDoc = docBuilder.parse(is);
-        } catch (IOException e) {
-            return false;
-        }
-
-        // Language code, obviously we don't deal with multiple target
-        // languages.
-        // /PackageProject/LanguageDirections/LanguageDirection/@TargetLanguageCode="fr-FR"
-        targetLanguage = ((Element) ((Element) ((Element) sdlProjDoc.getElementsByTagName("PackageProject")
-                .item(0)).getElementsByTagName("LanguageDirections").item(0))
-                        .getElementsByTagName("LanguageDirection").item(0))
-                                .getAttribute("TargetLanguageCode");
-
-        LOGGER.log(Level.INFO, "Target Language: {0}", targetLanguage);
-
-        if (!doUpdate) {
-            return false;
-        }
-
-        final Node attrPackageType = sdlProjDoc.getDocumentElement().getAttributeNode(ATTRIBUTE_PACKAGE_TYPE);
-        final PackageTypes packageType = PackageTypes.valueOf(attrPackageType.getTextContent());
-        switch (packageType) {
-        case ProjectPackage:
-            LOGGER.info("This is a project package. Changing to ReturnPackage");
-            attrPackageType.setNodeValue(PackageTypes.ReturnPackage.toString());
-            updateDoc(sdlProj, sdlProjDoc);
-            return true;
-
-        case ReturnPackage:
-            LOGGER.info("This is a return package. Nothing to do.");
-            break;
-        }
-
-        return false;
-    }
-
-    private void updateDoc(final Path sdlProj, final Document doc)
-            throws TransformerFactoryConfigurationError, TransformerConfigurationException, IOException,
-            TransformerException {
-        // write the content into xml file
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        Path tmpSdlProj = Files.createTempFile("sdlproj_", ".tmp");
-
-        // Make sure we delete the temp file at shutdown.
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                try {
-                    Files.delete(tmpSdlProj);
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, "Error deleting temporary sdlproj file", e);
-                }
-            }
-        });
+    /**
+     * @see PackagerEngine#analyze(PackageJob)
+     */
+    public Map<String, Analysis> analyze(String projectDir) throws Exception {
+        return ENGINE.analyze(job(projectDir));
+    }
 
-        // https://stackoverflow.com/questions/32353423/can-a-jar-file-be-updated-programmatically-without-rewriting-the-whole-file#32944829
-        try (FileChannel channel = FileChannel.open(tmpSdlProj, StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                OutputStream cos = Channels.newOutputStream(channel)) {
-            StreamResult result = new StreamResult(cos);
-            transformer.transform(new DOMSource(doc), result);
+    private PackageJob job(String projectDir) {
+        return new PackageJob(sdlPpx, Paths.get(projectDir), options);
+    }
 
-            cos.close();
-        }
+    public PackagerOptions getOptions() {
+        return options;
+    }
 
-        Files.copy(tmpSdlProj, sdlProj, StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Replace all the options of this packager.
+     */
+    public void setOptions(PackagerOptions options) {
+        this.options = options == null ? PackagerOptions.DEFAULTS : options;
     }
 
     public boolean isNoTMX() {
-        return noTMX;
+        return options.isNoTMX();
     }
 
     public void setNoTMX(boolean noTMX) {
-        this.noTMX = noTMX;
+        options = options.toBuilder().noTMX(noTMX).build();
     }
 
     public boolean isNoGlossary() {
-        return noGlossary;
+        return options.isNoGlossary();
     }
 
     public void setNoGlossary(boolean noGlossary) {
-        this.noGlossary = noGlossary;
+        options = options.toBuilder().noGlossary(noGlossary).build();
     }
 
     public boolean isNoSource() {
-        return noSource;
+        return options.isNoSource();
     }
 
     public void setNoSource(boolean noSource) {
-        this.noSource = noSource;
+        options = options.toBuilder().noSource(noSource).build();
+    }
+
+    public long getInMemoryLimit() {
+        return options.getInMemoryLimit();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#inMemoryLimit(long)
+     */
+    public void setInMemoryLimit(long inMemoryLimit) {
+        options = options.toBuilder().inMemoryLimit(inMemoryLimit).build();
+    }
+
+    public Path getTmpDir() {
+        return options.getTmpDir();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#tmpDir(Path)
+     */
+    public void setTmpDir(Path tmpDir) {
+        options = options.toBuilder().tmpDir(tmpDir).build();
+    }
+
+    public boolean isMergeTM() {
+        return options.isMergeTM();
+    }
+
+    public void setMergeTM(boolean mergeTM) {
+        options = options.toBuilder().mergeTM(mergeTM).build();
+    }
+
+    public long getDedupMemory() {
+        return options.getDedupMemory();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#dedupMemory(long)
+     */
+    public void setDedupMemory(long dedupMemory) {
+        options = options.toBuilder().dedupMemory(dedupMemory).build();
+    }
+
+    public long getSegmentCacheSize() {
+        return options.getSegmentCacheSize();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#segmentCacheSize(long)
+     */
+    public void setSegmentCacheSize(long segmentCacheSize) {
+        options = options.toBuilder().segmentCacheSize(segmentCacheSize).build();
+    }
+
+    public boolean isValidate() {
+        return options.isValidate();
+    }
+
+    /**
+     * Check the translated SDLXLIFF before creating the return package.
+     */
+    public void setValidate(boolean validate) {
+        options = options.toBuilder().validate(validate).build();
+    }
+
+    public boolean isVerify() {
+        return options.isVerify();
+    }
+
+    /**
+     * Check the CRC of every entry of the return package once written.
+     */
+    public void setVerify(boolean verify) {
+        options = options.toBuilder().verify(verify).build();
+    }
+
+    public boolean isConcordanceIndex() {
+        return options.isConcordanceIndex();
+    }
+
+    /**
+     * Build a concordance index next to each exported TMX.
+     */
+    public void setConcordanceIndex(boolean concordanceIndex) {
+        options = options.toBuilder().concordanceIndex(concordanceIndex).build();
+    }
+
+    public int getCheckpointInterval() {
+        return options.getCheckpointInterval();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#checkpointInterval(int)
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        options = options.toBuilder().checkpointInterval(checkpointInterval).build();
+    }
+
+    public boolean isCompress() {
+        return options.isCompress();
+    }
+
+    public TMSharding getTmSharding() {
+        return options.getTmSharding();
+    }
+
+    public boolean isTmMetadata() {
+        return options.isTmMetadata();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#tmMetadata(boolean)
+     */
+    public void setTmMetadata(boolean tmMetadata) {
+        options = options.toBuilder().tmMetadata(tmMetadata).build();
+    }
+
+    public boolean isIncrementalGlossary() {
+        return options.isIncrementalGlossary();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#incrementalGlossary(boolean)
+     */
+    public void setIncrementalGlossary(boolean incrementalGlossary) {
+        options = options.toBuilder().incrementalGlossary(incrementalGlossary).build();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#compress(boolean)
+     */
+    public void setCompress(boolean compress) {
+        options = options.toBuilder().compress(compress).build();
+    }
+
+    /**
+     * @see PackagerOptions.Builder#tmSharding(TMSharding)
+     */
+    public void setTmSharding(TMSharding tmSharding) {
+        options = options.toBuilder().tmSharding(tmSharding).build();
+    }
+
+    public TMFilter getTmFilter() {
+        return options.getTmFilter();
+    }
+
+    public void setTmFilter(TMFilter tmFilter) {
+        options = options.toBuilder().tmFilter(tmFilter).build();
     }
 
 }
@@ -18,24 +18,25 @@ package net.briac.sdlppx;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -43,10 +44,13 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
 import com.healthmarketscience.jackcess.Database;
 import com.healthmarketscience.jackcess.DatabaseBuilder;
 import com.healthmarketscience.jackcess.Row;
 import com.healthmarketscience.jackcess.Table;
+import com.healthmarketscience.jackcess.util.MemFileChannel;
 
 import net.briac.sdlppx.model.Concept;
 import net.briac.sdlppx.model.Term;
@@ -75,35 +79,126 @@ public class SDLTBConverter {
     }
 
     private static final String NEW_LINE = System.getProperty("line.separator");
-    private OutputType outputType = OutputType.OMEGAT;
-    private Synonym synonym = Synonym.COLUMN;
+    private static final List<String> CONCEPT_COLUMNS = Arrays.asList("conceptid", "text");
+    private final OutputType outputType;
+    private final Synonym synonym;
+    private final boolean compress;
+    private final boolean incremental;
+
+    public SDLTBConverter() {
+        this(OutputType.OMEGAT, Synonym.COLUMN);
+    }
+
+    public SDLTBConverter(OutputType outputType, Synonym synonym) {
+        this(outputType, synonym, false);
+    }
+
+    /**
+     * The converter has no other state than its output format, the same
+     * instance can convert several SDLTB concurrently.
+     *
+     * @param compress
+     *            write a gzipped glossary (e.g. <code>.txt.gz</code>)
+     */
+    public SDLTBConverter(OutputType outputType, Synonym synonym, boolean compress) {
+        this(outputType, synonym, compress, false);
+    }
+
+    /**
+     * @param incremental
+     *            keep the concepts read in a state file next to the glossary,
+     *            and only parse the concepts changed since the last conversion
+     */
+    public SDLTBConverter(OutputType outputType, Synonym synonym, boolean compress, boolean incremental) {
+        this.outputType = outputType;
+        this.synonym = synonym;
+        this.compress = compress;
+        this.incremental = incremental;
+    }
 
     public void convertSDLTB(File sdltbFile, File outputDir, String prefix) throws Exception {
         LOGGER.log(Level.INFO, "Converting {0} to {1}", new Object[] { sdltbFile, outputDir });
 
+        try (Database db = new DatabaseBuilder(sdltbFile).setReadOnly(true).open()) {
+            convertSDLTB(db, sdltbFile.getName(), outputDir, prefix);
+        }
+    }
+
+    /**
+     * Convert a SDLTB read from a stream (e.g. a SDLPPX entry). The termbase is
+     * loaded in memory, nothing is written to disk except the glossary.
+     *
+     * @return the glossary
+     */
+    public File convertSDLTB(InputStream sdltb, String name, File outputDir, String prefix) throws Exception {
+        LOGGER.log(Level.INFO, "Converting {0} to {1}", new Object[] { name, outputDir });
+
+        try (MemFileChannel channel = MemFileChannel.newChannel(sdltb, MemFileChannel.RO_CHANNEL_MODE);
+                Database db = new DatabaseBuilder().setChannel(channel).setReadOnly(true).open()) {
+            return convertSDLTB(db, name.substring(name.lastIndexOf('/') + 1), outputDir, prefix);
+        }
+    }
+
+    /**
+     * Read a SDLTB from a stream, without writing the glossary.
+     */
+    public TermBase readTermBase(InputStream sdltb) throws Exception {
+        try (MemFileChannel channel = MemFileChannel.newChannel(sdltb, MemFileChannel.RO_CHANNEL_MODE);
+                Database db = new DatabaseBuilder().setChannel(channel).setReadOnly(true).open()) {
+            return extractTermBase(db, null);
+        }
+    }
+
+    private File convertSDLTB(Database db, String name, File outputDir, String prefix) throws Exception {
         outputDir.mkdirs();
 
+        TermBaseState state = null;
+        if (incremental) {
+            state = TermBaseState.load(new File(outputDir, prefix + "_" + name + TermBaseState.EXT_STATE));
+        }
+
         // Read SDLTB data into termbase object
-        TermBase termbase = extractTermBase(sdltbFile);
+        TermBase termbase = extractTermBase(db, state);
 
         File outputFile = new File(outputDir,
-                prefix + "_glossary_" + String.join("_", termbase.languages.keySet()) + outputType.ext);
-
-        if (outputType == OutputType.OMEGAT) {
-            writeOmegaT(outputFile, termbase);
-        } else {
-            writeCSV(outputFile, termbase);
+                prefix + "_glossary_" + String.join("_", termbase.languages.keySet()) + outputType.ext
+                        + (compress ? ParallelGzipOutputStream.EXT_GZIP : ""));
+        if (state != null && state.isUpToDate(outputFile)) {
+            LOGGER.log(Level.INFO, "No concept changed, {0} is up to date", outputFile);
+            return outputFile;
+        }
+        StartupTiming.firstOutput(outputFile.getName());
+
+        // A write failure is thrown before the commit: the previous glossary
+        // and state are kept
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            if (outputType == OutputType.OMEGAT) {
+                writeOmegaT(outputFile, termbase, batch);
+            } else {
+                writeCSV(outputFile, termbase, batch);
+            }
+            batch.commit();
+        }
+        if (state != null) {
+            state.save(outputFile);
+            LOGGER.log(Level.INFO, "{0} concepts parsed, {1} unchanged", new Object[] { state.getParsed(),
+                    termbase.concepts.size() - state.getParsed() });
         }
 
         LOGGER.log(Level.INFO, "SDLTB converted");
+        return outputFile;
+    }
+
+    private OutputStream openOutput(File outputFile, ReplacingFileOutputStream.Batch batch) throws IOException {
+        OutputStream os = new ReplacingFileOutputStream(outputFile, batch);
+        return compress ? new ParallelGzipOutputStream(os) : os;
     }
 
-    private void writeOmegaT(File outputFile, TermBase termbase) {
-        BufferedWriter out;
+    private void writeOmegaT(File outputFile, TermBase termbase, ReplacingFileOutputStream.Batch batch)
+            throws IOException {
         // Write csv
-        try {
-            out = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(outputFile.toString()), "UTF-8"));
+        try (BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(openOutput(outputFile, batch), "UTF-8"))) {
 
             // ========================== write rows =======================
             // for each concept
@@ -159,19 +254,14 @@ public class SDLTBConverter {
 
                 out.write("\n");
             }
-            out.flush();
-            out.close();
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, e.getLocalizedMessage());
         }
     }
 
-    private void writeCSV(File outputFile, TermBase termbase) {
-        BufferedWriter out;
+    private void writeCSV(File outputFile, TermBase termbase, ReplacingFileOutputStream.Batch batch)
+            throws IOException {
         // Write csv
-        try {
-            out = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(outputFile.toString()), "UTF-8"));
+        try (BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(openOutput(outputFile, batch), "UTF-8"))) {
 
             // =================== write first line ====================
             writeCSV(out, "Entry_Created");
@@ -260,21 +350,20 @@ public class SDLTBConverter {
 
                 out.write("\n");
             }
-            out.flush();
-            out.close();
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, e.getLocalizedMessage());
         }
     }
 
-    private TermBase extractTermBase(File sdltbFile)
+    /**
+     * @param state
+     *            the concepts of the previous conversion, null to parse all
+     *            the concepts
+     */
+    private TermBase extractTermBase(Database db, TermBaseState state)
             throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder xmldb = dbf.newDocumentBuilder();
+        DocumentBuilder xmldb = XmlPools.documentBuilder();
         Document document;
 
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        XPath xpath = xpathFactory.newXPath();
+        XPath xpath = XmlPools.xpath();
 
         Map<String, XPathExpression> xpathExpr = new HashMap<>();
         xpathExpr.put("entryCreator", xpath.compile("/cG/trG/tr[@type='origination']"));
@@ -285,16 +374,32 @@ public class SDLTBConverter {
         xpathExpr.put("conceptMeta", xpath.compile("/cG/dG"));
         xpathExpr.put("langData", xpath.compile("/cG/lG"));
 
-        Database db = DatabaseBuilder.open(sdltbFile);
         Table table = db.getTable("mtConcepts");
         TermBase termbase = new TermBase();
 
+        // Only read the columns we need
+        Cursor cursor = CursorBuilder.createCursor(table);
+        Row row;
+
         // Store contents in String xml
-        for (Row row : table) {
+        while ((row = cursor.getNextRow(CONCEPT_COLUMNS)) != null) {
             // Create new concept
             int entryNumber = Integer.parseInt(row.get("conceptid").toString());
-            termbase.addConcept(entryNumber);
             String xml = row.get("text").toString();
+            long[] hash = null;
+            if (state != null) {
+                // Unchanged concept, no need to parse its XML
+                hash = TermBaseState.hash(xml);
+                Concept concept = state.reuse(entryNumber, hash);
+                if (concept != null) {
+                    termbase.concepts.put(entryNumber, concept);
+                    for (String meta : concept.getMetadata().keySet()) {
+                        termbase.inMeta(meta);
+                    }
+                    continue;
+                }
+            }
+            termbase.addConcept(entryNumber);
 
             InputSource source = new InputSource(new StringReader(xml));
             document = xmldb.parse(source);
@@ -383,6 +488,9 @@ public class SDLTBConverter {
                     }
                 }
             }
+            if (state != null) {
+                state.parsed(entryNumber, hash, termbase.concepts.get(entryNumber));
+            }
         }
 
         // Populate languages
@@ -403,24 +511,24 @@ public class SDLTBConverter {
         return termbase;
     }
 
-    private void writeCSV(Writer out, String s) {
-        try {
-            switch (outputType) {
-            case COMMA_CSV:
-            case SEMICOLON_CSV:
-                out.write('"');
-                out.write(s.replaceAll("\"", "\"\""));
-                out.write('"');
-                out.write(outputType.sep);
-                break;
-            case TAB_TXT:
-            case OMEGAT:
-                out.write(s);
-                out.write(outputType.sep);
-                break;
-            }
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, e.getLocalizedMessage());
+    /**
+     * Write a cell. A write failure is thrown, the glossary must not be
+     * committed.
+     */
+    private void writeCSV(Writer out, String s) throws IOException {
+        switch (outputType) {
+        case COMMA_CSV:
+        case SEMICOLON_CSV:
+            out.write('"');
+            out.write(s.replaceAll("\"", "\"\""));
+            out.write('"');
+            out.write(outputType.sep);
+            break;
+        case TAB_TXT:
+        case OMEGAT:
+            out.write(s);
+            out.write(outputType.sep);
+            break;
         }
     }
 
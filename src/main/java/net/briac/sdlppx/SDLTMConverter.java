@@ -1,176 +1,558 @@
-/**************************************************************************
- Copyright (C) 2020 Briac Pilpré
-
- This program is free software: you can redistribute it and/or modify
- it under the terms of the GNU General Public License as published by
- the Free Software Foundation, either version 3 of the License, or
- (at your option) any later version.
-
- This program is distributed in the hope that it will be useful,
- but WITHOUT ANY WARRANTY; without even the implied warranty of
- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- GNU General Public License for more details.
-
- You should have received a copy of the GNU General Public License
- along with this program. If not, see <http://www.gnu.org/licenses/>.
- **************************************************************************/
-package net.briac.sdlppx;
-
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.charset.StandardCharsets;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-public class SDLTMConverter {
-    private static final Logger LOGGER = Logger.getLogger(SDLTMConverter.class.getName());
-
-    private final DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-
-    public void convertSDLTM(File sdltmFile, File outputDir) throws Exception {
-        Connection connection = null;
-
-        final DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-        Document tmxDoc = docBuilder.newDocument();
-
-        Package pack = this.getClass().getPackage();
-        Element tmxEl = tmxDoc.createElement("tmx");
-        tmxEl.setAttribute("version", "1.1");
-        tmxDoc.appendChild(tmxEl);
-        Element headerEl = tmxDoc.createElement("header");
-        headerEl.setAttribute("creationtool", pack.getImplementationTitle());
-        headerEl.setAttribute("o-tmf", "SDLTM");
-        headerEl.setAttribute("adminlang", "en-US");
-        headerEl.setAttribute("datatype", "plaintext");
-        headerEl.setAttribute("creationtoolversion", pack.getImplementationVersion());
-        headerEl.setAttribute("segtype", "sentence");
-        tmxEl.appendChild(headerEl);
-
-        Element bodyEl = tmxDoc.createElement("body");
-        tmxEl.appendChild(bodyEl);
-        try {
-            connection = DriverManager.getConnection("jdbc:sqlite:" + sdltmFile.toURI());
-
-            Statement statement = connection.createStatement();
-            statement.closeOnCompletion();
-            ResultSet rs = statement
-                    .executeQuery("select name, source_language, tucount from translation_memories");
-            String tmName = rs.getString(1);
-            String srcLang = rs.getString(2);
-            Integer sdltmCount = rs.getInt(3);
-            headerEl.setAttribute("srclang", srcLang);
-            if (rs.next()) {
-                LOGGER.log(Level.WARNING,
-                        "Multiple source languages in SDLTM, only the first one is used ({0})", srcLang);
-            }
-            rs.close();
-
-            statement = connection.createStatement();
-            rs = statement.executeQuery("select id, source_segment, target_segment from translation_units");
-
-            int tmxCount = 0;
-            while (rs.next()) {
-                Element tu = tmxDoc.createElement("tu");
-                Document sourceXML = docBuilder.parse(new ByteArrayInputStream(
-                        rs.getString("source_segment").getBytes(StandardCharsets.UTF_8)));
-                Document targetXML = docBuilder.parse(new ByteArrayInputStream(
-                        rs.getString("target_segment").getBytes(StandardCharsets.UTF_8)));
-                tu.appendChild(createTuv(tmxDoc, sourceXML));
-                tu.appendChild(createTuv(tmxDoc, targetXML));
-                bodyEl.appendChild(tu);
-                tmxCount++;
-            }
-
-            File tmFile = new File(outputDir, tmName + ".tmx");
-            outputDir.mkdirs();
-            LOGGER.log(Level.INFO, "Saving TMX file {1} TU ({2} in sdltm) to file {0}",
-                    new Object[] { tmFile, tmxCount, sdltmCount });
-
-            FileOutputStream fos = new FileOutputStream(tmFile);
-            StreamResult result = new StreamResult(fos);
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            // Don't indent as it messes up tags in segment (or use xml:space in
-            // the tuv?)
-            // transformer.setOutputProperty(javax.xml.transform.OutputKeys.INDENT,
-            // "yes");
-            // transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount",
-            // "2");
-            transformer.transform(new DOMSource(tmxDoc), result);
-
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Error while extracting SDLTM");
-        } finally {
-            try {
-                if (connection != null) {
-                    connection.close();
-                }
-            } catch (SQLException e) {
-                LOGGER.log(Level.SEVERE, "Error while closing SDLTM");
-            }
-        }
-    }
-
-    private Element createTuv(Document tmxDoc, Document targetXML) {
-        Element tuv = tmxDoc.createElement("tuv");
-        Element seg = tmxDoc.createElement("seg");
-        Element segment = (Element) targetXML.getElementsByTagName("Segment").item(0);
-        tuv.setAttribute("lang", segment.getElementsByTagName("CultureName").item(0).getTextContent());
-
-        NodeList nodes = segment.getElementsByTagName("Elements").item(0).getChildNodes();
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Element item = (Element) nodes.item(i);
-            if (item.getTagName().equals("Tag")) {
-                String tagType = item.getElementsByTagName("Type").item(0).getTextContent();
-                String tagAnchor = item.getElementsByTagName("Anchor").item(0).getTextContent();
-                String tagAlignmentAnchor = item.getElementsByTagName("AlignmentAnchor").item(0)
-                        .getTextContent();
-                Element tagEl;
-                String tagId;
-                switch (tagType) {
-                case "Start":
-                    tagEl = tmxDoc.createElement("bpt");
-                    tagId = item.getElementsByTagName("TagID").item(0).getTextContent();
-                    tagEl.setAttribute("type", tagId);
-                    tagEl.setAttribute("i", tagAnchor);
-                    tagEl.setAttribute("x", tagAlignmentAnchor);
-                    break;
-                case "End":
-                    tagEl = tmxDoc.createElement("ept");
-                    tagEl.setAttribute("i", tagAnchor);
-                    break;
-                default:
-                    tagEl = tmxDoc.createElement("ph");
-                    tagId = item.getElementsByTagName("TagID").item(0).getTextContent();
-                    tagEl.setAttribute("type", tagId);
-                    tagEl.setAttribute("x", tagAlignmentAnchor);
-                    break;
-                }
-                seg.appendChild(tagEl);
-            } else if (item.getTagName().equals("Text")) {
-                seg.appendChild(
-                        tmxDoc.createTextNode(item.getElementsByTagName("Value").item(0).getTextContent()));
-            }
-        }
-        tuv.appendChild(seg);
-
-        return tuv;
-    }
-
-}
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+
+import net.briac.sdlppx.model.Prop;
+import net.briac.sdlppx.model.TranslationMemory;
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+public class SDLTMConverter {
+    private static final Logger LOGGER = Logger.getLogger(SDLTMConverter.class.getName());
+
+    public static final long DEFAULT_SEGMENT_CACHE_SIZE = 16L * 1024 * 1024;
+
+    /** The values of the fields of all the TU, whatever their type. */
+    private static final String FIELD_VALUES = "select sa.translation_unit_id, a.name, sa.value"
+            + " from string_attributes sa join attributes a on a.id = sa.attribute_id"
+            + " union all select na.translation_unit_id, a.name, cast(na.value as text)"
+            + " from numeric_attributes na join attributes a on a.id = na.attribute_id"
+            + " union all select da.translation_unit_id, a.name, da.value"
+            + " from date_attributes da join attributes a on a.id = da.attribute_id"
+            + " union all select pa.translation_unit_id, a.name, pv.value from picklist_attributes pa"
+            + " join picklist_values pv on pv.id = pa.picklist_value_id join attributes a on a.id = pv.attribute_id";
+
+    private static final Comparator<Prop> PROP_ORDER = Comparator
+            .comparing(Prop::getType, Comparator.nullsFirst(Comparator.<String> naturalOrder()))
+            .thenComparing(Prop::getValue, Comparator.nullsFirst(Comparator.<String> naturalOrder()));
+
+    private TMFilter filter = new TMFilter();
+    private boolean concordanceIndex = false;
+    private int checkpointInterval = 0;
+    private boolean compress = false;
+    private TMSharding sharding = new TMSharding();
+    private boolean metadata = false;
+    private long segmentCacheSize = DEFAULT_SEGMENT_CACHE_SIZE;
+
+    /**
+     * Open the SDLTM read-only. The file is flagged as immutable so SQLite
+     * doesn't do any locking nor change detection.
+     */
+    static Connection openReadOnly(File sdltmFile) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        // 64 MiB of page cache and memory mapped I/O
+        config.setCacheSize(-65536);
+        config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(256L * 1024 * 1024));
+        return DriverManager.getConnection("jdbc:sqlite:" + sdltmFile.toURI() + "?immutable=1",
+                config.toProperties());
+    }
+
+    /**
+     * Load the SDLTM content in an in-memory database, without writing it to
+     * disk.
+     */
+    static Connection openInMemory(byte[] sdltmContent) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:", config.toProperties());
+        try {
+            connection.unwrap(SQLiteConnection.class).deserialize("main", sdltmContent);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    public void convertSDLTM(File sdltmFile, File outputDir) throws Exception {
+        convertSDLTM(openReadOnly(sdltmFile), outputDir,
+                "size " + sdltmFile.length() + ", modified " + sdltmFile.lastModified());
+    }
+
+    /**
+     * Convert the SDLTM opened with the given connection, which is closed once
+     * done.
+     */
+    public void convertSDLTM(Connection connection, File outputDir) throws Exception {
+        convertSDLTM(connection, outputDir, null);
+    }
+
+    /**
+     * @param contentId
+     *            identifies the content of the SDLTM, e.g. its size and CRC,
+     *            so that a checkpointed export is not resumed on another
+     *            version of it. null if unknown.
+     */
+    public void convertSDLTM(Connection connection, File outputDir, String contentId) throws Exception {
+        try {
+            TranslationMemory tm = readTranslationMemory(connection);
+
+            File tmFile = tmxFile(outputDir, tm.getName());
+            outputDir.mkdirs();
+            LOGGER.log(Level.INFO, "Saving TMX file {1} TU to file {0}", new Object[] { tmFile, tm.getTuCount() });
+            StartupTiming.firstOutput(tmFile.getName());
+
+            if (checkpointInterval > 0 && sharding.isEmpty()) {
+                exportCheckpointed(connection, tm, tmFile, contentId);
+            } else {
+                if (checkpointInterval > 0) {
+                    LOGGER.log(Level.WARNING, "The sharded export of {0} is not checkpointed", tmFile);
+                }
+                // A failed export keeps the previous TMX
+                try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+                    try (TUWriter writer = openTMX(outputDir, tm.getName(), tm.getSourceLanguage(), batch)) {
+                        exportTUs(connection, tm, writer, null);
+                    }
+                    batch.commit();
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "Error while extracting SDLTM", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.log(Level.SEVERE, "Error while closing SDLTM");
+            }
+        }
+    }
+
+    /**
+     * Export in id order, committing the TMX every checkpointInterval TU, and
+     * resume the export from the last commit if it was interrupted.
+     */
+    private void exportCheckpointed(Connection connection, TranslationMemory tm, File tmFile, String contentId)
+            throws SQLException, XMLStreamException, IOException {
+        if (concordanceIndex) {
+            LOGGER.log(Level.WARNING, "No concordance index for the checkpointed export of {0}", tmFile);
+        }
+        // A TM edited with the same TU count, or exported with other
+        // options, must not resume in the previous TMX
+        String source = tm.getName() + " (" + tm.getTuCount() + " TU" + (contentId == null ? "" : ", " + contentId)
+                + (metadata ? ", metadata" : "") + ")";
+        try (CheckpointedTMXWriter writer = new CheckpointedTMXWriter(tmFile, tm.getSourceLanguage(), source,
+                filter.toString(), checkpointInterval, compress)) {
+            exportTUs(connection, tm, writer, null, writer.getResumedAfterId());
+            writer.complete();
+            LOGGER.log(Level.INFO, "{0} TU in {1}", new Object[] { writer.getCount(), tmFile });
+        }
+    }
+
+    /**
+     * @return the TMX file named after the memory, gzipped if compression is
+     *         enabled
+     */
+    File tmxFile(File outputDir, String name) {
+        return new File(outputDir, name + ".tmx" + (compress ? ParallelGzipOutputStream.EXT_GZIP : ""));
+    }
+
+    /**
+     * @return the writer of the TMX named after the memory, or of its shards,
+     *         replaced when the batch is committed. The shards, or the
+     *         unsharded TMX, of a previous export that are not written again
+     *         are deleted on commit.
+     */
+    TUWriter openTMX(File outputDir, String name, String sourceLanguage, ReplacingFileOutputStream.Batch batch)
+            throws IOException {
+        batch.deleteStale(outputDir, TMSharding.outputNames(name));
+        if (sharding.isEmpty()) {
+            return openWriter(tmxFile(outputDir, name), sourceLanguage, batch);
+        }
+        return new ShardedTMXWriter(name, sharding,
+                shardName -> openWriter(tmxFile(outputDir, shardName), sourceLanguage, batch));
+    }
+
+    /**
+     * @return the TMX writer for the file, also building its concordance index
+     *         if enabled
+     */
+    TUWriter openWriter(File tmxFile, String sourceLanguage, ReplacingFileOutputStream.Batch batch)
+            throws IOException {
+        OutputStream os = new ReplacingFileOutputStream(tmxFile, batch);
+        if (compress) {
+            os = new ParallelGzipOutputStream(os);
+        }
+        TMXWriter tmx = new TMXWriter(os, sourceLanguage);
+        if (!concordanceIndex) {
+            return tmx;
+        }
+        try {
+            return TUWriter.tee(tmx, new ConcordanceIndex.Builder(ConcordanceIndex.indexDir(tmxFile), batch));
+        } catch (IOException e) {
+            tmx.close();
+            throw e;
+        }
+    }
+
+    public TranslationMemory readTranslationMemory(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "select name, source_language, target_language, tucount from translation_memories")) {
+            if (!rs.next()) {
+                throw new SQLException("No translation memory in SDLTM");
+            }
+            TranslationMemory tm = new TranslationMemory(rs.getString(1), rs.getString(2), rs.getString(3),
+                    rs.getInt(4));
+            if (rs.next()) {
+                LOGGER.log(Level.WARNING, "Multiple source languages in SDLTM, only the first one is used ({0})",
+                        tm.getSourceLanguage());
+            }
+            return tm;
+        }
+    }
+
+    /**
+     * Stream the TU of the SDLTM matching the filter to the writer.
+     *
+     * @param duplicates
+     *            if not null, the TU already seen are skipped
+     * @return the number of TU written
+     */
+    public int exportTUs(Connection connection, TranslationMemory tm, TUWriter writer,
+            DuplicateFilter duplicates) throws SQLException, XMLStreamException, IOException {
+        return exportTUs(connection, tm, writer, duplicates, -1);
+    }
+
+    /**
+     * @param afterId
+     *            if not negative, only the TU with a greater id are exported,
+     *            in id order
+     */
+    private int exportTUs(Connection connection, TranslationMemory tm, TUWriter writer,
+            DuplicateFilter duplicates, long afterId) throws SQLException, XMLStreamException, IOException {
+        int tmxCount = 0;
+        int readCount = 0;
+        String where = filter.toWhereClause();
+        StringBuilder sql = new StringBuilder("select tu.id, tu.source_segment, tu.target_segment");
+        if (metadata) {
+            sql.append(", tu.creation_date, tu.creation_user, tu.change_date, tu.change_user, tu.last_used_date,"
+                    + " tu.usage_counter, p.name, p.value");
+        }
+        sql.append(sharding.toSelectExpression()).append(" from translation_units tu");
+        if (metadata) {
+            // One row per field value, or a single row for a TU without fields
+            sql.append(" left join (").append(FIELD_VALUES).append(") p on p.translation_unit_id = tu.id");
+        }
+        sql.append(where);
+        if (afterId >= 0) {
+            sql.append(where.isEmpty() ? " where" : " and").append(" tu.id > ?");
+        }
+        // The rows of a TU are consecutive, and the shards only depend on the
+        // TU, when they are read in id order
+        if (metadata || afterId >= 0 || !sharding.isEmpty()) {
+            sql.append(" order by tu.id");
+        }
+        int keyColumn = metadata ? 12 : 4;
+
+        try (PreparedStatement query = connection.prepareStatement(sql.toString())) {
+            int index = filter.bind(query, sharding.bind(query, 1));
+            if (afterId >= 0) {
+                query.setLong(index, afterId);
+            }
+            SegmentCache cache = new SegmentCache(segmentCacheSize);
+            try (ResultSet rs = query.executeQuery()) {
+                TranslationUnit tu = null;
+                String key = null;
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    if (tu == null || tu.getId() != id) {
+                        if (tu != null && write(tu, key, writer, duplicates)) {
+                            tmxCount++;
+                        }
+                        readCount++;
+                        tu = new TranslationUnit(id, cache.get(rs.getString(2), this::decodeSegment),
+                                cache.get(rs.getString(3), this::decodeSegment));
+                        if (metadata) {
+                            readMetadata(rs, tu);
+                        }
+                        key = sharding.isKeyed() ? rs.getString(keyColumn) : null;
+                    }
+                    if (metadata && rs.getString(10) != null) {
+                        tu.addProp(new Prop(rs.getString(10), rs.getString(11)));
+                    }
+                }
+                if (tu != null && write(tu, key, writer, duplicates)) {
+                    tmxCount++;
+                }
+            }
+            logCache(cache, tm.getName());
+        }
+
+        LOGGER.log(Level.INFO, "Exported {0} TU ({1} in sdltm {2})",
+                new Object[] { tmxCount, tm.getTuCount(), tm.getName() });
+        if (!filter.isEmpty()) {
+            LOGGER.log(Level.INFO, "Filter kept {0} TU out of {1} read",
+                    new Object[] { tmxCount, readCount });
+        }
+        return tmxCount;
+    }
+
+    private static void readMetadata(ResultSet rs, TranslationUnit tu) throws SQLException {
+        tu.setCreationDate(rs.getString(4));
+        tu.setCreationUser(rs.getString(5));
+        tu.setChangeDate(rs.getString(6));
+        tu.setChangeUser(rs.getString(7));
+        tu.setLastUsedDate(rs.getString(8));
+        int usageCount = rs.getInt(9);
+        if (!rs.wasNull()) {
+            tu.setUsageCount(usageCount);
+        }
+    }
+
+    /**
+     * @return false if the TU is filtered out by its length or is a duplicate
+     */
+    private boolean write(TranslationUnit tu, String shardKey, TUWriter writer, DuplicateFilter duplicates)
+            throws IOException {
+        if (!filter.acceptsSource(tu.getSource().getText())) {
+            return false;
+        }
+        if (duplicates != null && !duplicates.add(tu)) {
+            return false;
+        }
+        if (tu.getProps().size() > 1) {
+            tu.getProps().sort(PROP_ORDER);
+        }
+        writer.writeTU(tu, shardKey);
+        return true;
+    }
+
+    /**
+     * Stream the plain text of the source segments of the TU matching the
+     * filter.
+     *
+     * @return the number of segments read
+     */
+    public int readSources(Connection connection, Consumer<String> sources) throws SQLException, XMLStreamException {
+        int count = 0;
+        try (PreparedStatement query = connection
+                .prepareStatement("select tu.source_segment from translation_units tu" + filter.toWhereClause())) {
+            filter.bind(query, 1);
+            SegmentCache cache = new SegmentCache(segmentCacheSize);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    String text = cache.get(rs.getString(1), this::decodeSegment).getText();
+                    if (filter.acceptsSource(text)) {
+                        sources.accept(text);
+                        count++;
+                    }
+                }
+            }
+            logCache(cache, "sources");
+        }
+        return count;
+    }
+
+    private static void logCache(SegmentCache cache, String name) {
+        if (cache.isEnabled()) {
+            LOGGER.log(Level.INFO, "Segment cache of {0}: {1} hits, {2} misses",
+                    new Object[] { name, cache.getHits(), cache.getMisses() });
+        }
+    }
+
+    /**
+     * Convert a SDL segment to a TMX tuv.
+     *
+     * <pre>
+     * &lt;Segment&gt;&lt;Elements&gt;
+     *   &lt;Text&gt;&lt;Value&gt;...&lt;/Value&gt;&lt;/Text&gt;
+     *   &lt;Tag&gt;&lt;Type&gt;Start&lt;/Type&gt;&lt;Anchor&gt;1&lt;/Anchor&gt;&lt;AlignmentAnchor&gt;1&lt;/AlignmentAnchor&gt;&lt;TagID&gt;...&lt;/TagID&gt;&lt;/Tag&gt;
+     * &lt;/Elements&gt;&lt;CultureName&gt;en-US&lt;/CultureName&gt;&lt;/Segment&gt;
+     * </pre>
+     */
+    Tuv decodeSegment(String segmentXml) throws XMLStreamException {
+        StringBuilder seg = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        String lang = null;
+        Map<String, String> tag = new HashMap<>();
+        boolean inTag = false;
+
+        XMLStreamReader reader = XmlPools.createXMLStreamReader(new StringReader(segmentXml));
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    switch (name) {
+                    case "Tag":
+                        inTag = true;
+                        tag.clear();
+                        break;
+                    case "Value":
+                        String value = reader.getElementText();
+                        seg.append(TMXWriter.escape(value, false));
+                        text.append(value);
+                        break;
+                    case "CultureName":
+                        lang = reader.getElementText();
+                        break;
+                    case "Type":
+                    case "Anchor":
+                    case "AlignmentAnchor":
+                    case "TagID":
+                        if (inTag) {
+                            tag.put(name, reader.getElementText());
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("Tag")) {
+                    inTag = false;
+                    appendTag(seg, tag);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new Tuv(lang, seg.toString(), text.toString());
+    }
+
+    private static void appendTag(StringBuilder seg, Map<String, String> tag) {
+        String tagType = tag.getOrDefault("Type", "");
+        switch (tagType) {
+        case "Start":
+            seg.append("<bpt");
+            appendAttribute(seg, "i", tag.get("Anchor"));
+            appendAttribute(seg, "type", tag.get("TagID"));
+            appendAttribute(seg, "x", tag.get("AlignmentAnchor"));
+            break;
+        case "End":
+            seg.append("<ept");
+            appendAttribute(seg, "i", tag.get("Anchor"));
+            break;
+        default:
+            seg.append("<ph");
+            appendAttribute(seg, "type", tag.get("TagID"));
+            appendAttribute(seg, "x", tag.get("AlignmentAnchor"));
+            break;
+        }
+        seg.append("/>");
+    }
+
+    private static void appendAttribute(StringBuilder seg, String name, String value) {
+        seg.append(' ').append(name).append("=\"").append(TMXWriter.escape(value == null ? "" : value, true))
+                .append('"');
+    }
+
+    public TMFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(TMFilter filter) {
+        this.filter = filter == null ? new TMFilter() : filter;
+    }
+
+    public boolean isConcordanceIndex() {
+        return concordanceIndex;
+    }
+
+    /**
+     * Build the concordance index of each TMX while it is written.
+     */
+    public void setConcordanceIndex(boolean concordanceIndex) {
+        this.concordanceIndex = concordanceIndex;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Commit the TMX every checkpointInterval TU so an interrupted export can
+     * be resumed, 0 to write the TMX in one go.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Write gzipped TMX (<code>.tmx.gz</code>), compressed in parallel while
+     * they are exported.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public TMSharding getSharding() {
+        return sharding;
+    }
+
+    /**
+     * Split each TMX in several shards, an empty sharding writing a single
+     * TMX.
+     */
+    public void setSharding(TMSharding sharding) {
+        this.sharding = sharding == null ? new TMSharding() : sharding;
+    }
+
+    public boolean isMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Export the dates, users and usage count of the TU as TMX attributes and
+     * their field values as props.
+     */
+    public void setMetadata(boolean metadata) {
+        this.metadata = metadata;
+    }
+
+    public long getSegmentCacheSize() {
+        return segmentCacheSize;
+    }
+
+    /**
+     * Memory (in bytes) of the cache of the decoded segments of a TM, 0 to
+     * decode each segment.
+     */
+    public void setSegmentCacheSize(long segmentCacheSize) {
+        this.segmentCacheSize = segmentCacheSize;
+    }
+
+}
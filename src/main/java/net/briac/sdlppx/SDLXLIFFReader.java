@@ -0,0 +1,152 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming (StAX) reader of the segments of a SDLXLIFF file.
+ *
+ * The segments are the <code>&lt;mrk mtype="seg"&gt;</code> of the
+ * <code>seg-source</code> and <code>target</code> of each trans-unit. Only the
+ * text is reported, the inline tags are skipped.
+ *
+ * @author briac
+ *
+ */
+public class SDLXLIFFReader {
+
+    /** Receives the content of the SDLXLIFF, in document order. */
+    public interface Handler {
+        default void startFile(String sourceLanguage, String targetLanguage) {
+        }
+
+        default void transUnit(String id) {
+        }
+
+        /**
+         * Called at the end of each trans-unit, for each segment.
+         *
+         * @param source
+         *            the source text, or null if the segment is only in the
+         *            target
+         * @param target
+         *            the target text, or null if the segment has no target
+         */
+        void segment(String transUnitId, String mid, String source, String target);
+    }
+
+    private SDLXLIFFReader() {
+    }
+
+    public static void read(InputStream is, Handler handler) throws XMLStreamException {
+        XMLStreamReader reader = XmlPools.createXMLStreamReader(is);
+        try {
+            read(reader, handler);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void read(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+        String transUnitId = null;
+        boolean inSource = false;
+        boolean inTarget = false;
+        // Nesting depth inside the current segment mrk, 0 when outside
+        int segDepth = 0;
+        String mid = null;
+        StringBuilder text = new StringBuilder();
+        Map<String, String> sources = new LinkedHashMap<>();
+        Map<String, String> targets = new LinkedHashMap<>();
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (segDepth > 0) {
+                    segDepth++;
+                    break;
+                }
+                String name = reader.getLocalName();
+                if (name.equals("file")) {
+                    handler.startFile(reader.getAttributeValue(null, "source-language"),
+                            reader.getAttributeValue(null, "target-language"));
+                } else if (name.equals("trans-unit")) {
+                    transUnitId = reader.getAttributeValue(null, "id");
+                    sources.clear();
+                    targets.clear();
+                    handler.transUnit(transUnitId);
+                } else if (name.equals("seg-source")) {
+                    inSource = true;
+                } else if (name.equals("target")) {
+                    inTarget = true;
+                } else if (name.equals("mrk") && (inSource || inTarget)
+                        && "seg".equals(reader.getAttributeValue(null, "mtype"))) {
+                    segDepth = 1;
+                    mid = reader.getAttributeValue(null, "mid");
+                    text.setLength(0);
+                }
+                break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (segDepth > 0) {
+                    text.append(reader.getText());
+                }
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                if (segDepth > 0) {
+                    segDepth--;
+                    if (segDepth == 0) {
+                        (inSource ? sources : targets).put(mid, text.toString());
+                    }
+                    break;
+                }
+                String endName = reader.getLocalName();
+                if (endName.equals("seg-source")) {
+                    inSource = false;
+                } else if (endName.equals("target")) {
+                    inTarget = false;
+                } else if (endName.equals("trans-unit")) {
+                    for (Map.Entry<String, String> source : sources.entrySet()) {
+                        handler.segment(transUnitId, source.getKey(), source.getValue(),
+                                targets.get(source.getKey()));
+                    }
+                    // Segments only in the target
+                    for (Map.Entry<String, String> target : targets.entrySet()) {
+                        if (!sources.containsKey(target.getKey())) {
+                            handler.segment(transUnitId, target.getKey(), null, target.getValue());
+                        }
+                    }
+                }
+                break;
+
+            default:
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Check a translated SDLXLIFF against the original one from the package
+ * before putting it in the return package.
+ *
+ * @author briac
+ *
+ */
+public class SDLXLIFFValidator {
+
+    // Don't flood the report with a completely different file
+    private static final int MAX_PROBLEMS = 20;
+
+    private SDLXLIFFValidator() {
+    }
+
+    /**
+     * @param original
+     *            the SDLXLIFF in the package
+     * @param translated
+     *            the translated SDLXLIFF from the project
+     * @return the problems found, empty if the translated file is valid
+     */
+    public static List<String> validate(Path original, Path translated) throws IOException {
+        try (InputStream is = Files.newInputStream(original)) {
+            return validate(is, translated);
+        }
+    }
+
+    /**
+     * @param original
+     *            the content of the SDLXLIFF in the package
+     */
+    public static List<String> validate(InputStream original, Path translated) throws IOException {
+        List<String> problems = new ArrayList<>();
+
+        Segments expected = new Segments(false);
+        try {
+            SDLXLIFFReader.read(original, expected);
+        } catch (XMLStreamException e) {
+            problems.add("Cannot read the original SDLXLIFF from the package: " + e.getMessage());
+            return problems;
+        }
+
+        Segments actual = new Segments(true);
+        try (InputStream is = Files.newInputStream(translated)) {
+            SDLXLIFFReader.read(is, actual);
+        } catch (XMLStreamException e) {
+            problems.add("Malformed XML: " + e.getMessage());
+            return problems;
+        }
+
+        for (String transUnit : expected.transUnits) {
+            if (!actual.transUnits.contains(transUnit)) {
+                problems.add("Missing trans-unit " + transUnit);
+            }
+        }
+        for (String transUnit : actual.transUnits) {
+            if (!expected.transUnits.contains(transUnit)) {
+                problems.add("Unknown trans-unit " + transUnit);
+            }
+        }
+        // The segments of a missing or unknown trans-unit are already reported
+        // with it
+        for (String segment : expected.segments) {
+            if (!actual.segments.contains(segment) && actual.transUnits.contains(transUnitOf(segment))) {
+                problems.add("Missing segment " + segment);
+            }
+        }
+        for (String segment : actual.segments) {
+            if (!expected.segments.contains(segment) && expected.transUnits.contains(transUnitOf(segment))) {
+                problems.add("Unknown segment " + segment);
+            }
+        }
+        problems.addAll(actual.untranslated);
+
+        if (problems.size() > MAX_PROBLEMS) {
+            int more = problems.size() - MAX_PROBLEMS;
+            problems = new ArrayList<>(problems.subList(0, MAX_PROBLEMS));
+            problems.add(more + (more == 1 ? " more problem" : " more problems") + " not shown");
+        }
+        return problems;
+    }
+
+    private static String transUnitOf(String segment) {
+        return segment.substring(0, segment.lastIndexOf('/'));
+    }
+
+    private static class Segments implements SDLXLIFFReader.Handler {
+        private final boolean checkTargets;
+        private final Set<String> transUnits = new LinkedHashSet<>();
+        private final Set<String> segments = new LinkedHashSet<>();
+        private final List<String> untranslated = new ArrayList<>();
+
+        Segments(boolean checkTargets) {
+            this.checkTargets = checkTargets;
+        }
+
+        @Override
+        public void transUnit(String id) {
+            transUnits.add(id);
+        }
+
+        @Override
+        public void segment(String transUnitId, String mid, String source, String target) {
+            if (source == null) {
+                // Only in target, the seg-source is what identifies a segment
+                return;
+            }
+            String segment = transUnitId + "/" + mid;
+            segments.add(segment);
+            if (checkTargets && (target == null || (target.trim().isEmpty() && !source.trim().isEmpty()))) {
+                untranslated.add("No target for segment " + segment);
+            }
+        }
+    }
+
+}
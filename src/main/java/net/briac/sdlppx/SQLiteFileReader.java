@@ -0,0 +1,381 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a few rows of a SQLite database straight from its pages, without
+ * SQLite nor a copy of the file, e.g. a SDLTM inside a package.
+ *
+ * Only the table b-trees are read (sqlite_master and the requested table),
+ * following the <a href="https://www.sqlite.org/fileformat.html">file
+ * format</a>. The pages are read from a stream, reopened when a page before
+ * the current position is needed: skipping is free in a stored entry, and
+ * only the start of a deflated entry is inflated as the schema and the small
+ * tables are at the beginning of the file.
+ *
+ * @author briac
+ *
+ */
+final class SQLiteFileReader implements Closeable {
+
+    /**
+     * Opens the database content from its beginning.
+     */
+    @FunctionalInterface
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private static final byte[] MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 100;
+    private static final int TABLE_INTERIOR = 0x05;
+    private static final int TABLE_LEAF = 0x0D;
+    private static final int MAX_CACHED_PAGES = 16;
+    private static final List<String> TABLE_CONSTRAINTS = Arrays.asList("PRIMARY", "UNIQUE", "CHECK", "FOREIGN",
+            "CONSTRAINT");
+    private static final Pattern ROWID_ALIAS = Pattern.compile("\\S+\\s+INTEGER\\s+PRIMARY\\s+KEY\\b.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final Source source;
+    private final int pageSize;
+    private final int usableSize;
+    private final Charset charset;
+
+    private InputStream in;
+    private long position;
+
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(MAX_CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
+    SQLiteFileReader(Source source) throws IOException {
+        this.source = source;
+        byte[] header = new byte[HEADER_SIZE];
+        read(0, header);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new IOException("Not a SQLite database");
+            }
+        }
+        int size = readUnsigned(header, 16, 2);
+        this.pageSize = size == 1 ? 65536 : size;
+        this.usableSize = pageSize - (header[20] & 0xFF);
+        switch (readUnsigned(header, 56, 4)) {
+        case 2:
+            charset = StandardCharsets.UTF_16LE;
+            break;
+        case 3:
+            charset = StandardCharsets.UTF_16BE;
+            break;
+        default:
+            charset = StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * @return the first row of the table by column name (the rowid alias
+     *         column holding the rowid), or null if the table is empty
+     * @throws IOException
+     *             if the table doesn't exist or the file can't be read
+     */
+    Map<String, Object> readFirstRow(String table) throws IOException {
+        List<Object> schema = null;
+        for (List<Object> row : readRows(1, Integer.MAX_VALUE)) {
+            // rowid, type, name, tbl_name, rootpage, sql
+            if ("table".equals(row.get(1)) && table.equalsIgnoreCase(String.valueOf(row.get(2)))) {
+                schema = row;
+                break;
+            }
+        }
+        if (schema == null) {
+            throw new IOException("No table " + table);
+        }
+        List<String> definitions = columnDefinitions((String) schema.get(5));
+        List<List<Object>> rows = readRows(((Long) schema.get(4)).intValue(), 1);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        List<Object> values = rows.get(0);
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < definitions.size(); i++) {
+            String definition = definitions.get(i);
+            String name = definition.split("\\s+")[0].replaceAll("^[\"`\\[]|[\"`\\]]$", "");
+            if (ROWID_ALIAS.matcher(definition).matches()) {
+                // The INTEGER PRIMARY KEY is the rowid, stored as NULL
+                row.put(name, values.get(0));
+            } else {
+                row.put(name, i + 1 < values.size() ? values.get(i + 1) : null);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return up to max rows of the table b-tree, in rowid order, each row
+     *         starting with its rowid
+     */
+    private List<List<Object>> readRows(int rootPage, int max) throws IOException {
+        List<List<Object>> rows = new ArrayList<>();
+        readRows(rootPage, max, rows, 0);
+        return rows;
+    }
+
+    private void readRows(int pageNumber, int max, List<List<Object>> rows, int depth) throws IOException {
+        if (depth > 32) {
+            throw new IOException("Corrupted b-tree");
+        }
+        byte[] page = page(pageNumber);
+        int header = pageNumber == 1 ? HEADER_SIZE : 0;
+        int type = page[header] & 0xFF;
+        int cells = readUnsigned(page, header + 3, 2);
+        if (type == TABLE_INTERIOR) {
+            for (int i = 0; i < cells && rows.size() < max; i++) {
+                int cell = readUnsigned(page, header + 12 + 2 * i, 2);
+                readRows(readUnsigned(page, cell, 4), max, rows, depth + 1);
+            }
+            if (rows.size() < max) {
+                readRows(readUnsigned(page, header + 8, 4), max, rows, depth + 1);
+            }
+        } else if (type == TABLE_LEAF) {
+            for (int i = 0; i < cells && rows.size() < max; i++) {
+                int cell = readUnsigned(page, header + 8 + 2 * i, 2);
+                long[] varint = new long[1];
+                int pos = readVarint(page, cell, varint);
+                long payloadSize = varint[0];
+                pos = readVarint(page, pos, varint);
+                long rowid = varint[0];
+                List<Object> row = decodeRecord(payload(page, pos, payloadSize));
+                row.add(0, rowid);
+                rows.add(row);
+            }
+        } else {
+            throw new IOException("Unexpected page type " + type + " in a table b-tree");
+        }
+    }
+
+    /**
+     * @return the payload of a cell, reading its overflow pages if needed
+     */
+    private byte[] payload(byte[] page, int pos, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Record too large");
+        }
+        byte[] payload = new byte[(int) size];
+        int maxLocal = usableSize - 35;
+        int local;
+        if (size <= maxLocal) {
+            local = (int) size;
+        } else {
+            int minLocal = (usableSize - 12) * 32 / 255 - 23;
+            int k = (int) (minLocal + (size - minLocal) % (usableSize - 4));
+            local = k <= maxLocal ? k : minLocal;
+        }
+        System.arraycopy(page, pos, payload, 0, local);
+        int copied = local;
+        int overflow = local < size ? readUnsigned(page, pos + local, 4) : 0;
+        while (copied < size) {
+            if (overflow == 0) {
+                throw new IOException("Truncated overflow chain");
+            }
+            byte[] overflowPage = page(overflow);
+            int n = (int) Math.min(size - copied, usableSize - 4);
+            System.arraycopy(overflowPage, 4, payload, copied, n);
+            copied += n;
+            overflow = readUnsigned(overflowPage, 0, 4);
+        }
+        return payload;
+    }
+
+    private List<Object> decodeRecord(byte[] record) throws IOException {
+        long[] varint = new long[1];
+        int pos = readVarint(record, 0, varint);
+        int headerEnd = (int) varint[0];
+        List<Long> types = new ArrayList<>();
+        while (pos < headerEnd) {
+            pos = readVarint(record, pos, varint);
+            types.add(varint[0]);
+        }
+        List<Object> values = new ArrayList<>(types.size());
+        int data = headerEnd;
+        for (long type : types) {
+            if (type == 0) {
+                values.add(null);
+            } else if (type >= 1 && type <= 6) {
+                int length = type <= 4 ? (int) type : type == 5 ? 6 : 8;
+                long value = 0;
+                for (int i = 0; i < length; i++) {
+                    value = (value << 8) | (record[data + i] & 0xFF);
+                }
+                // Sign extend
+                int shift = 64 - 8 * length;
+                values.add((value << shift) >> shift);
+                data += length;
+            } else if (type == 7) {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (record[data + i] & 0xFF);
+                }
+                values.add(Double.longBitsToDouble(bits));
+                data += 8;
+            } else if (type == 8 || type == 9) {
+                values.add(type - 8);
+            } else if (type >= 12) {
+                int length = (int) ((type - (type % 2 == 0 ? 12 : 13)) / 2);
+                if (data + length > record.length) {
+                    throw new IOException("Corrupted record");
+                }
+                if (type % 2 == 0) {
+                    byte[] blob = new byte[length];
+                    System.arraycopy(record, data, blob, 0, length);
+                    values.add(blob);
+                } else {
+                    values.add(new String(record, data, length, charset));
+                }
+                data += length;
+            } else {
+                throw new IOException("Unsupported serial type " + type);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the column definitions of a <code>CREATE TABLE</code>
+     *         statement, without the table constraints
+     */
+    static List<String> columnDefinitions(String sql) {
+        List<String> definitions = new ArrayList<>();
+        int start = sql.indexOf('(');
+        int end = sql.lastIndexOf(')');
+        if (start < 0 || end < start) {
+            return definitions;
+        }
+        int depth = 0;
+        int from = start + 1;
+        for (int i = from; i <= end; i++) {
+            char c = i == end ? ',' : sql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String definition = sql.substring(from, i).trim();
+                from = i + 1;
+                String keyword = definition.split("\\s+")[0].toUpperCase(Locale.ROOT);
+                if (!definition.isEmpty() && !TABLE_CONSTRAINTS.contains(keyword)) {
+                    definitions.add(definition);
+                }
+            }
+        }
+        return definitions;
+    }
+
+    private byte[] page(int number) throws IOException {
+        byte[] page = cache.get(number);
+        if (page == null) {
+            page = new byte[pageSize];
+            read((long) (number - 1) * pageSize, page);
+            cache.put(number, page);
+        }
+        return page;
+    }
+
+    /**
+     * Read the bytes at the position, reopening the stream to go backward.
+     */
+    private void read(long offset, byte[] b) throws IOException {
+        if (in == null || offset < position) {
+            close();
+            in = source.open();
+            position = 0;
+        }
+        while (position < offset) {
+            long skipped = in.skip(offset - position);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Page beyond the end of the database");
+                }
+                skipped = 1;
+            }
+            position += skipped;
+        }
+        int n = 0;
+        while (n < b.length) {
+            int read = in.read(b, n, b.length - n);
+            if (read < 0) {
+                throw new EOFException("Page beyond the end of the database");
+            }
+            n += read;
+        }
+        position += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    private static int readUnsigned(byte[] b, int offset, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Read a SQLite varint into result[0].
+     *
+     * @return the position after the varint
+     */
+    private static int readVarint(byte[] b, int pos, long[] result) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            int v = b[pos + i] & 0xFF;
+            value = (value << 7) | (v & 0x7F);
+            if ((v & 0x80) == 0) {
+                result[0] = value;
+                return pos + i + 1;
+            }
+        }
+        result[0] = (value << 8) | (b[pos + 8] & 0xFF);
+        return pos + 9;
+    }
+
+}
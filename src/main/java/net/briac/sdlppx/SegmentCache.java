@@ -0,0 +1,135 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import net.briac.sdlppx.model.Tuv;
+
+/**
+ * Bounded cache of the decoded SDL segments, for the TM where the same
+ * segments come back many times (boilerplate, UI strings, legal text).
+ *
+ * The segments are keyed by a 128 bits hash of their XML, so the XML itself
+ * is not kept, and the least recently used ones are evicted once the
+ * estimated size of the cached tuv exceeds the budget. The tuv are
+ * immutable, the same instance is returned for each occurrence.
+ *
+ * @author briac
+ *
+ */
+final class SegmentCache {
+
+    /**
+     * Decodes a segment missing from the cache.
+     */
+    @FunctionalInterface
+    interface Decoder {
+        Tuv decode(String segmentXml) throws XMLStreamException;
+    }
+
+    // Map entry, key, tuv and its three strings
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private static final class Key {
+        private final long hash1;
+        private final long hash2;
+
+        Key(long[] hash) {
+            this.hash1 = hash[0];
+            this.hash2 = hash[1];
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash1;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash1 == other.hash1 && hash2 == other.hash2;
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<Key, Tuv> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBytes
+     *            estimated memory used by the cached tuv, 0 to disable the
+     *            cache
+     */
+    SegmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    Tuv get(String segmentXml, Decoder decoder) throws XMLStreamException {
+        if (maxBytes <= 0) {
+            misses++;
+            return decoder.decode(segmentXml);
+        }
+        Key key = new Key(MurmurHash3.hash128(segmentXml));
+        Tuv tuv = entries.get(key);
+        if (tuv != null) {
+            hits++;
+            return tuv;
+        }
+        misses++;
+        tuv = decoder.decode(segmentXml);
+        long size = sizeOf(tuv);
+        if (size <= maxBytes) {
+            entries.put(key, tuv);
+            bytes += size;
+            Iterator<Tuv> eldest = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= sizeOf(eldest.next());
+                eldest.remove();
+            }
+        }
+        return tuv;
+    }
+
+    private static long sizeOf(Tuv tuv) {
+        int chars = tuv.getSeg().length() + tuv.getText().length()
+                + (tuv.getLang() == null ? 0 : tuv.getLang().length());
+        return ENTRY_OVERHEAD + 2L * chars;
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+}
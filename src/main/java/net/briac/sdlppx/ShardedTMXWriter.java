@@ -0,0 +1,242 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.briac.sdlppx.model.TranslationUnit;
+
+/**
+ * TMX writer splitting the TU in several complete TMX files.
+ *
+ * The TU are routed to their shard by the reading thread, then written by
+ * batches on a pool: each shard writes its batches in order, the shards are
+ * written concurrently. The number of batches waiting to be written is
+ * bounded, so a slow disk slows the export down instead of filling the
+ * memory.
+ *
+ * @author briac
+ *
+ */
+public class ShardedTMXWriter implements TUWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(ShardedTMXWriter.class.getName());
+
+    private static final int BATCH_SIZE = 512;
+
+    /**
+     * Opens the writer of a shard.
+     */
+    @FunctionalInterface
+    public interface ShardOpener {
+        TUWriter open(String shardName) throws IOException;
+    }
+
+    private final String name;
+    private final TMSharding sharding;
+    private final ShardOpener opener;
+    private final ExecutorService executor;
+    private final Semaphore pendingBatches;
+
+    /** The shard being written for each key. */
+    private final Map<String, Shard> shards = new HashMap<>();
+    private final List<CompletableFuture<Void>> closedShards = new ArrayList<>();
+    private final List<String> shardNames = new ArrayList<>();
+    private long count = 0;
+
+    private class Shard {
+        private final int number;
+        private final TUWriter writer;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private List<TranslationUnit> batch = new ArrayList<>(BATCH_SIZE);
+        private int count = 0;
+        private long bytes = 0;
+
+        Shard(String key, int number) throws IOException {
+            this.number = number;
+            String shardName = sharding.shardName(name, key, number);
+            this.writer = opener.open(shardName);
+            shardNames.add(shardName);
+        }
+
+        boolean isFull(long tuBytes) {
+            if (count == 0) {
+                return false;
+            }
+            return (sharding.getMaxTUs() > 0 && count >= sharding.getMaxTUs())
+                    || (sharding.getMaxBytes() > 0 && bytes + tuBytes > sharding.getMaxBytes());
+        }
+
+        void add(TranslationUnit tu, long tuBytes) throws IOException {
+            batch.add(tu);
+            count++;
+            bytes += tuBytes;
+            if (batch.size() >= BATCH_SIZE) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (tail.isCompletedExceptionally()) {
+                join(tail);
+            }
+            try {
+                pendingBatches.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing " + name);
+            }
+            List<TranslationUnit> tus = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            tail = tail.thenRunAsync(() -> {
+                try {
+                    for (TranslationUnit tu : tus) {
+                        writer.writeTU(tu);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+            tail.whenComplete((v, e) -> pendingBatches.release());
+        }
+
+        /**
+         * @return the completion of the shard, its writer is closed even if a
+         *         batch failed
+         */
+        CompletableFuture<Void> close() {
+            IOException failure = null;
+            try {
+                dispatch();
+            } catch (IOException e) {
+                failure = e;
+            }
+            CompletableFuture<Void> closed = tail.whenCompleteAsync((v, e) -> {
+                try {
+                    writer.close();
+                } catch (IOException ce) {
+                    throw new UncheckedIOException(ce);
+                }
+            }, executor);
+            if (failure == null) {
+                return closed;
+            }
+            IOException lastBatchFailure = failure;
+            return closed.thenRun(() -> {
+                throw new UncheckedIOException(lastBatchFailure);
+            });
+        }
+    }
+
+    /**
+     * @param name
+     *            the name of the TMX, the shards being named after it
+     */
+    public ShardedTMXWriter(String name, TMSharding sharding, ShardOpener opener) {
+        this.name = name;
+        this.sharding = sharding;
+        this.opener = opener;
+        int threads = Math.max(2, ParallelTasks.CPU_COUNT);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.pendingBatches = new Semaphore(4 * threads);
+    }
+
+    @Override
+    public void writeTU(TranslationUnit tu) throws IOException {
+        writeTU(tu, null);
+    }
+
+    @Override
+    public void writeTU(TranslationUnit tu, String shardKey) throws IOException {
+        String key = sharding.isKeyed() ? TMSharding.toFileName(shardKey) : "";
+        long tuBytes = TMXWriter.sizeOf(tu);
+        Shard shard = shards.get(key);
+        if (shard == null) {
+            shard = new Shard(key, 1);
+            shards.put(key, shard);
+        } else if (shard.isFull(tuBytes)) {
+            closedShards.add(shard.close());
+            shard = new Shard(key, shard.number + 1);
+            shards.put(key, shard);
+        }
+        shard.add(tu, tuBytes);
+        count++;
+    }
+
+    /**
+     * @return the names of the shards written, in creation order
+     */
+    public List<String> getShardNames() {
+        return shardNames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Shard shard : shards.values()) {
+                closedShards.add(shard.close());
+            }
+            IOException failure = null;
+            for (CompletableFuture<Void> closed : closedShards) {
+                try {
+                    join(closed);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else if (failure != e) {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+        LOGGER.log(Level.INFO, "{0} TU written to {1} shards of {2}",
+                new Object[] { count, shardNames.size(), name });
+    }
+
+    private static void join(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log the JVM startup time until main() and until the first output of the
+ * command, when the <code>sdlppx.timing</code> system property is true (e.g.
+ * <code>JAVA_OPTS=-Dsdlppx.timing=true</code>).
+ *
+ * The JVM uptime is only read once the first output is written, so measuring
+ * doesn't load the management classes before it.
+ *
+ * @author briac
+ *
+ */
+public final class StartupTiming {
+    private static final Logger LOGGER = Logger.getLogger(StartupTiming.class.getName());
+
+    private static final boolean ENABLED = Boolean.getBoolean("sdlppx.timing");
+    private static final AtomicBoolean FIRST_OUTPUT = new AtomicBoolean();
+    private static volatile long mainStarted;
+
+    private StartupTiming() {
+    }
+
+    static void mainStarted() {
+        if (ENABLED) {
+            mainStarted = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called before writing any output, only the first call is logged.
+     */
+    static void firstOutput(Object output) {
+        if (!ENABLED || !FIRST_OUTPUT.compareAndSet(false, true)) {
+            return;
+        }
+        long now = System.nanoTime();
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime() - (System.nanoTime() - now) / 1_000_000;
+        long sinceMain = mainStarted == 0 ? 0 : (now - mainStarted) / 1_000_000;
+        LOGGER.log(Level.INFO, "Startup: main() after {0} ms, first output ({1}) after {2} ms",
+                new Object[] { uptime - sinceMain, output, uptime });
+    }
+
+}
@@ -0,0 +1,146 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Volume figures of the source segments of a SDLXLIFF: segments, words,
+ * characters (without whitespaces) and repetitions.
+ *
+ * The files are counted independently (and concurrently), the repetitions are
+ * then found by passing the files in order to
+ * {@link #countRepetitions(DuplicateFilter)}, so the first occurrence of a
+ * segment is always in the same file.
+ *
+ * @author briac
+ *
+ */
+public class Statistics {
+
+    private final String name;
+    private long segments = 0;
+    private long words = 0;
+    private long characters = 0;
+    private long repeatedSegments = 0;
+    private long repeatedWords = 0;
+
+    // 128 bits hash and word count of each segment, until the repetitions are
+    // counted
+    private long[] hashes = new long[64];
+    private int[] segmentWords = new int[32];
+
+    public Statistics(String name) {
+        this.name = name;
+    }
+
+    public static Statistics count(Path sdlxliff) throws IOException {
+        try (InputStream is = Files.newInputStream(sdlxliff)) {
+            return count(sdlxliff.toString(), is);
+        }
+    }
+
+    public static Statistics count(String name, InputStream is) throws IOException {
+        Statistics stats = new Statistics(name);
+        try {
+            SDLXLIFFReader.read(is, (transUnitId, mid, source, target) -> {
+                if (source != null) {
+                    stats.addSegment(source);
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read " + name, e);
+        }
+        return stats;
+    }
+
+    private void addSegment(String source) {
+        int wordCount = Words.count(source);
+        int n = (int) segments;
+        if (n == segmentWords.length) {
+            segmentWords = Arrays.copyOf(segmentWords, n * 2);
+            hashes = Arrays.copyOf(hashes, n * 4);
+        }
+        long[] hash = MurmurHash3.hash128(DuplicateFilter.normalize(source));
+        hashes[n * 2] = hash[0];
+        hashes[n * 2 + 1] = hash[1];
+        segmentWords[n] = wordCount;
+
+        segments++;
+        words += wordCount;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (!Character.isWhitespace(c) && !Character.isLowSurrogate(c)) {
+                characters++;
+            }
+        }
+    }
+
+    /**
+     * Count the segments of this file already seen in the previous files, or
+     * earlier in this file.
+     */
+    public void countRepetitions(DuplicateFilter seen) throws IOException {
+        for (int i = 0; i < segments; i++) {
+            if (!seen.add(hashes[i * 2], hashes[i * 2 + 1])) {
+                repeatedSegments++;
+                repeatedWords += segmentWords[i];
+            }
+        }
+        hashes = null;
+        segmentWords = null;
+    }
+
+    public void add(Statistics other) {
+        segments += other.segments;
+        words += other.words;
+        characters += other.characters;
+        repeatedSegments += other.repeatedSegments;
+        repeatedWords += other.repeatedWords;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSegments() {
+        return segments;
+    }
+
+    public long getWords() {
+        return words;
+    }
+
+    public long getCharacters() {
+        return characters;
+    }
+
+    public long getRepeatedSegments() {
+        return repeatedSegments;
+    }
+
+    public long getRepeatedWords() {
+        return repeatedWords;
+    }
+
+}
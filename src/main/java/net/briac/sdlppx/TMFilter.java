@@ -0,0 +1,246 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selection of the translation units to export from a SDLTM.
+ *
+ * The criteria are translated to a SQL WHERE clause on the
+ * <code>translation_units</code> table (aliased <code>tu</code>), so the
+ * excluded rows are never fetched nor parsed. The length of the source text
+ * is only known once the segment is parsed, it is checked by
+ * {@link #acceptsSource(String)}.
+ *
+ * @author briac
+ *
+ */
+public class TMFilter {
+
+    /** Format of the DATETIME columns in the SDLTM tables. */
+    private static final DateTimeFormatter SDLTM_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private String changedAfter;
+    private String changedBefore;
+    private String user;
+    private Integer minLength;
+    private Integer maxLength;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+
+    public TMFilter() {
+    }
+
+    /**
+     * Copy of the filter, which can then be changed independently.
+     */
+    public TMFilter(TMFilter filter) {
+        this.changedAfter = filter.changedAfter;
+        this.changedBefore = filter.changedBefore;
+        this.user = filter.user;
+        this.minLength = filter.minLength;
+        this.maxLength = filter.maxLength;
+        this.attributes.putAll(filter.attributes);
+    }
+
+    public boolean isEmpty() {
+        return changedAfter == null && changedBefore == null && user == null && minLength == null
+                && maxLength == null && attributes.isEmpty();
+    }
+
+    /**
+     * Build the WHERE clause (including the <code>where</code> keyword, or an
+     * empty string if there is no criteria) matching this filter. The values
+     * are bound by {@link #bind(PreparedStatement, int)}.
+     */
+    public String toWhereClause() {
+        List<String> clauses = new ArrayList<>();
+        if (changedAfter != null) {
+            clauses.add("tu.change_date >= ?");
+        }
+        if (changedBefore != null) {
+            clauses.add("tu.change_date < ?");
+        }
+        if (user != null) {
+            clauses.add("(tu.creation_user = ? or tu.change_user = ?)");
+        }
+        // There is no plain text column. The XML of a segment is at least as
+        // long as its text, so the shorter ones can already be skipped.
+        if (minLength != null) {
+            clauses.add("length(tu.source_segment) >= ?");
+        }
+        for (int i = 0; i < attributes.size(); i++) {
+            clauses.add("tu.id in (select sa.translation_unit_id from string_attributes sa"
+                    + " join attributes a on a.id = sa.attribute_id where a.name = ? and sa.value = ?"
+                    + " union select na.translation_unit_id from numeric_attributes na"
+                    + " join attributes a on a.id = na.attribute_id where a.name = ? and cast(na.value as text) = ?"
+                    + " union select da.translation_unit_id from date_attributes da"
+                    + " join attributes a on a.id = da.attribute_id where a.name = ? and da.value like ? || '%'"
+                    + " union select pa.translation_unit_id from picklist_attributes pa"
+                    + " join picklist_values pv on pv.id = pa.picklist_value_id"
+                    + " join attributes a on a.id = pv.attribute_id where a.name = ? and pv.value = ?)");
+        }
+
+        if (clauses.isEmpty()) {
+            return "";
+        }
+        return " where " + String.join(" and ", clauses);
+    }
+
+    /**
+     * Bind the filter values to the statement, starting at the given parameter
+     * index.
+     *
+     * @return the next free parameter index
+     */
+    public int bind(PreparedStatement statement, int index) throws SQLException {
+        if (changedAfter != null) {
+            statement.setString(index++, changedAfter);
+        }
+        if (changedBefore != null) {
+            statement.setString(index++, changedBefore);
+        }
+        if (user != null) {
+            statement.setString(index++, user);
+            statement.setString(index++, user);
+        }
+        if (minLength != null) {
+            statement.setInt(index++, minLength);
+        }
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            for (int i = 0; i < 4; i++) {
+                statement.setString(index++, attribute.getKey());
+                statement.setString(index++, attribute.getValue());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the plain text of the source segment, without its tags,
+     *         has a length within the bounds of the filter
+     */
+    public boolean acceptsSource(String text) {
+        if (minLength == null && maxLength == null) {
+            return true;
+        }
+        int length = text.codePointCount(0, text.length());
+        return (minLength == null || length >= minLength) && (maxLength == null || length <= maxLength);
+    }
+
+    /**
+     * Parse a date given as <code>yyyy-MM-dd</code> or
+     * <code>yyyy-MM-ddTHH:mm:ss</code> to the SDLTM storage format.
+     */
+    static String toSdltmDate(String date) {
+        try {
+            return LocalDateTime.parse(date).format(SDLTM_DATE);
+        } catch (DateTimeParseException e) {
+            return LocalDate.parse(date).atStartOfDay().format(SDLTM_DATE);
+        }
+    }
+
+    public String getChangedAfter() {
+        return changedAfter;
+    }
+
+    public void setChangedAfter(String changedAfter) {
+        this.changedAfter = changedAfter == null ? null : toSdltmDate(changedAfter);
+    }
+
+    public String getChangedBefore() {
+        return changedBefore;
+    }
+
+    public void setChangedBefore(String changedBefore) {
+        this.changedBefore = changedBefore == null ? null : toSdltmDate(changedBefore);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public Integer getMinLength() {
+        return minLength;
+    }
+
+    public void setMinLength(Integer minLength) {
+        this.minLength = minLength;
+    }
+
+    public Integer getMaxLength() {
+        return maxLength;
+    }
+
+    public void setMaxLength(Integer maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Only keep the TU having the given value for the attribute (field). When
+     * several attributes are given, all of them must match.
+     */
+    public void addAttribute(String name, String value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * @return the criteria of the filter, empty if there is none
+     */
+    @Override
+    public String toString() {
+        List<String> criteria = new ArrayList<>();
+        if (changedAfter != null) {
+            criteria.add("changedAfter=" + changedAfter);
+        }
+        if (changedBefore != null) {
+            criteria.add("changedBefore=" + changedBefore);
+        }
+        if (user != null) {
+            criteria.add("user=" + user);
+        }
+        if (minLength != null) {
+            criteria.add("minLength=" + minLength);
+        }
+        if (maxLength != null) {
+            criteria.add("maxLength=" + maxLength);
+        }
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            criteria.add("attribute:" + attribute.getKey() + "=" + attribute.getValue());
+        }
+        return String.join(", ", criteria);
+    }
+
+}
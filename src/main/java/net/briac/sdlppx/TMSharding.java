@@ -0,0 +1,198 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Splitting of an exported TMX in several shards.
+ *
+ * A new shard is started after {@link #setMaxTUs(int) N TU} or
+ * {@link #setMaxBytes(long) M bytes}, and/or for each value of a key: the
+ * year or month of the TU change date, or the value of a field. Like the
+ * {@link TMFilter}, the key is computed by SQLite in the export query
+ * (<code>tu</code> being the <code>translation_units</code> table).
+ *
+ * @author briac
+ *
+ */
+public class TMSharding {
+
+    public static final String KEY_YEAR = "year";
+    public static final String KEY_MONTH = "month";
+
+    /** Name of the shards of TU without a value for the key. */
+    static final String NO_KEY = "none";
+
+    private int maxTUs = 0;
+    private long maxBytes = 0;
+    private String key;
+
+    public TMSharding() {
+    }
+
+    /**
+     * Copy of the sharding, which can then be changed independently.
+     */
+    public TMSharding(TMSharding sharding) {
+        this.maxTUs = sharding.maxTUs;
+        this.maxBytes = sharding.maxBytes;
+        this.key = sharding.key;
+    }
+
+    /**
+     * @return true if the TMX is written as a single file
+     */
+    public boolean isEmpty() {
+        return maxTUs <= 0 && maxBytes <= 0 && key == null;
+    }
+
+    public boolean isKeyed() {
+        return key != null;
+    }
+
+    /**
+     * Build the expression of the key column to add to the select list
+     * (including the leading comma), or an empty string if the shards are not
+     * keyed. The values are bound by {@link #bind(PreparedStatement, int)}.
+     */
+    public String toSelectExpression() {
+        if (key == null) {
+            return "";
+        }
+        if (KEY_YEAR.equals(key)) {
+            return ", substr(tu.change_date, 1, 4)";
+        }
+        if (KEY_MONTH.equals(key)) {
+            return ", substr(tu.change_date, 1, 7)";
+        }
+        // The smallest value if the field has several
+        List<String> values = new ArrayList<>();
+        values.add("(select min(sa.value) from string_attributes sa join attributes a on a.id = sa.attribute_id"
+                + " where sa.translation_unit_id = tu.id and a.name = ?)");
+        values.add("(select min(cast(na.value as text)) from numeric_attributes na"
+                + " join attributes a on a.id = na.attribute_id where na.translation_unit_id = tu.id and a.name = ?)");
+        values.add("(select min(substr(da.value, 1, 10)) from date_attributes da"
+                + " join attributes a on a.id = da.attribute_id where da.translation_unit_id = tu.id and a.name = ?)");
+        values.add("(select min(pv.value) from picklist_attributes pa"
+                + " join picklist_values pv on pv.id = pa.picklist_value_id"
+                + " join attributes a on a.id = pv.attribute_id where pa.translation_unit_id = tu.id and a.name = ?)");
+        return ", coalesce(" + String.join(", ", values) + ")";
+    }
+
+    /**
+     * Bind the key values to the statement, starting at the given parameter
+     * index.
+     *
+     * @return the next free parameter index
+     */
+    public int bind(PreparedStatement statement, int index) throws SQLException {
+        if (key != null && !KEY_YEAR.equals(key) && !KEY_MONTH.equals(key)) {
+            for (int i = 0; i < 4; i++) {
+                statement.setString(index++, key);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The shard names only depend on the export, so that exporting the same
+     * TU again gives the same files: <code>name_key_0001.tmx</code>.
+     */
+    String shardName(String name, String keyValue, int number) {
+        StringBuilder shard = new StringBuilder(name);
+        if (key != null) {
+            shard.append('_').append(keyValue);
+        }
+        return shard.append('_').append(String.format("%04d", number)).toString();
+    }
+
+    /**
+     * @return the pattern of the names of the files an export of the TMX can
+     *         write: <code>name.tmx</code> or its shards, gzipped or not, and
+     *         their concordance index
+     */
+    static Pattern outputNames(String name) {
+        return Pattern.compile(Pattern.quote(name) + "((_[\\p{L}\\p{N}._-]+)?_\\d{4})?\\.(tmx(\\.gz)?|index)");
+    }
+
+    /**
+     * @return the key value usable in a file name
+     */
+    static String toFileName(String keyValue) {
+        if (keyValue == null || keyValue.isEmpty()) {
+            return NO_KEY;
+        }
+        return keyValue.replaceAll("[^\\p{L}\\p{N}.-]", "_");
+    }
+
+    public int getMaxTUs() {
+        return maxTUs;
+    }
+
+    /**
+     * Start a new shard after this number of TU, 0 for no limit.
+     */
+    public void setMaxTUs(int maxTUs) {
+        this.maxTUs = maxTUs;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Start a new shard before its TU exceed this size (in the uncompressed
+     * TMX, without the header), 0 for no limit.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Write a shard per value of the key: {@link #KEY_YEAR} or
+     * {@link #KEY_MONTH} of the change date, or the name of a field. null to
+     * only split on the size.
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    @Override
+    public String toString() {
+        List<String> criteria = new ArrayList<>();
+        if (maxTUs > 0) {
+            criteria.add("maxTUs=" + maxTUs);
+        }
+        if (maxBytes > 0) {
+            criteria.add("maxBytes=" + maxBytes);
+        }
+        if (key != null) {
+            criteria.add("key=" + key);
+        }
+        return String.join(", ", criteria);
+    }
+
+}
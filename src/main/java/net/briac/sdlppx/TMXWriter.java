@@ -0,0 +1,270 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import net.briac.sdlppx.model.Prop;
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+/**
+ * Streaming TMX writer, the TU are written as soon as they are read from the
+ * SDLTM instead of building the whole document in memory.
+ *
+ * @author briac
+ *
+ */
+public class TMXWriter implements TUWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Prefix of the type of the props holding the SDLTM fields. */
+    static final String PROP_PREFIX = "x-";
+
+    /** Larger TU buffers are not kept once the TU is written. */
+    private static final int MAX_TU_BUFFER = 64 * 1024;
+
+    private final Writer out;
+    private StringBuilder tuBuffer = new StringBuilder(1024);
+    private int count = 0;
+
+    public TMXWriter(OutputStream os, String srcLang) throws IOException {
+        this(os);
+        writeHeader(srcLang);
+    }
+
+    /**
+     * Writer appending TU to a TMX whose header is already written, when
+     * resuming an export.
+     */
+    TMXWriter(OutputStream os) {
+        out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private void writeHeader(String srcLang) throws IOException {
+        Package pack = TMXWriter.class.getPackage();
+        StringBuilder header = new StringBuilder(512);
+        header.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tmx version=\"1.1\">\n<header");
+        appendAttribute(header, "creationtool", pack.getImplementationTitle());
+        appendAttribute(header, "creationtoolversion", pack.getImplementationVersion());
+        appendAttribute(header, "o-tmf", "SDLTM");
+        appendAttribute(header, "adminlang", "en-US");
+        appendAttribute(header, "datatype", "plaintext");
+        appendAttribute(header, "segtype", "sentence");
+        appendAttribute(header, "srclang", srcLang);
+        header.append("/>\n<body>\n");
+        out.write(header.toString());
+    }
+
+    /**
+     * The TU is built in a buffer and written at once, rather than in many
+     * small writes to the (synchronized) writer.
+     */
+    @Override
+    public void writeTU(TranslationUnit tu) throws IOException {
+        StringBuilder sb = tuBuffer;
+        sb.setLength(0);
+        sb.append("<tu");
+        appendMetadata(sb, tu);
+        sb.append('>');
+        for (Prop prop : tu.getProps()) {
+            sb.append("<prop type=\"").append(escape(PROP_PREFIX + prop.getType(), true)).append("\">")
+                    .append(escape(prop.getValue() == null ? "" : prop.getValue(), false)).append("</prop>");
+        }
+        appendTuv(sb, tu.getSource());
+        appendTuv(sb, tu.getTarget());
+        sb.append("</tu>\n");
+        out.write(sb.toString());
+        count++;
+        if (sb.capacity() > MAX_TU_BUFFER) {
+            tuBuffer = new StringBuilder(1024);
+        }
+    }
+
+    /**
+     * The <code>tu</code> attributes of the metadata read from the SDLTM, if
+     * any.
+     */
+    private static void appendMetadata(StringBuilder sb, TranslationUnit tu) {
+        if (tu.getCreationDate() != null) {
+            appendAttribute(sb, "creationdate", toTmxDate(tu.getCreationDate()));
+        }
+        if (tu.getCreationUser() != null) {
+            appendAttribute(sb, "creationid", tu.getCreationUser());
+        }
+        if (tu.getChangeDate() != null) {
+            appendAttribute(sb, "changedate", toTmxDate(tu.getChangeDate()));
+        }
+        if (tu.getChangeUser() != null) {
+            appendAttribute(sb, "changeid", tu.getChangeUser());
+        }
+        if (tu.getLastUsedDate() != null) {
+            appendAttribute(sb, "lastusagedate", toTmxDate(tu.getLastUsedDate()));
+        }
+        if (tu.getUsageCount() != null) {
+            sb.append(" usagecount=\"").append(tu.getUsageCount().intValue()).append('"');
+        }
+    }
+
+    /**
+     * Convert a SDLTM date (<code>yyyy-MM-dd HH:mm:ss</code>, UTC) to the TMX
+     * format (<code>yyyyMMddTHHmmssZ</code>).
+     */
+    static String toTmxDate(String date) {
+        if (date.length() < 19) {
+            return date;
+        }
+        return new StringBuilder(16).append(date, 0, 4).append(date, 5, 7).append(date, 8, 10).append('T')
+                .append(date, 11, 13).append(date, 14, 16).append(date, 17, 19).append('Z').toString();
+    }
+
+    /**
+     * @return the size in bytes of the TU written by {@link #writeTU}
+     */
+    static long sizeOf(TranslationUnit tu) {
+        // <tu></tu>\n and twice <tuv lang=""><seg></seg></tuv>
+        long size = 10 + sizeOf(tu.getSource()) + sizeOf(tu.getTarget());
+        // Each attribute is ' name="value"'
+        if (tu.getCreationDate() != null) {
+            size += 16 + utf8Length(toTmxDate(tu.getCreationDate()));
+        }
+        if (tu.getCreationUser() != null) {
+            size += 14 + utf8Length(escape(tu.getCreationUser(), true));
+        }
+        if (tu.getChangeDate() != null) {
+            size += 14 + utf8Length(toTmxDate(tu.getChangeDate()));
+        }
+        if (tu.getChangeUser() != null) {
+            size += 12 + utf8Length(escape(tu.getChangeUser(), true));
+        }
+        if (tu.getLastUsedDate() != null) {
+            size += 17 + utf8Length(toTmxDate(tu.getLastUsedDate()));
+        }
+        if (tu.getUsageCount() != null) {
+            size += 14 + tu.getUsageCount().toString().length();
+        }
+        for (Prop prop : tu.getProps()) {
+            // <prop type=""></prop>
+            size += 21 + utf8Length(escape(PROP_PREFIX + prop.getType(), true))
+                    + utf8Length(escape(prop.getValue() == null ? "" : prop.getValue(), false));
+        }
+        return size;
+    }
+
+    private static long sizeOf(Tuv tuv) {
+        return 30 + utf8Length(escape(tuv.getLang() == null ? "" : tuv.getLang(), true)) + utf8Length(tuv.getSeg());
+    }
+
+    private static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void appendTuv(StringBuilder sb, Tuv tuv) {
+        sb.append("<tuv");
+        appendAttribute(sb, "lang", tuv.getLang());
+        // Don't indent as it messes up tags in segment
+        sb.append("><seg>").append(tuv.getSeg()).append("</seg></tuv>");
+    }
+
+    private static void appendAttribute(StringBuilder sb, String name, String value) {
+        sb.append(' ').append(name).append("=\"").append(escape(value == null ? "" : value, true)).append('"');
+    }
+
+    /**
+     * @return the number of TU written so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Write the buffered TU to the stream.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("</body>\n</tmx>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Escape a string to be used as XML content, or as an attribute value.
+     */
+    public static String escape(String s, boolean isAttribute) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String entity;
+            switch (c) {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '"':
+                entity = isAttribute ? "&quot;" : null;
+                break;
+            default:
+                entity = null;
+            }
+            if (entity == null) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(s.length() + 16);
+                sb.append(s, 0, i);
+            }
+            sb.append(entity);
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+}
@@ -0,0 +1,77 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.briac.sdlppx.model.TranslationUnit;
+
+/**
+ * Receives the TU streamed from a SDLTM.
+ *
+ * @author briac
+ *
+ */
+public interface TUWriter extends Closeable {
+
+    void writeTU(TranslationUnit tu) throws IOException;
+
+    /**
+     * Write a TU with the value it is sharded on, ignored by the writers
+     * not splitting their output.
+     *
+     * @see TMSharding
+     */
+    default void writeTU(TranslationUnit tu, String shardKey) throws IOException {
+        writeTU(tu);
+    }
+
+    /**
+     * @return a writer sending the TU to all the given writers
+     */
+    static TUWriter tee(TUWriter... writers) {
+        return new TUWriter() {
+            @Override
+            public void writeTU(TranslationUnit tu) throws IOException {
+                for (TUWriter writer : writers) {
+                    writer.writeTU(tu);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                IOException failure = null;
+                for (TUWriter writer : writers) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        } else {
+                            failure.addSuppressed(e);
+                        }
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        };
+    }
+
+}
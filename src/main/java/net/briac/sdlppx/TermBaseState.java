@@ -0,0 +1,245 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.briac.sdlppx.model.Concept;
+import net.briac.sdlppx.model.Term;
+import net.briac.sdlppx.model.TermGroup;
+
+/**
+ * State of the incremental export of a SDLTB: the hash of the XML of each
+ * concept and the concept read from it, and the glossary written.
+ *
+ * The concepts whose XML has the same hash as in the previous export are
+ * taken from the state instead of being parsed again, and the glossary is
+ * not written again if no concept was added, changed or removed.
+ *
+ * @author briac
+ *
+ */
+final class TermBaseState {
+
+    private static final Logger LOGGER = Logger.getLogger(TermBaseState.class.getName());
+
+    static final String EXT_STATE = ".state";
+
+    private static final int VERSION = 1;
+
+    private static final class Entry {
+        private final long hash1;
+        private final long hash2;
+        private final Concept concept;
+
+        Entry(long[] hash, Concept concept) {
+            this.hash1 = hash[0];
+            this.hash2 = hash[1];
+            this.concept = concept;
+        }
+
+        boolean matches(long[] hash) {
+            return hash1 == hash[0] && hash2 == hash[1];
+        }
+    }
+
+    private final File file;
+    private final Map<Integer, Entry> previous;
+    private final Map<Integer, Entry> current = new HashMap<>();
+    private String outputName;
+    private long outputSize;
+    private int parsed = 0;
+
+    private TermBaseState(File file, Map<Integer, Entry> previous, String outputName, long outputSize) {
+        this.file = file;
+        this.previous = previous;
+        this.outputName = outputName;
+        this.outputSize = outputSize;
+    }
+
+    /**
+     * @return the state saved in the file, or an empty state if there is none
+     *         or it can't be read
+     */
+    static TermBaseState load(File file) {
+        Map<Integer, Entry> entries = new HashMap<>();
+        if (!file.isFile()) {
+            return new TermBaseState(file, entries, null, -1);
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), FileUtils.BUFFER_SIZE))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown version");
+            }
+            String outputName = readText(in);
+            long outputSize = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                long[] hash = { in.readLong(), in.readLong() };
+                entries.put(id, new Entry(hash, readConcept(in)));
+            }
+            LOGGER.log(Level.INFO, "{0} concepts in {1}", new Object[] { count, file });
+            return new TermBaseState(file, entries, outputName, outputSize);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot read {0}, all the concepts are read again: {1}",
+                    new Object[] { file, e.getMessage() });
+            return new TermBaseState(file, new HashMap<>(), null, -1);
+        }
+    }
+
+    static long[] hash(String xml) {
+        return MurmurHash3.hash128(xml);
+    }
+
+    /**
+     * @return the concept read in the previous export if its XML has the same
+     *         hash, null if it must be parsed
+     */
+    Concept reuse(int id, long[] hash) {
+        Entry entry = previous.get(id);
+        if (entry == null || !entry.matches(hash)) {
+            return null;
+        }
+        current.put(id, entry);
+        return entry.concept;
+    }
+
+    /**
+     * Record a concept parsed from its XML.
+     */
+    void parsed(int id, long[] hash, Concept concept) {
+        current.put(id, new Entry(hash, concept));
+        parsed++;
+    }
+
+    /**
+     * @return the number of concepts parsed by this export
+     */
+    int getParsed() {
+        return parsed;
+    }
+
+    /**
+     * @return true if the glossary written by the previous export is still
+     *         the one of the termbase
+     */
+    boolean isUpToDate(File output) {
+        return parsed == 0 && current.size() == previous.size() && output.getName().equals(outputName)
+                && output.length() == outputSize;
+    }
+
+    /**
+     * Save the concepts of this export and the glossary written, replacing
+     * the file atomically.
+     */
+    void save(File output) throws IOException {
+        outputName = output.getName();
+        outputSize = output.length();
+        Path tmpFile = FileUtils.tmpSibling(file.toPath());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile), FileUtils.BUFFER_SIZE))) {
+            out.writeInt(VERSION);
+            writeText(out, outputName);
+            out.writeLong(outputSize);
+            out.writeInt(current.size());
+            for (Map.Entry<Integer, Entry> entry : current.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue().hash1);
+                out.writeLong(entry.getValue().hash2);
+                writeConcept(out, entry.getValue().concept);
+            }
+        }
+        FileUtils.replace(tmpFile, file.toPath());
+    }
+
+    private static void writeConcept(DataOutputStream out, Concept concept) throws IOException {
+        writeText(out, concept.getCreator());
+        writeText(out, concept.getCreationTime());
+        writeText(out, concept.getModifier());
+        writeText(out, concept.getModificationTime());
+        out.writeInt(concept.getMetadata().size());
+        for (Map.Entry<String, String> meta : concept.getMetadata().entrySet()) {
+            writeText(out, meta.getKey());
+            writeText(out, meta.getValue());
+        }
+        out.writeInt(concept.termGroups.size());
+        for (Map.Entry<String, TermGroup> group : concept.termGroups.entrySet()) {
+            writeText(out, group.getKey());
+            writeText(out, group.getValue().getDefinition());
+            List<Term> terms = group.getValue().terms;
+            out.writeInt(terms.size());
+            for (Term term : terms) {
+                writeText(out, term.getWord());
+                writeText(out, term.getTermInfo());
+                writeText(out, term.getUsage());
+            }
+        }
+    }
+
+    private static Concept readConcept(DataInputStream in) throws IOException {
+        Concept concept = new Concept();
+        concept.setEntryCreator(readText(in));
+        concept.setCreationTime(readText(in));
+        concept.setEntryModifier(readText(in));
+        concept.setModificationTime(readText(in));
+        int metaCount = in.readInt();
+        for (int i = 0; i < metaCount; i++) {
+            concept.addMeta(readText(in), readText(in));
+        }
+        int groupCount = in.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            String lang = readText(in);
+            concept.addTermgroup(lang);
+            concept.addDef(readText(in), lang);
+            int termCount = in.readInt();
+            for (int j = 0; j < termCount; j++) {
+                Term term = new Term(readText(in));
+                term.addTermInfo(readText(in));
+                term.addUsage(readText(in));
+                concept.addTerm(term, lang);
+            }
+        }
+        return concept;
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,194 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamException;
+
+import net.briac.sdlppx.model.Concept;
+import net.briac.sdlppx.model.Term;
+import net.briac.sdlppx.model.TermBase;
+import net.briac.sdlppx.model.TermGroup;
+
+/**
+ * Find the termbase entries used in the source segments of the SDLXLIFF, and
+ * the forbidden terms (NonTerm) used in their targets.
+ *
+ * The terms of each language are compiled once in an Aho-Corasick automaton,
+ * each SDLXLIFF is then read in a single pass. A checker can be shared by
+ * several threads.
+ *
+ * @author briac
+ *
+ */
+public class TermChecker {
+    private static final Logger LOGGER = Logger.getLogger(TermChecker.class.getName());
+
+    private static final String NON_TERM = "NonTerm";
+
+    /** The terms found in a SDLXLIFF. */
+    public static class Report {
+        private final String file;
+        // term -> number of source segments using it
+        private final Map<String, Integer> hits = new TreeMap<>();
+        // segment -> forbidden terms used in its target
+        private final Map<String, Set<String>> forbidden = new TreeMap<>();
+
+        Report(String file) {
+            this.file = file;
+        }
+
+        /** @return the URI of the checked file */
+        public String getFile() {
+            return file;
+        }
+
+        public Map<String, Integer> getHits() {
+            return hits;
+        }
+
+        public Map<String, Set<String>> getForbidden() {
+            return forbidden;
+        }
+    }
+
+    private final List<TermBase> termbases;
+    private final Map<String, AhoCorasick<String>> terms = new ConcurrentHashMap<>();
+    private final Map<String, AhoCorasick<String>> forbiddenTerms = new ConcurrentHashMap<>();
+
+    public TermChecker(List<TermBase> termbases) {
+        this.termbases = termbases;
+    }
+
+    public Report check(Path sdlxliff) throws IOException {
+        try (InputStream is = Files.newInputStream(sdlxliff)) {
+            return check(sdlxliff.toUri().toString(), is);
+        }
+    }
+
+    /**
+     * @param file
+     *            the URI of the SDLXLIFF, for the report
+     */
+    public Report check(String file, InputStream is) throws IOException {
+        Report report = new Report(file);
+        try {
+            SDLXLIFFReader.read(is, new SDLXLIFFReader.Handler() {
+                private AhoCorasick<String> sourceTerms;
+                private AhoCorasick<String> targetForbidden;
+
+                @Override
+                public void startFile(String sourceLanguage, String targetLanguage) {
+                    sourceTerms = automaton(terms, sourceLanguage, false);
+                    targetForbidden = automaton(forbiddenTerms, targetLanguage, true);
+                }
+
+                @Override
+                public void segment(String transUnitId, String mid, String source, String target) {
+                    if (source != null && sourceTerms != null) {
+                        // Each term is only counted once per segment
+                        Set<String> found = new HashSet<>();
+                        sourceTerms.scan(source, (values, start, end) -> found.addAll(values));
+                        for (String term : found) {
+                            report.hits.merge(term, 1, Integer::sum);
+                        }
+                    }
+                    if (target != null && targetForbidden != null) {
+                        targetForbidden.scan(target, (values, start, end) -> report.forbidden
+                                .computeIfAbsent(transUnitId + "/" + mid, k -> new TreeSet<>())
+                                .addAll(values));
+                    }
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read " + file, e);
+        }
+        return report;
+    }
+
+    private AhoCorasick<String> automaton(Map<String, AhoCorasick<String>> cache, String language,
+            boolean forbidden) {
+        if (language == null) {
+            return null;
+        }
+        AhoCorasick<String> automaton = cache.computeIfAbsent(language, l -> build(l, forbidden));
+        return automaton.size() == 0 ? null : automaton;
+    }
+
+    private AhoCorasick<String> build(String language, boolean forbidden) {
+        AhoCorasick.Builder<String> builder = AhoCorasick.builder();
+        for (TermBase termbase : termbases) {
+            String tbLanguage = findLanguage(termbase.languages.keySet(), language);
+            if (tbLanguage == null) {
+                continue;
+            }
+            for (Concept concept : termbase.concepts.values()) {
+                TermGroup group = concept.termGroups.get(tbLanguage);
+                if (group == null) {
+                    continue;
+                }
+                for (Term term : group.terms) {
+                    if (term.getTermInfo().contains(NON_TERM) == forbidden) {
+                        builder.add(term.getWord(), term.getWord());
+                    }
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "{0} {1} terms for {2}",
+                new Object[] { builder.size(), forbidden ? "forbidden" : "glossary", language });
+        return builder.build();
+    }
+
+    /**
+     * The termbase languages are names ("English", "French_France"...), find
+     * the one of a language code.
+     *
+     * @return the termbase language, or null if there is none for the code
+     */
+    static String findLanguage(Set<String> tbLanguages, String languageCode) {
+        Locale locale = Locale.forLanguageTag(languageCode);
+        String displayName = locale.getDisplayName(Locale.ENGLISH).replaceAll(" ", "_").replaceAll("\\(|\\)", "");
+        String displayLanguage = locale.getDisplayLanguage(Locale.ENGLISH);
+
+        String match = null;
+        for (String tbLanguage : tbLanguages) {
+            if (tbLanguage.equalsIgnoreCase(displayName) || tbLanguage.equalsIgnoreCase(languageCode)) {
+                return tbLanguage;
+            }
+            if (match == null && (tbLanguage.equalsIgnoreCase(displayLanguage)
+                    || tbLanguage.toLowerCase(Locale.ROOT).startsWith(displayLanguage.toLowerCase(Locale.ROOT) + "_"))) {
+                match = tbLanguage;
+            }
+        }
+        return match;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Word splitting used for the word counts and the fuzzy matching.
+ *
+ * A word is a run of letters or digits, which can contain a single
+ * apostrophe, hyphen, dot or comma between two letters or digits ("don't",
+ * "e-mail", "3.14"). Each ideographic character is a word on its own.
+ *
+ * @author briac
+ *
+ */
+public final class Words {
+
+    private Words() {
+    }
+
+    public static int count(String text) {
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int end = wordEnd(text, i);
+            if (end > i) {
+                count++;
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the words of the text, lower-cased
+     */
+    public static List<String> split(String text) {
+        List<String> words = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int end = wordEnd(text, i);
+            if (end > i) {
+                words.add(text.substring(i, end).toLowerCase());
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return the end of the word starting at start, or start if there is no
+     *         word there
+     */
+    private static int wordEnd(String text, int start) {
+        int c = text.codePointAt(start);
+        if (Character.isIdeographic(c)) {
+            return start + Character.charCount(c);
+        }
+        if (!Character.isLetterOrDigit(c)) {
+            return start;
+        }
+        int length = text.length();
+        int i = start + Character.charCount(c);
+        while (i < length) {
+            c = text.codePointAt(i);
+            if (Character.isLetterOrDigit(c) && !Character.isIdeographic(c)) {
+                i += Character.charCount(c);
+            } else if (isJoiner(c) && i + 1 < length && Character.isLetterOrDigit(text.codePointAt(i + 1))
+                    && !Character.isIdeographic(text.codePointAt(i + 1))) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return true for the characters of the scripts written without spaces
+     *         between words (Chinese, Japanese, Thai, Lao, Khmer, Myanmar),
+     *         where a word can start or end next to any other letter
+     */
+    static boolean isUnspaced(int c) {
+        if (c < 0x0E00) {
+            return false;
+        }
+        if (Character.isIdeographic(c)) {
+            return true;
+        }
+        switch (Character.UnicodeScript.of(c)) {
+        case THAI:
+        case LAO:
+        case KHMER:
+        case MYANMAR:
+        case HIRAGANA:
+        case KATAKANA:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isJoiner(int c) {
+        return c == '\'' || c == '\u2019' || c == '-' || c == '.' || c == ',';
+    }
+
+}
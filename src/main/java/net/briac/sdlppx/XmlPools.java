@@ -0,0 +1,121 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * XML parsers and transformers reused across files.
+ *
+ * The JAXP objects are not thread-safe and slow to create (service lookup).
+ * The StAX readers, used by the tasks that can run on virtual threads, come
+ * from a single factory, configured once and used under a lock: a
+ * per-thread factory would be created again for each virtual thread. The DOM
+ * parser, transformer and XPath are only used by the engine and the
+ * ParallelTasks pool, whose platform threads each keep their own instance,
+ * reset before being handed out.
+ *
+ * @author briac
+ *
+ */
+final class XmlPools {
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<>();
+    private static final ThreadLocal<XPath> XPATH = new ThreadLocal<>();
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    // Not synchronized: a virtual thread waiting for the lock would pin its
+    // carrier thread
+    private static final ReentrantLock XML_INPUT_LOCK = new ReentrantLock();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private XmlPools() {
+    }
+
+    static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        if (builder == null) {
+            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            DOCUMENT_BUILDER.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    static Transformer transformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    static XPath xpath() {
+        XPath xpath = XPATH.get();
+        if (xpath == null) {
+            xpath = XPathFactory.newInstance().newXPath();
+            XPATH.set(xpath);
+        } else {
+            xpath.reset();
+        }
+        return xpath;
+    }
+
+    /**
+     * Only the creation of the reader is locked, not the parsing.
+     */
+    static XMLStreamReader createXMLStreamReader(InputStream is) throws XMLStreamException {
+        XML_INPUT_LOCK.lock();
+        try {
+            return XML_INPUT_FACTORY.createXMLStreamReader(is);
+        } finally {
+            XML_INPUT_LOCK.unlock();
+        }
+    }
+
+    static XMLStreamReader createXMLStreamReader(Reader reader) throws XMLStreamException {
+        XML_INPUT_LOCK.lock();
+        try {
+            return XML_INPUT_FACTORY.createXMLStreamReader(reader);
+        } finally {
+            XML_INPUT_LOCK.unlock();
+        }
+    }
+
+}
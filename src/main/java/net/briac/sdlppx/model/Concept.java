@@ -1,6 +1,8 @@
 package net.briac.sdlppx.model;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class Concept {
@@ -17,7 +19,7 @@ public class Concept {
         creationTime = "";
         modifier = "";
         modificationTime = "";
-        metadata = new HashMap<>();
+        metadata = new LinkedHashMap<>();
     }
 
     public void setEntryCreator(String c) {
@@ -77,4 +79,10 @@ public class Concept {
         }
     }
 
+    /**
+     * @return the concept-level metadata, in document order
+     */
+    public Map<String, String> getMetadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
 }
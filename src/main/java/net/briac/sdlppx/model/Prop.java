@@ -0,0 +1,22 @@
+package net.briac.sdlppx.model;
+
+public class Prop {
+
+    // Name of the SDLTM field
+    private final String type;
+    private final String value;
+
+    public Prop(String type, String value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+}
@@ -0,0 +1,33 @@
+package net.briac.sdlppx.model;
+
+public class TranslationMemory {
+
+    private final String name;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private final int tuCount;
+
+    public TranslationMemory(String name, String sourceLanguage, String targetLanguage, int tuCount) {
+        this.name = name;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        this.tuCount = tuCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSourceLanguage() {
+        return sourceLanguage;
+    }
+
+    public String getTargetLanguage() {
+        return targetLanguage;
+    }
+
+    public int getTuCount() {
+        return tuCount;
+    }
+
+}
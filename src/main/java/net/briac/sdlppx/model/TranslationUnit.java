@@ -0,0 +1,95 @@
+package net.briac.sdlppx.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TranslationUnit {
+
+    private final long id;
+    private final Tuv source;
+    private final Tuv target;
+
+    // Metadata, only read when exporting them (SDLTM date format)
+    private String creationDate;
+    private String creationUser;
+    private String changeDate;
+    private String changeUser;
+    private String lastUsedDate;
+    private Integer usageCount;
+    private final List<Prop> props = new ArrayList<>();
+
+    public TranslationUnit(long id, Tuv source, Tuv target) {
+        this.id = id;
+        this.source = source;
+        this.target = target;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Tuv getSource() {
+        return source;
+    }
+
+    public Tuv getTarget() {
+        return target;
+    }
+
+    public String getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(String creationDate) {
+        this.creationDate = creationDate;
+    }
+
+    public String getCreationUser() {
+        return creationUser;
+    }
+
+    public void setCreationUser(String creationUser) {
+        this.creationUser = creationUser;
+    }
+
+    public String getChangeDate() {
+        return changeDate;
+    }
+
+    public void setChangeDate(String changeDate) {
+        this.changeDate = changeDate;
+    }
+
+    public String getChangeUser() {
+        return changeUser;
+    }
+
+    public void setChangeUser(String changeUser) {
+        this.changeUser = changeUser;
+    }
+
+    public String getLastUsedDate() {
+        return lastUsedDate;
+    }
+
+    public void setLastUsedDate(String lastUsedDate) {
+        this.lastUsedDate = lastUsedDate;
+    }
+
+    public Integer getUsageCount() {
+        return usageCount;
+    }
+
+    public void setUsageCount(Integer usageCount) {
+        this.usageCount = usageCount;
+    }
+
+    public List<Prop> getProps() {
+        return props;
+    }
+
+    public void addProp(Prop prop) {
+        props.add(prop);
+    }
+
+}
@@ -0,0 +1,29 @@
+package net.briac.sdlppx.model;
+
+public class Tuv {
+
+    private final String lang;
+    // Content of the TMX <seg>, already escaped
+    private final String seg;
+    // Plain text, without the tags
+    private final String text;
+
+    public Tuv(String lang, String seg, String text) {
+        this.lang = lang;
+        this.seg = seg;
+        this.text = text;
+    }
+
+    public String getLang() {
+        return lang;
+    }
+
+    public String getSeg() {
+        return seg;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+}
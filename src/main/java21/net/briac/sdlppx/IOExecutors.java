@@ -0,0 +1,83 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Run the per-entry tasks that mostly wait for I/O (zip entry reads and
+ * writes, file copies).
+ *
+ * This is the Java 21+ version of the multi-release JAR: each task gets its
+ * own virtual thread, a blocked task doesn't hold a platform thread. The
+ * number of tasks running at once is still bounded, as each one holds its
+ * buffers and open files. It must keep the same API as the Java 8 version in
+ * src/main/java.
+ *
+ * @author briac
+ *
+ */
+public final class IOExecutors {
+
+    // More tasks running than the Java 8 pool, the threads are cheap
+    private static final int MAX_RUNNING = Math.max(8, 4 * ParallelTasks.CPU_COUNT);
+
+    private IOExecutors() {
+    }
+
+    /**
+     * @return the kind of threads running the tasks
+     */
+    public static String getDescription() {
+        return "virtual threads (" + MAX_RUNNING + " running)";
+    }
+
+    /**
+     * Run all the tasks concurrently and wait for them.
+     *
+     * @return the results, in the order of the tasks
+     * @throws Exception
+     *             the first task failure, with the other ones as suppressed
+     *             exceptions
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws Exception {
+        if (tasks.size() <= 1) {
+            return ParallelTasks.invokeAll(tasks, 1);
+        }
+        Semaphore running = new Semaphore(MAX_RUNNING);
+        List<Callable<T>> gated = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            gated.add(() -> {
+                running.acquire();
+                try {
+                    return task.call();
+                } finally {
+                    running.release();
+                }
+            });
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            return ParallelTasks.collect(executor.invokeAll(gated));
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AhoCorasickTest {
+
+    @Test
+    public void testWholeWordsIgnoringCase() {
+        AhoCorasick<String> automaton = AhoCorasick.<String> builder().add("cat", "cat").add(" Cat food ", "cat food")
+                .add("  ", "blank").build();
+        assertEquals(2, automaton.size());
+        assertEquals(Arrays.asList("cat@4-7", "cat@12-15", "cat food@12-20"),
+                scan(automaton, "The CAT ate cat food, not catfood or concat or cat5."));
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        AhoCorasick<String> automaton = AhoCorasick.<String> builder().add("new york city", "city").add("york", "york")
+                .add("new york", "state").add("new", "new").add("york city", "york city").build();
+        assertEquals(Arrays.asList("new@3-6", "state@3-11", "york@7-11", "city@3-16", "york city@7-16"),
+                scan(automaton, "In New York City"));
+    }
+
+    @Test
+    public void testSamePatternValues() {
+        AhoCorasick<String> automaton = AhoCorasick.<String> builder().add("Invoice", "a").add("INVOICE", "b").build();
+        assertEquals(1, automaton.size());
+        List<List<String>> values = new ArrayList<>();
+        automaton.scan("One invoice.", (v, start, end) -> values.add(v));
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b")), values);
+    }
+
+    @Test
+    public void testScriptsWithoutSpaces() {
+        AhoCorasick<String> automaton = AhoCorasick.<String> builder().add("数据库", "zh").add("データベース", "ja")
+                .add("ภาษา", "th").add("USB", "usb").add("usb3", "usb3").build();
+        assertEquals(Arrays.asList("zh@2-5"), scan(automaton, "这个数据库很大"));
+        assertEquals(Arrays.asList("ja@2-8"), scan(automaton, "このデータベースは大きい"));
+        assertEquals(Arrays.asList("th@5-9"), scan(automaton, "เรียนภาษาไทย"));
+        // A latin term next to an ideographic character is a whole word
+        assertEquals(Arrays.asList("usb@0-3"), scan(automaton, "USB接口"));
+        // But not next to a latin letter or digit
+        assertEquals(Collections.emptyList(), scan(automaton, "USBs USB30"));
+    }
+
+    private static List<String> scan(AhoCorasick<String> automaton, String text) {
+        List<String> matches = new ArrayList<>();
+        automaton.scan(text, (values, start, end) -> {
+            for (String value : values) {
+                matches.add(value + "@" + start + "-" + end);
+            }
+        });
+        return matches;
+    }
+
+}
@@ -0,0 +1,156 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+public class CheckpointedTMXWriterTest {
+
+    private static final int TU_COUNT = 95;
+    private static final int INTERVAL = 10;
+    private static final String SOURCE = "Main (95 TU, size 1024, CRC 1234abcd)";
+    private static final String FILTER = "no filter";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResume() throws IOException {
+        testResume(false);
+    }
+
+    @Test
+    public void testResumeGzip() throws IOException {
+        testResume(true);
+    }
+
+    private void testResume(boolean compress) throws IOException {
+        File expected = folder.newFile("expected.tmx");
+        try (CheckpointedTMXWriter writer = open(expected, SOURCE, compress)) {
+            write(writer, 0);
+            writer.complete();
+        }
+
+        File tmx = folder.newFile("main.tmx");
+        Files.write(tmx.toPath(), "previous".getBytes(StandardCharsets.UTF_8));
+        File checkpoint = new File(tmx.getPath() + ".checkpoint");
+
+        // Interrupted after 3 commits, the TU after the last commit are lost
+        try (CheckpointedTMXWriter writer = open(tmx, SOURCE, compress)) {
+            assertEquals(0, writer.getResumedAfterId());
+            for (int i = 1; i <= 37; i++) {
+                writer.writeTU(tu(i));
+            }
+        }
+        assertTrue(checkpoint.isFile());
+        // The previous TMX is kept until the export is complete
+        assertEquals("previous", new String(Files.readAllBytes(tmx.toPath()), StandardCharsets.UTF_8));
+
+        try (CheckpointedTMXWriter writer = open(tmx, SOURCE, compress)) {
+            assertEquals(30, writer.getResumedAfterId());
+            assertEquals(30, writer.getCount());
+            write(writer, writer.getResumedAfterId());
+            assertEquals(TU_COUNT, writer.getCount());
+            writer.complete();
+        }
+        assertFalse(checkpoint.exists());
+        assertFalse(new File(folder.getRoot(), ".main.tmx.part").exists());
+
+        if (compress) {
+            assertArrayEquals(gunzip(expected), gunzip(tmx));
+        } else {
+            assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(tmx.toPath()));
+        }
+    }
+
+    @Test
+    public void testOtherSourceStartsAgain() throws IOException {
+        File tmx = folder.newFile("main.tmx");
+        try (CheckpointedTMXWriter writer = open(tmx, SOURCE, false)) {
+            for (int i = 1; i <= 25; i++) {
+                writer.writeTU(tu(i));
+            }
+        }
+
+        // Same TM and TU count, but another content
+        try (CheckpointedTMXWriter writer = open(tmx, "Main (95 TU, size 1024, CRC 5678ef01)", false)) {
+            assertEquals(0, writer.getResumedAfterId());
+            assertEquals(0, writer.getCount());
+        }
+    }
+
+    @Test
+    public void testOtherFilterStartsAgain() throws IOException {
+        File tmx = folder.newFile("main.tmx");
+        try (CheckpointedTMXWriter writer = open(tmx, SOURCE, false)) {
+            for (int i = 1; i <= 25; i++) {
+                writer.writeTU(tu(i));
+            }
+        }
+
+        try (CheckpointedTMXWriter writer = new CheckpointedTMXWriter(tmx, "en-US", SOURCE, "user=briac", INTERVAL,
+                false)) {
+            assertEquals(0, writer.getResumedAfterId());
+        }
+    }
+
+    private static CheckpointedTMXWriter open(File tmx, String source, boolean compress) throws IOException {
+        return new CheckpointedTMXWriter(tmx, "en-US", source, FILTER, INTERVAL, compress);
+    }
+
+    private static void write(CheckpointedTMXWriter writer, long afterId) throws IOException {
+        for (int i = (int) afterId + 1; i <= TU_COUNT; i++) {
+            writer.writeTU(tu(i));
+        }
+    }
+
+    private static TranslationUnit tu(int i) {
+        return new TranslationUnit(i, new Tuv("en-US", "Segment " + i, "Segment " + i),
+                new Tuv("fr-FR", "Segment " + i + " traduit", "Segment " + i + " traduit"));
+    }
+
+    private static byte[] gunzip(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+}
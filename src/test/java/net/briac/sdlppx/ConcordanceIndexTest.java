@@ -0,0 +1,137 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+public class ConcordanceIndexTest {
+
+    private static final int TU_COUNT = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBuildAndSearch() throws IOException {
+        File dir = build("index", Long.MAX_VALUE, 0);
+
+        try (ConcordanceIndex index = ConcordanceIndex.open(dir)) {
+            assertEquals(TU_COUNT, index.size());
+
+            List<ConcordanceIndex.Match> matches = index.search("SEGMENT 1234", 10);
+            assertEquals(1, matches.size());
+            assertEquals(1234, matches.get(0).getId());
+            assertEquals("Segment 1234 of the contract", matches.get(0).getSource());
+            assertEquals("Segment 1234 du contrat", matches.get(0).getTarget());
+
+            // Found in the target only
+            assertEquals(ids(7, 17, 27), ids(index.search("7 du contrat", 3)));
+            assertEquals(ids(), ids(index.search("not indexed", 10)));
+            assertEquals(ids(), ids(index.search("", 10)));
+        }
+    }
+
+    @Test
+    public void testQueryShorterThanATrigram() throws IOException {
+        File dir = build("index", Long.MAX_VALUE, 0);
+
+        try (ConcordanceIndex index = ConcordanceIndex.open(dir)) {
+            // Scans the TU in order
+            assertEquals(ids(3, 13, 23, 30, 31), ids(index.search("3", 5)));
+            assertEquals(ids(1, 11, 21), ids(index.search("1 ", 3)));
+            assertEquals(ids(), ids(index.search("é", 10)));
+        }
+    }
+
+    @Test
+    public void testSpilledPostings() throws IOException {
+        File inMemory = build("memory", Long.MAX_VALUE, 0);
+        // 1024 postings per run, enough runs for several merge passes
+        File spilled = build("spilled", 0, 64);
+
+        for (String name : new String[] { ConcordanceIndex.DOCS, ConcordanceIndex.DOCS_INDEX,
+                ConcordanceIndex.GRAMS, ConcordanceIndex.POSTINGS }) {
+            assertArrayEquals(name, Files.readAllBytes(new File(inMemory, name).toPath()),
+                    Files.readAllBytes(new File(spilled, name).toPath()));
+        }
+        // The runs are deleted
+        assertEquals(4, spilled.list().length);
+
+        try (ConcordanceIndex index = ConcordanceIndex.open(spilled)) {
+            assertEquals(ids(1999), ids(index.search("segment 1999", 10)));
+        }
+    }
+
+    /**
+     * @param minRuns
+     *            the number of runs the builder must have spilled
+     */
+    private File build(String name, long memoryBudget, int minRuns) throws IOException {
+        File dir = new File(folder.getRoot(), name);
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            ConcordanceIndex.Builder builder = new ConcordanceIndex.Builder(dir, batch, memoryBudget);
+            try {
+                for (int i = 0; i < TU_COUNT; i++) {
+                    builder.writeTU(new TranslationUnit(i, tuv("en-US", "Segment " + i + " of the contract"),
+                            tuv("fr-FR", "Segment " + i + " du contrat")));
+                }
+                assertTrue(builder.getRunCount() >= minRuns);
+            } finally {
+                builder.close();
+            }
+            batch.commit();
+        }
+        return dir;
+    }
+
+    private static Tuv tuv(String lang, String text) {
+        return new Tuv(lang, text, text);
+    }
+
+    private static List<Integer> ids(int... ids) {
+        List<Integer> list = new ArrayList<>();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Integer> ids(List<ConcordanceIndex.Match> matches) {
+        List<Integer> ids = new ArrayList<>();
+        for (ConcordanceIndex.Match match : matches) {
+            ids.add(match.getId());
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,113 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+public class DuplicateFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDuplicateTU() throws IOException {
+        try (DuplicateFilter filter = new DuplicateFilter(1024 * 1024, folder.getRoot().toPath())) {
+            assertTrue(filter.add(tu("en-US", "Hello  world", "fr-FR", "Bonjour le monde")));
+            // Same segments with other whitespaces and language case
+            assertFalse(filter.add(tu("EN-us", " Hello world ", "fr-fr", "Bonjour\tle monde")));
+            assertTrue(filter.add(tu("en-US", "Hello world", "de-DE", "Hallo Welt")));
+            assertEquals(1, filter.getDuplicates());
+        }
+    }
+
+    @Test
+    public void testGrowsWithoutSpilling() throws IOException {
+        try (DuplicateFilter filter = new DuplicateFilter(64L * 1024 * 1024, folder.getRoot().toPath())) {
+            Random random = new Random(1);
+            for (int i = 0; i < 100_000; i++) {
+                assertTrue(filter.add(random.nextLong(), random.nextLong()));
+            }
+            assertEquals(0, filter.getRunCount());
+            assertEquals(0, folder.getRoot().list().length);
+        }
+    }
+
+    @Test
+    public void testSpillAndMerge() throws IOException {
+        File spillDir = folder.newFolder("spill");
+        Set<String> expected = new HashSet<>();
+        long[] hashes = new long[60_000];
+        Random random = new Random(42);
+        for (int i = 0; i < hashes.length; i += 2) {
+            // Few distinct high halves, the low half must be compared too
+            hashes[i] = random.nextInt(50);
+            hashes[i + 1] = random.nextLong();
+        }
+
+        // 1024 slots, spilled every 768 hashes
+        try (DuplicateFilter filter = new DuplicateFilter(16 * 1024, spillDir.toPath())) {
+            for (int i = 0; i < hashes.length; i += 2) {
+                boolean isNew = expected.add(hashes[i] + "/" + hashes[i + 1]);
+                assertEquals(isNew, filter.add(hashes[i], hashes[i + 1]));
+            }
+            // About 40 spills, merged whenever there are more than 8 runs
+            assertTrue(filter.getRunCount() > 0 && filter.getRunCount() <= 8);
+            assertEquals(filter.getRunCount(), spillDir.list().length);
+
+            // Every hash is found again, in the table or in a run
+            for (int i = 0; i < hashes.length; i += 2) {
+                assertFalse(filter.add(hashes[i], hashes[i + 1]));
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(filter.add(random.nextInt(50), random.nextLong()));
+            }
+        }
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void testExpectedEntries() throws IOException {
+        File spillDir = folder.newFolder("spill");
+        try (DuplicateFilter filter = new DuplicateFilter(64L * 1024 * 1024, spillDir.toPath(), 50_000)) {
+            for (long i = 1; i <= 50_000; i++) {
+                assertTrue(filter.add(i, i));
+                assertFalse(filter.add(i, i));
+            }
+            assertEquals(0, filter.getRunCount());
+        }
+    }
+
+    private static TranslationUnit tu(String sourceLang, String source, String targetLang, String target) {
+        return new TranslationUnit(1, new Tuv(sourceLang, source, source), new Tuv(targetLang, target, target));
+    }
+
+}
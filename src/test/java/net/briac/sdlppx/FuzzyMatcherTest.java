@@ -0,0 +1,195 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import net.briac.sdlppx.Analysis.Band;
+
+public class FuzzyMatcherTest {
+
+    private static final String[] VOCABULARY = { "the", "contract", "is", "signed", "by", "both", "parties", "on",
+            "invoice", "date", "total", "amount" };
+
+    @Test
+    public void testSameScoresAsBruteForce() {
+        Random random = new Random(42);
+        Set<String> tm = new LinkedHashSet<>();
+        while (tm.size() < 300) {
+            tm.add(sentence(random, 1 + random.nextInt(12)));
+        }
+        FuzzyMatcher.Builder builder = new FuzzyMatcher.Builder();
+        tm.forEach(builder::add);
+        FuzzyMatcher matcher = builder.build();
+        assertEquals(tm.size(), matcher.size());
+
+        List<String> tmSegments = new ArrayList<>(tm);
+        for (int i = 0; i < 500; i++) {
+            String query;
+            if (i % 2 == 0) {
+                query = sentence(random, 1 + random.nextInt(14));
+            } else {
+                query = mutate(random, tmSegments.get(random.nextInt(tmSegments.size())));
+            }
+            assertEquals(query, bruteForceScore(tm, query), matcher.score(query));
+        }
+    }
+
+    @Test
+    public void testBoundedDistance() {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            int[] a = random.ints(random.nextInt(10), 0, 4).toArray();
+            int[] b = random.ints(random.nextInt(10), 0, 4).toArray();
+            int distance = levenshtein(a, b);
+            for (int max = 0; max <= 10; max++) {
+                assertEquals(Math.min(distance, max + 1), FuzzyMatcher.distance(a, b, max));
+            }
+        }
+    }
+
+    @Test
+    public void testBands() {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            words.add("word" + i);
+        }
+        String segment = String.join(" ", words);
+        FuzzyMatcher matcher = new FuzzyMatcher.Builder().add(segment).add("Other segment").build();
+
+        assertEquals(100, matcher.score(" " + segment + " "));
+        // Only the case or the punctuation differ
+        assertEquals(99, matcher.score(segment.toUpperCase()));
+        assertEquals(99, matcher.score(segment + "."));
+        // 20 words, each replaced one costs 5%
+        int[] expected = { 95, 90, 85, 80, 75, 70, 65, 60, 55, 50, 0 };
+        for (int replaced = 1; replaced <= expected.length; replaced++) {
+            List<String> changed = new ArrayList<>(words);
+            for (int i = 0; i < replaced; i++) {
+                changed.set(i * 20 / replaced, "new" + i);
+            }
+            assertEquals(replaced + " words replaced", expected[replaced - 1],
+                    matcher.score(String.join(" ", changed)));
+        }
+        // Relative to the longest segment
+        assertEquals(95, matcher.score(segment + " extra"));
+        assertEquals(95, matcher.score(String.join(" ", words.subList(1, 20))));
+
+        assertEquals(Band.EXACT, Band.of(100));
+        assertEquals(Band.FUZZY_95, Band.of(99));
+        assertEquals(Band.FUZZY_95, Band.of(95));
+        assertEquals(Band.FUZZY_85, Band.of(94));
+        assertEquals(Band.FUZZY_85, Band.of(85));
+        assertEquals(Band.FUZZY_75, Band.of(84));
+        assertEquals(Band.FUZZY_75, Band.of(75));
+        assertEquals(Band.FUZZY_50, Band.of(74));
+        assertEquals(Band.FUZZY_50, Band.of(FuzzyMatcher.MIN_SCORE));
+        assertEquals(Band.NO_MATCH, Band.of(49));
+        assertEquals(Band.NO_MATCH, Band.of(0));
+    }
+
+    @Test
+    public void testNoWords() {
+        FuzzyMatcher matcher = new FuzzyMatcher.Builder().add("...").add(" ").build();
+        assertEquals(0, matcher.size());
+        assertEquals(100, matcher.score("..."));
+        assertEquals(0, matcher.score("?"));
+        assertEquals(0, matcher.score("contract"));
+    }
+
+    private static String sentence(Random random, int length) {
+        String[] words = new String[length];
+        for (int i = 0; i < length; i++) {
+            words[i] = VOCABULARY[random.nextInt(VOCABULARY.length)];
+        }
+        return String.join(" ", words);
+    }
+
+    /** Replace, insert or delete a few words, or change the case. */
+    private static String mutate(Random random, String segment) {
+        List<String> words = new ArrayList<>(Arrays.asList(segment.split(" ")));
+        int edits = random.nextInt(4);
+        for (int i = 0; i < edits; i++) {
+            int position = random.nextInt(words.size() + 1);
+            switch (random.nextInt(3)) {
+            case 0:
+                words.add(position, random.nextBoolean() ? "unknown" : VOCABULARY[random.nextInt(VOCABULARY.length)]);
+                break;
+            case 1:
+                if (position < words.size() && words.size() > 1) {
+                    words.remove(position);
+                }
+                break;
+            default:
+                if (position < words.size()) {
+                    words.set(position, VOCABULARY[random.nextInt(VOCABULARY.length)]);
+                }
+            }
+        }
+        String text = String.join(" ", words);
+        return random.nextInt(4) == 0 ? text.toUpperCase() + "!" : text;
+    }
+
+    private static int bruteForceScore(Set<String> tm, String query) {
+        if (tm.contains(query.trim())) {
+            return 100;
+        }
+        List<String> words = Words.split(query);
+        int best = 0;
+        for (String segment : tm) {
+            List<String> tmWords = Words.split(segment);
+            if (words.isEmpty() || tmWords.isEmpty()) {
+                continue;
+            }
+            int longest = Math.max(words.size(), tmWords.size());
+            int distance = levenshtein(words.toArray(), tmWords.toArray());
+            best = Math.max(best, Math.min(99, (longest - distance) * 100 / longest));
+        }
+        return best < FuzzyMatcher.MIN_SCORE ? 0 : best;
+    }
+
+    private static int levenshtein(int[] a, int[] b) {
+        return levenshtein(Arrays.stream(a).boxed().toArray(), Arrays.stream(b).boxed().toArray());
+    }
+
+    private static int levenshtein(Object[] a, Object[] b) {
+        int[][] d = new int[a.length + 1][b.length + 1];
+        for (int i = 0; i <= a.length; i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length; j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                int cost = a[i - 1].equals(b[j - 1]) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+            }
+        }
+        return d[a.length][b.length];
+    }
+
+}
@@ -0,0 +1,242 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackageReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDeflatedEntriesWithDataDescriptor() throws IOException {
+        byte[] content = text(20_000);
+        Path zip = folder.newFile("descriptor.sdlppx").toPath();
+        // ZipOutputStream writes the sizes and CRC of a deflated entry in a
+        // data descriptor, after the data
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("fr-FR/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("fr-FR/doc.sdlxliff"));
+            out.write(content);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("Test.sdlproj"));
+            out.write("<PackageProject/>".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+
+        try (PackageReader reader = PackageReader.open(zip)) {
+            assertEquals(3, reader.size());
+            int entry = reader.indexOf("fr-FR/doc.sdlxliff");
+            assertEquals(1, entry);
+            assertEquals(PackageReader.DEFLATED, reader.getMethod(entry));
+            assertEquals(content.length, reader.getSize(entry));
+            assertEquals(crc(content), reader.getCrc(entry));
+            assertArrayEquals(content, read(reader, entry));
+            assertEquals("<PackageProject/>",
+                    new String(read(reader, reader.indexOf("Test.sdlproj")), StandardCharsets.UTF_8));
+
+            Path copy = folder.getRoot().toPath().resolve("doc.sdlxliff");
+            assertEquals(content.length, reader.copy(entry, copy));
+            assertArrayEquals(content, Files.readAllBytes(copy));
+        }
+    }
+
+    @Test
+    public void testStoredEntry() throws IOException {
+        byte[] content = text(5_000);
+        Path zip = folder.newFile("stored.sdlppx").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            ZipEntry entry = new ZipEntry("tm/main.sdltm");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCrc(crc(content));
+            out.putNextEntry(entry);
+            out.write(content);
+            out.closeEntry();
+        }
+
+        try (PackageReader reader = PackageReader.open(zip)) {
+            assertEquals(PackageReader.STORED, reader.getMethod(0));
+            assertArrayEquals(content, read(reader, 0));
+            Path copy = folder.getRoot().toPath().resolve("main.sdltm");
+            assertEquals(content.length, reader.copy(0, copy));
+            assertArrayEquals(content, Files.readAllBytes(copy));
+        }
+    }
+
+    @Test
+    public void testZip64EndOfCentralDirectory() throws IOException {
+        // More entries than the 16 bits count of the end record
+        int count = 0x10000 + 10;
+        Path zip = folder.newFile("many.sdlppx").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (int i = 0; i < count; i++) {
+                out.putNextEntry(new ZipEntry("e" + i + ".txt"));
+                out.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        try (PackageReader reader = PackageReader.open(zip)) {
+            assertEquals(count, reader.size());
+            int last = reader.indexOf("e" + (count - 1) + ".txt");
+            assertEquals(count - 1, last);
+            assertEquals(Integer.toString(count - 1), new String(read(reader, last), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testZip64ExtraField() throws IOException {
+        byte[] content = "Zip64 sizes and offset".getBytes(StandardCharsets.UTF_8);
+        Path zip = folder.newFile("zip64.sdlppx").toPath();
+        Files.write(zip, zip64(content));
+
+        try (PackageReader reader = PackageReader.open(zip)) {
+            assertEquals(1, reader.size());
+            assertEquals("a.txt", reader.getName(0));
+            assertEquals(content.length, reader.getSize(0));
+            assertEquals(content.length, reader.getCompressedSize(0));
+            assertEquals(crc(content), reader.getCrc(0));
+            assertArrayEquals(content, read(reader, 0));
+        }
+    }
+
+    @Test
+    public void testCloseReleasesThePackage() throws IOException {
+        Path zip = folder.newFile("closed.sdlppx").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("a.txt"));
+            out.write(text(1_000));
+            out.closeEntry();
+        }
+
+        PackageReader reader = PackageReader.open(zip);
+        InputStream is = reader.open(0);
+        reader.close();
+        try {
+            is.read(new byte[10]);
+            fail("The package is still open");
+        } catch (IOException e) {
+            // Expected
+        }
+        Files.delete(zip);
+    }
+
+    @Test(expected = java.util.zip.ZipException.class)
+    public void testNotAZip() throws IOException {
+        Path file = folder.newFile("not.sdlppx").toPath();
+        Files.write(file, text(100));
+        PackageReader.open(file).close();
+    }
+
+    private static byte[] read(PackageReader reader, int entry) throws IOException {
+        byte[] content = new byte[(int) reader.getSize(entry)];
+        try (DataInputStream is = new DataInputStream(reader.open(entry))) {
+            is.readFully(content);
+            assertEquals(-1, is.read());
+        }
+        return content;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("<seg>Segment ").append(i).append("</seg>\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    /**
+     * A zip with a single stored entry whose sizes and offset are only in the
+     * Zip64 extra field, and a Zip64 end of central directory.
+     */
+    private static byte[] zip64(byte[] content) throws IOException {
+        byte[] name = "a.txt".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+
+        ByteBuffer local = le(30 + name.length + 20);
+        local.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+        local.putInt(0).putInt((int) crc(content)).putInt(-1).putInt(-1);
+        local.putShort((short) name.length).putShort((short) 20).put(name);
+        local.putShort((short) 1).putShort((short) 16).putLong(content.length).putLong(content.length);
+        write(zip, local);
+        zip.write(content);
+
+        long dirOffset = zip.size();
+        ByteBuffer central = le(46 + name.length + 28);
+        central.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+        central.putInt(0).putInt((int) crc(content)).putInt(-1).putInt(-1);
+        central.putShort((short) name.length).putShort((short) 28).putShort((short) 0);
+        central.putShort((short) 0).putShort((short) 0).putInt(0).putInt(-1).put(name);
+        central.putShort((short) 1).putShort((short) 24).putLong(content.length).putLong(content.length).putLong(0);
+        write(zip, central);
+        long dirSize = zip.size() - dirOffset;
+
+        long zip64EndOffset = zip.size();
+        ByteBuffer zip64End = le(56);
+        zip64End.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+        zip64End.putLong(1).putLong(1).putLong(dirSize).putLong(dirOffset);
+        write(zip, zip64End);
+
+        ByteBuffer locator = le(20);
+        locator.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+        write(zip, locator);
+
+        ByteBuffer end = le(22);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+        end.putShort((short) -1).putShort((short) -1).putInt(-1).putInt(-1).putShort((short) 0);
+        write(zip, end);
+        return zip.toByteArray();
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+}
@@ -0,0 +1,89 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackagerEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testInspect() throws Exception {
+        Path rowid = SQLiteFileReaderTest.database(folder, "UTF-8", "CREATE TABLE translation_memories "
+                + "(id INTEGER PRIMARY KEY, name TEXT, source_language TEXT, target_language TEXT, tucount INTEGER)");
+        // Not readable from its pages, opened with SQLite
+        Path withoutRowid = SQLiteFileReaderTest.database(folder, "UTF-8", "CREATE TABLE translation_memories "
+                + "(name TEXT PRIMARY KEY, source_language TEXT, target_language TEXT, tucount INTEGER) WITHOUT ROWID");
+        for (Path db : new Path[] { rowid, withoutRowid }) {
+            try (Connection connection = SQLiteFileReaderTest.connect(db);
+                    Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO translation_memories (name, source_language, target_language, "
+                        + "tucount) VALUES ('" + db.getFileName() + "', 'en-US', 'fr-FR', 12)");
+            }
+        }
+
+        Path sdlPpx = folder.getRoot().toPath().resolve("test.sdlppx");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(sdlPpx))) {
+            zip.putNextEntry(new ZipEntry("Test.sdlproj"));
+            zip.write(("<PackageProject Name=\"Test\" PackageType=\"ProjectPackage\"><LanguageDirections>"
+                    + "<LanguageDirection SourceLanguageCode=\"en-US\" TargetLanguageCode=\"fr-FR\"/>"
+                    + "</LanguageDirections></PackageProject>").getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("Tm/rowid.sdltm"));
+            Files.copy(rowid, zip);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("Tm/without_rowid.sdltm"));
+            Files.copy(withoutRowid, zip);
+            zip.closeEntry();
+        }
+
+        PackageJob job = new PackageJob(sdlPpx, folder.newFolder("project").toPath(), PackagerOptions.DEFAULTS);
+        Map<String, Object> result = new PackagerEngine().inspect(job);
+        assertEquals("Test", result.get("name"));
+        assertEquals("ProjectPackage", result.get("packageType"));
+        List<Map<String, Object>> memories = (List<Map<String, Object>>) result.get("translationMemories");
+        assertEquals(2, memories.size());
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> tm = memories.get(i);
+            assertFalse(tm.toString(), tm.containsKey("error"));
+            assertEquals(i == 0 ? rowid.getFileName().toString() : withoutRowid.getFileName().toString(),
+                    tm.get("tmName"));
+            assertEquals("en-US", tm.get("sourceLanguage"));
+            assertEquals("fr-FR", tm.get("targetLanguage"));
+            assertEquals(12L, ((Number) tm.get("tuCount")).longValue());
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackagerServerTest {
+
+    private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+    private static final Pattern STATUS = Pattern.compile("\"status\":\"([^\"]+)\"");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PackagerServer server;
+
+    @After
+    public void stop() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testExtractJob() throws Exception {
+        start(new PackagerEngine(), 2, 2);
+
+        Response submitted = request("POST", "/jobs?action=extract&name=test.sdlppx", testPackage());
+        assertEquals(202, submitted.code);
+        String id = id(submitted);
+        assertEquals("DONE", waitFor(id));
+
+        Response files = request("GET", "/jobs/" + id + "/files", null);
+        assertEquals(200, files.code);
+        assertEquals("[\"source/doc.sdlxliff\"]", files.body);
+
+        Response file = request("GET", "/jobs/" + id + "/files/source/doc.sdlxliff", null);
+        assertEquals(200, file.code);
+        assertEquals(SDLXLIFF, file.body);
+
+        assertEquals(404, request("GET", "/jobs/unknown", null).code);
+        assertEquals(204, request("DELETE", "/jobs/" + id, null).code);
+        assertEquals(404, request("GET", "/jobs/" + id, null).code);
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        BlockingEngine engine = new BlockingEngine();
+        start(engine, 1, 1);
+        try {
+            Response running = request("POST", "/jobs", testPackage());
+            assertEquals(202, running.code);
+            assertTrue(engine.started.await(10, TimeUnit.SECONDS));
+            assertEquals(202, request("POST", "/jobs", testPackage()).code);
+
+            Response rejected = request("POST", "/jobs", testPackage());
+            assertEquals(429, rejected.code);
+            assertEquals("5", rejected.retryAfter);
+            assertTrue(request("GET", "/metrics", null).body.contains("\"rejected\":1"));
+
+            // No upload, run or delete while the job is running
+            String id = id(running);
+            assertEquals(409, request("PUT", "/jobs/" + id + "/files/target/doc.sdlxliff", new byte[1]).code);
+            assertEquals(409, request("POST", "/jobs/" + id + "/return", null).code);
+            assertEquals(409, request("DELETE", "/jobs/" + id, null).code);
+        } finally {
+            engine.release.countDown();
+        }
+    }
+
+    @Test
+    public void testPathTraversal() throws Exception {
+        start(new PackagerEngine(), 1, 1);
+        String id = id(request("POST", "/jobs", testPackage()));
+        assertEquals("DONE", waitFor(id));
+
+        byte[] content = SDLXLIFF.getBytes(StandardCharsets.UTF_8);
+        assertEquals(201, request("PUT", "/jobs/" + id + "/files/target/doc.sdlxliff", content).code);
+        assertEquals(400, request("PUT", "/jobs/" + id + "/files/..%2F..%2Fevil.txt", content).code);
+        assertEquals(400, request("PUT", "/jobs/" + id + "/files/target%2F..%2F..%2Fevil.txt", content).code);
+        assertEquals(400, request("PUT", "/jobs/" + id + "/files/.", content).code);
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("work").resolve("evil.txt")));
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("work").resolve(id).resolve("evil.txt")));
+        assertEquals(404, request("GET", "/jobs/" + id + "/files/..%2Ftest.sdlppx", null).code);
+    }
+
+    @Test
+    public void testInvalidPackageName() throws Exception {
+        start(new PackagerEngine(), 1, 1);
+        assertEquals(400, request("POST", "/jobs?name=a%00b.sdlppx", testPackage()).code);
+        assertEquals(400, request("POST", "/jobs?name=%2F", testPackage()).code);
+        assertEquals(0, workDirJobs());
+        String id = id(request("POST", "/jobs?name=..%2Fother%2Fmy%20package", testPackage()));
+        assertEquals("DONE", waitFor(id));
+        assertTrue(Files.isRegularFile(
+                folder.getRoot().toPath().resolve("work").resolve(id).resolve("my package.sdlppx")));
+    }
+
+    @Test
+    public void testTruncatedUpload() throws Exception {
+        start(new PackagerEngine(), 1, 1);
+        try (Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /jobs HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100000\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            os.write(testPackage());
+            os.flush();
+            // Wait for the job directory before closing the connection
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (workDirJobs() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, workDirJobs());
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (workDirJobs() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, workDirJobs());
+    }
+
+    private long workDirJobs() throws IOException {
+        Path workDir = folder.getRoot().toPath().resolve("work");
+        if (!Files.isDirectory(workDir)) {
+            return 0;
+        }
+        try (Stream<Path> dirs = Files.list(workDir)) {
+            return dirs.count();
+        }
+    }
+
+    private void start(PackagerEngine engine, int maxJobs, int maxQueued) throws IOException {
+        Path workDir = folder.getRoot().toPath().resolve("work");
+        server = new PackagerServer(workDir, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxJobs,
+                maxQueued, engine);
+        server.start();
+    }
+
+    private String waitFor(String id) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            Matcher status = STATUS.matcher(request("GET", "/jobs/" + id, null).body);
+            assertTrue(status.find());
+            if (!status.group(1).equals("QUEUED") && !status.group(1).equals("RUNNING")) {
+                return status.group(1);
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Job " + id + " still running");
+    }
+
+    private static String id(Response response) {
+        Matcher id = ID.matcher(response.body);
+        assertTrue(response.body, id.find());
+        return id.group(1);
+    }
+
+    private static final class Response {
+        private final int code;
+        private final String body;
+        private final String retryAfter;
+
+        Response(int code, String body, String retryAfter) {
+            this.code = code;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private Response request(String method, String path, byte[] body) throws IOException {
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+        }
+        int code = connection.getResponseCode();
+        InputStream is = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (is != null) {
+            try (InputStream in = is) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        return new Response(code, new String(out.toByteArray(), StandardCharsets.UTF_8),
+                connection.getHeaderField("Retry-After"));
+    }
+
+    private static final String SDLXLIFF = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<xliff xmlns=\"urn:oasis:names:tc:xliff:document:1.2\" version=\"1.2\"/>\n";
+
+    private static byte[] testPackage() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("Test.sdlproj"));
+            zip.write(("<PackageProject PackageType=\"ProjectPackage\"><LanguageDirections>"
+                    + "<LanguageDirection SourceLanguageCode=\"en-US\" TargetLanguageCode=\"fr-FR\"/>"
+                    + "</LanguageDirections></PackageProject>").getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("fr-FR/doc.sdlxliff"));
+            zip.write(SDLXLIFF.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Engine whose extractions wait for the test. */
+    private static final class BlockingEngine extends PackagerEngine {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public boolean extract(PackageJob job) throws Exception {
+            started.countDown();
+            release.await(30, TimeUnit.SECONDS);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void testManyBlocks() throws IOException {
+        byte[] data = data(3_000_000);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        // Small blocks, many more than the pending members
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(gzip, 10_000)) {
+            Random random = new Random(3);
+            int pos = 0;
+            while (pos < data.length) {
+                int n = Math.min(data.length - pos, random.nextInt(30_000));
+                if (n % 7 == 0) {
+                    out.write(data[pos]);
+                    n = 1;
+                } else {
+                    out.write(data, pos, n);
+                }
+                pos += n;
+            }
+        }
+        assertArrayEquals(data, gunzip(gzip.toByteArray()));
+        assertTrue(gzip.size() < data.length / 2);
+    }
+
+    @Test
+    public void testFlushEndsTheMember() throws IOException {
+        byte[] data = data(100_000);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(gzip, 64 * 1024);
+        out.write(data, 0, 40_000);
+        out.flush();
+        // What was written before the flush can already be read
+        byte[] flushed = gzip.toByteArray();
+        assertArrayEquals(Arrays.copyOf(data, 40_000), gunzip(flushed));
+
+        out.write(data, 40_000, data.length - 40_000);
+        out.flush();
+        out.flush();
+        out.close();
+        out.close();
+        assertArrayEquals(data, gunzip(gzip.toByteArray()));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(gzip).close();
+        assertTrue(gzip.size() > 0);
+        assertEquals(0, gunzip(gzip.toByteArray()).length);
+    }
+
+    private static byte[] gunzip(byte[] gzip) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                data.write(buffer, 0, n);
+            }
+        }
+        return data.toByteArray();
+    }
+
+    /** Compressible text with some random bytes. */
+    private static byte[] data(int length) {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        byte[] text = "<tu><tuv xml:lang=\"en-US\"><seg>Segment</seg></tuv></tu>\n".getBytes();
+        for (int i = 0; i < length; i++) {
+            data[i] = i % 1000 < 900 ? text[i % text.length] : (byte) random.nextInt();
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,142 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplacingFileOutputStreamTest {
+
+    private static final FileTime OLD = FileTime.fromMillis(1_500_000_000_000L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDiscardKeepsTheTarget() throws IOException {
+        Path target = write("old.txt", "old content");
+        ReplacingFileOutputStream out;
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            out = write(batch, target, "new content");
+        }
+        assertFalse(out.isChanged());
+        assertContent("old content", target);
+        assertEquals(OLD, Files.getLastModifiedTime(target));
+        assertEquals(Collections.singletonList("old.txt"), files());
+    }
+
+    @Test
+    public void testCommitReplacesTheTarget() throws IOException {
+        Path target = write("doc.txt", "old content");
+        Path created = folder.getRoot().toPath().resolve("created.txt");
+        ReplacingFileOutputStream replaced;
+        ReplacingFileOutputStream added;
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            // Same size, other bytes
+            replaced = write(batch, target, "new content");
+            added = write(batch, created, "created");
+            // Nothing changes before the commit
+            assertContent("old content", target);
+            assertFalse(Files.exists(created));
+            batch.commit();
+        }
+        assertTrue(replaced.isChanged());
+        assertTrue(added.isChanged());
+        assertContent("new content", target);
+        assertContent("created", created);
+        assertEquals(Arrays.asList("created.txt", "doc.txt"), files());
+    }
+
+    @Test
+    public void testUnchangedTargetIsKept() throws IOException {
+        Path target = write("same.txt", "same content");
+        ReplacingFileOutputStream out;
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            out = write(batch, target, "same content");
+            batch.commit();
+        }
+        assertFalse(out.isChanged());
+        assertContent("same content", target);
+        assertEquals(OLD, Files.getLastModifiedTime(target));
+        assertEquals(Collections.singletonList("same.txt"), files());
+    }
+
+    @Test
+    public void testCommitWithOpenStream() throws IOException {
+        Path target = write("open.txt", "old content");
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            ReplacingFileOutputStream out = new ReplacingFileOutputStream(target.toFile(), batch);
+            out.write("new content".getBytes(StandardCharsets.UTF_8));
+            try {
+                batch.commit();
+                fail("Committed a stream still open");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertContent("old content", target);
+        assertEquals(Collections.singletonList("open.txt"), files());
+    }
+
+    /** Write a file with an old modification time. */
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, OLD);
+        return file;
+    }
+
+    private static ReplacingFileOutputStream write(ReplacingFileOutputStream.Batch batch, Path target,
+            String content) throws IOException {
+        File file = target.toFile();
+        try (ReplacingFileOutputStream out = new ReplacingFileOutputStream(file, batch)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            return out;
+        }
+    }
+
+    private static void assertContent(String expected, Path file) throws IOException {
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file));
+    }
+
+    /** @return the files of the folder, temporary files included */
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.map(f -> f.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+}
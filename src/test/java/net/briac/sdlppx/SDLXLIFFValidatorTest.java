@@ -0,0 +1,145 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SDLXLIFFValidatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValidTranslation() throws IOException {
+        assertEquals(Collections.emptyList(), validate(sdlxliff(null,
+                transUnit("tu1", seg("1", "Contract"), seg("1", "Contrat")),
+                transUnit("tu2", seg("2", "Invoice") + seg("3", "Total"), seg("2", "Facture") + seg("3", "Total")))));
+    }
+
+    @Test
+    public void testMalformedXml() throws IOException {
+        List<String> problems = validate(sdlxliff(null, transUnit("tu1", seg("1", "Contract"), seg("1", "Contrat")),
+                transUnit("tu2", seg("2", "Invoice"), seg("2", "Facture"))).replace("</trans-unit>\n</body>", ""));
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).startsWith("Malformed XML: "));
+    }
+
+    @Test
+    public void testMissingAndUnknownTransUnits() throws IOException {
+        List<String> problems = validate(sdlxliff(null,
+                transUnit("tu1", seg("1", "Contract"), seg("1", "Contrat")),
+                transUnit("tu9", seg("9", "Added"), seg("9", "Ajouté"))));
+        // The segments of the trans-units are not reported again
+        assertEquals(Arrays.asList("Missing trans-unit tu2", "Unknown trans-unit tu9"), problems);
+    }
+
+    @Test
+    public void testMissingAndUnknownSegments() throws IOException {
+        List<String> problems = validate(sdlxliff(null,
+                transUnit("tu1", seg("1", "Contract"), seg("1", "Contrat")),
+                transUnit("tu2", seg("2", "Invoice") + seg("4", "Other"), seg("2", "Facture") + seg("4", "Autre"))));
+        assertEquals(Arrays.asList("Missing segment tu2/3", "Unknown segment tu2/4"), problems);
+    }
+
+    @Test
+    public void testEmptyTarget() throws IOException {
+        List<String> problems = validate(sdlxliff(null,
+                transUnit("tu1", seg("1", "Contract"), seg("1", " ")),
+                transUnit("tu2", seg("2", "Invoice") + seg("3", "Total"), seg("2", "Facture"))));
+        assertEquals(Arrays.asList("No target for segment tu1/1", "No target for segment tu2/3"), problems);
+    }
+
+    @Test
+    public void testEmptySourceMayHaveAnEmptyTarget() throws IOException {
+        Path original = folder.newFile("original.sdlxliff").toPath();
+        Files.write(original, sdlxliff(null, transUnit("tu1", seg("1", " "), "")).getBytes(StandardCharsets.UTF_8));
+        Path translated = folder.newFile("translated.sdlxliff").toPath();
+        Files.write(translated,
+                sdlxliff(null, transUnit("tu1", seg("1", " "), seg("1", ""))).getBytes(StandardCharsets.UTF_8));
+        assertEquals(Collections.emptyList(), SDLXLIFFValidator.validate(original, translated));
+    }
+
+    @Test
+    public void testProblemsAreTruncated() throws IOException {
+        StringBuilder original = new StringBuilder();
+        StringBuilder translated = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            original.append(transUnit("tu" + i, seg("1", "Segment " + i), ""));
+            translated.append(transUnit("tu" + i, seg("1", "Segment " + i), ""));
+        }
+        List<String> problems = SDLXLIFFValidator.validate(
+                new ByteArrayInputStream(sdlxliff(original.toString()).getBytes(StandardCharsets.UTF_8)),
+                write(sdlxliff(translated.toString())));
+        assertEquals(21, problems.size());
+        assertEquals("10 more problems not shown", problems.get(20));
+    }
+
+    /**
+     * Validate against the original with the trans-units tu1 (segment 1) and
+     * tu2 (segments 2 and 3).
+     */
+    private List<String> validate(String translated) throws IOException {
+        String original = sdlxliff(null, transUnit("tu1", seg("1", "Contract"), ""),
+                transUnit("tu2", seg("2", "Invoice") + seg("3", "Total"), ""));
+        return SDLXLIFFValidator.validate(new ByteArrayInputStream(original.getBytes(StandardCharsets.UTF_8)),
+                write(translated));
+    }
+
+    private Path write(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String sdlxliff(String body, String... transUnits) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<xliff xmlns:sdl=\"http://sdl.com/FileTypes/SdlXliff/1.0\" version=\"1.2\" "
+                + "xmlns=\"urn:oasis:names:tc:xliff:document:1.2\"><file original=\"doc.docx\" "
+                + "source-language=\"en-US\" target-language=\"fr-FR\"><header/><body>\n");
+        if (body != null) {
+            xml.append(body);
+        }
+        for (String transUnit : transUnits) {
+            xml.append(transUnit);
+        }
+        return xml.append("</body></file></xliff>").toString();
+    }
+
+    private static String transUnit(String id, String source, String target) {
+        return "<trans-unit id=\"" + id + "\"><seg-source>" + source + "</seg-source>"
+                + (target.isEmpty() ? "" : "<target>" + target + "</target>") + "</trans-unit>\n";
+    }
+
+    private static String seg(String mid, String text) {
+        return "<mrk mtype=\"seg\" mid=\"" + mid + "\">" + text + "</mrk>";
+    }
+
+}
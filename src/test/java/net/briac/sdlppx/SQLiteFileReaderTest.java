@@ -0,0 +1,288 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SQLiteFileReaderTest {
+
+    private static final String CREATE_TM = "CREATE TABLE translation_memories (id INTEGER PRIMARY KEY, "
+            + "name TEXT, source_language TEXT, target_language TEXT, tucount INTEGER, fuzzy REAL, "
+            + "data BLOB, UNIQUE (name))";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFirstRow() throws Exception {
+        Path db = database("UTF-8", CREATE_TM);
+        try (Connection connection = connect(db)) {
+            insert(connection, 7, "Main TM", 1234, new byte[] { 1, 2, 3 });
+            insert(connection, 8, "Other TM", 1, null);
+        }
+
+        Map<String, Object> row = readFirstRow(db, "translation_memories");
+        assertEquals(7L, row.get("id"));
+        assertEquals("Main TM", row.get("name"));
+        assertEquals("en-US", row.get("source_language"));
+        assertEquals("fr-FR", row.get("target_language"));
+        assertEquals(1234L, row.get("tucount"));
+        assertEquals(0.5, row.get("fuzzy"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) row.get("data"));
+        assertSameAsJDBC(db, "translation_memories", row);
+    }
+
+    @Test
+    public void testIntegerSizes() throws Exception {
+        Path db = database("UTF-8", "CREATE TABLE numbers (a, b, c, d, e, f, g, h, i, j)");
+        long[] values = { 0, 1, -1, 300, -40_000, 8_000_000, -2_000_000_000L, 1L << 40, Long.MIN_VALUE,
+                Long.MAX_VALUE };
+        try (Connection connection = connect(db);
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO numbers VALUES (?,?,?,?,?,?,?,?,?,?)")) {
+            for (int i = 0; i < values.length; i++) {
+                insert.setLong(i + 1, values[i]);
+            }
+            insert.executeUpdate();
+        }
+
+        Map<String, Object> row = readFirstRow(db, "numbers");
+        int i = 0;
+        for (Object value : row.values()) {
+            assertEquals(values[i++], value);
+        }
+        assertSameAsJDBC(db, "numbers", row);
+    }
+
+    @Test
+    public void testOverflowPages() throws Exception {
+        Path db = database("UTF-8", CREATE_TM);
+        // Several overflow pages of 4 KiB for the text and the blob
+        String name = repeat("Überlauf 中文 ", 20_000);
+        byte[] data = new byte[50_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        try (Connection connection = connect(db)) {
+            insert(connection, 1, name, 42, data);
+        }
+
+        Map<String, Object> row = readFirstRow(db, "translation_memories");
+        assertEquals(name, row.get("name"));
+        assertArrayEquals(data, (byte[]) row.get("data"));
+        assertSameAsJDBC(db, "translation_memories", row);
+    }
+
+    @Test
+    public void testInteriorPages() throws Exception {
+        Path db = database("UTF-8", CREATE_TM);
+        try (Connection connection = connect(db)) {
+            connection.setAutoCommit(false);
+            // Enough tables for an interior sqlite_master page, created before
+            // the TM rows to be spread over the file
+            try (Statement statement = connection.createStatement()) {
+                for (int i = 0; i < 300; i++) {
+                    StringBuilder create = new StringBuilder("CREATE TABLE padding_" + i + " (id INTEGER PRIMARY KEY");
+                    for (int j = 0; j < 10; j++) {
+                        create.append(", value_").append(j).append(" TEXT");
+                    }
+                    statement.executeUpdate(create.append(")").toString());
+                }
+                statement.executeUpdate("INSERT INTO padding_299 (id, value_9) VALUES (5, 'last')");
+            }
+            for (int i = 1; i <= 5000; i++) {
+                insert(connection, i, "TM " + i + " " + repeat("x", 300), i, null);
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM translation_memories WHERE id < 1000");
+            }
+            connection.commit();
+        }
+        // Interior table pages
+        assertEquals(0x05, pageType(db, rootPage(db, "translation_memories")));
+        assertEquals(0x05, pageType(db, 1));
+
+        Map<String, Object> row = readFirstRow(db, "translation_memories");
+        assertEquals(1000L, row.get("id"));
+        assertSameAsJDBC(db, "translation_memories", row);
+        assertSameAsJDBC(db, "padding_299", readFirstRow(db, "padding_299"));
+    }
+
+    @Test
+    public void testUTF16() throws Exception {
+        Path db = database("UTF-16le", CREATE_TM);
+        try (Connection connection = connect(db)) {
+            insert(connection, 1, "Mémoire 中文", 5, null);
+        }
+        Map<String, Object> row = readFirstRow(db, "translation_memories");
+        assertEquals("Mémoire 中文", row.get("name"));
+        assertSameAsJDBC(db, "translation_memories", row);
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        Path db = database("UTF-8", CREATE_TM);
+        assertNull(readFirstRow(db, "translation_memories"));
+    }
+
+    @Test
+    public void testUnsupported() throws Exception {
+        // An index b-tree, only SQLite can read it
+        Path db = database("UTF-8", "CREATE TABLE translation_memories (name TEXT PRIMARY KEY, "
+                + "source_language TEXT, target_language TEXT, tucount INTEGER) WITHOUT ROWID");
+        try (Connection connection = connect(db); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO translation_memories VALUES ('Main TM', 'en-US', 'fr-FR', 3)");
+        }
+        try {
+            readFirstRow(db, "translation_memories");
+            fail("WITHOUT ROWID table read");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            readFirstRow(db, "unknown");
+            fail("Unknown table read");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        Path text = folder.newFile("text.sdltm").toPath();
+        Files.write(text, repeat("Not a database ", 100).getBytes(StandardCharsets.UTF_8));
+        try {
+            readFirstRow(text, "translation_memories");
+            fail("Text file read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testColumnDefinitions() {
+        assertEquals(Arrays.asList("id INTEGER PRIMARY KEY", "name TEXT", "value DECIMAL(10, 2)"),
+                SQLiteFileReader.columnDefinitions("CREATE TABLE t (id INTEGER PRIMARY KEY, name TEXT, "
+                        + "value DECIMAL(10, 2), PRIMARY KEY (id), CONSTRAINT u UNIQUE (name))"));
+    }
+
+    static Path database(TemporaryFolder folder, String encoding, String create) throws IOException, SQLException {
+        Path db = folder.newFile().toPath();
+        Files.delete(db);
+        try (Connection connection = connect(db); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("PRAGMA encoding = '" + encoding + "'");
+            statement.executeUpdate("PRAGMA page_size = 4096");
+            statement.executeUpdate(create);
+        }
+        return db;
+    }
+
+    private Path database(String encoding, String create) throws IOException, SQLException {
+        return database(folder, encoding, create);
+    }
+
+    static Connection connect(Path db) throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + db);
+    }
+
+    private static void insert(Connection connection, long id, String name, long tuCount, byte[] data)
+            throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO translation_memories (id, name, source_language, target_language, tucount, fuzzy, data) "
+                        + "VALUES (?, ?, 'en-US', 'fr-FR', ?, 0.5, ?)")) {
+            insert.setLong(1, id);
+            insert.setString(2, name);
+            insert.setLong(3, tuCount);
+            insert.setBytes(4, data);
+            insert.executeUpdate();
+        }
+    }
+
+    private static Map<String, Object> readFirstRow(Path db, String table) throws IOException {
+        try (SQLiteFileReader reader = new SQLiteFileReader(() -> Files.newInputStream(db))) {
+            return reader.readFirstRow(table);
+        }
+    }
+
+    private static void assertSameAsJDBC(Path db, String table, Map<String, Object> row) throws SQLException {
+        Map<String, Object> expected = new LinkedHashMap<>();
+        try (Connection connection = connect(db);
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT * FROM " + table + " ORDER BY rowid LIMIT 1")) {
+            assertTrue(rs.next());
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                Object value = rs.getObject(i);
+                expected.put(metaData.getColumnName(i), value instanceof Integer ? (long) (Integer) value : value);
+            }
+        }
+        assertEquals(expected.keySet(), row.keySet());
+        for (Map.Entry<String, Object> column : expected.entrySet()) {
+            Object value = row.get(column.getKey());
+            if (column.getValue() instanceof byte[]) {
+                assertArrayEquals(column.getKey(), (byte[]) column.getValue(), (byte[]) value);
+            } else {
+                assertEquals(column.getKey(), column.getValue(), value);
+            }
+        }
+    }
+
+    private static int rootPage(Path db, String table) throws SQLException {
+        try (Connection connection = connect(db);
+                PreparedStatement statement = connection
+                        .prepareStatement("SELECT rootpage FROM sqlite_master WHERE name = ?")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static int pageType(Path db, int page) throws IOException {
+        byte[] content = Files.readAllBytes(db);
+        return content[(page - 1) * 4096 + (page == 1 ? 100 : 0)] & 0xFF;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+
+}
@@ -0,0 +1,112 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import net.briac.sdlppx.model.Tuv;
+
+public class SegmentCacheTest {
+
+    /** Estimated size of a tuv decoded from 10 chars. */
+    private static final int ENTRY = 200 + 2 * (10 + 10 + 2);
+
+    /** Counts the decoded segments. */
+    private final List<String> decoded = new ArrayList<>();
+
+    private Tuv decode(String segmentXml) {
+        decoded.add(segmentXml);
+        return new Tuv("fr", segmentXml, segmentXml);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws XMLStreamException {
+        SegmentCache cache = new SegmentCache(10 * ENTRY);
+        assertTrue(cache.isEnabled());
+        Tuv first = cache.get("segment 01", this::decode);
+        assertSame(first, cache.get("segment 01", this::decode));
+        Tuv second = cache.get("segment 02", this::decode);
+        assertNotSame(first, second);
+        assertSame(second, cache.get("segment 02", this::decode));
+        assertSame(first, cache.get("segment 01", this::decode));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, decoded.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws XMLStreamException {
+        SegmentCache cache = new SegmentCache(4 * ENTRY);
+        for (int i = 1; i <= 4; i++) {
+            cache.get("segment 0" + i, this::decode);
+        }
+        // Used again, so 02 is now the eldest
+        cache.get("segment 01", this::decode);
+        assertEquals(4, decoded.size());
+
+        cache.get("segment 05", this::decode);
+        cache.get("segment 01", this::decode);
+        cache.get("segment 03", this::decode);
+        cache.get("segment 04", this::decode);
+        cache.get("segment 05", this::decode);
+        assertEquals(5, decoded.size());
+        cache.get("segment 02", this::decode);
+        assertEquals(6, decoded.size());
+        assertEquals(6, cache.getMisses());
+        assertEquals(5, cache.getHits());
+    }
+
+    @Test
+    public void testEntryLargerThanBudget() throws XMLStreamException {
+        SegmentCache cache = new SegmentCache(2 * ENTRY);
+        Tuv small = cache.get("segment 01", this::decode);
+        StringBuilder large = new StringBuilder();
+        while (large.length() < ENTRY) {
+            large.append("large segment ");
+        }
+        String xml = large.toString();
+        Tuv first = cache.get(xml, this::decode);
+        Tuv second = cache.get(xml, this::decode);
+        assertNotSame(first, second);
+        assertEquals(first.getText(), second.getText());
+        // The cached entries are kept
+        assertSame(small, cache.get("segment 01", this::decode));
+        assertEquals(3, decoded.size());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testDisabled() throws XMLStreamException {
+        SegmentCache cache = new SegmentCache(0);
+        assertFalse(cache.isEnabled());
+        assertNotSame(cache.get("segment 01", this::decode), cache.get("segment 01", this::decode));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+}
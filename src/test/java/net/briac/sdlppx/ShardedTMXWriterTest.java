@@ -0,0 +1,256 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.briac.sdlppx.model.TranslationUnit;
+import net.briac.sdlppx.model.Tuv;
+
+public class ShardedTMXWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShardsByYearAndCount() throws Exception {
+        TMSharding sharding = new TMSharding();
+        sharding.setKey(TMSharding.KEY_YEAR);
+        sharding.setMaxTUs(100);
+        SDLTMConverter converter = new SDLTMConverter();
+        converter.setCompress(true);
+        converter.setSharding(sharding);
+
+        File dir = folder.newFolder("tm");
+        // 250 TU in 2019, 120 in 2020 and 30 without date, interleaved
+        List<String> expected2019 = new ArrayList<>();
+        List<String> expected2020 = new ArrayList<>();
+        List<String> expectedNone = new ArrayList<>();
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            try (TUWriter writer = converter.openTMX(dir, "main", "en-US", batch)) {
+                for (int i = 0; i < 400; i++) {
+                    String year = i < 250 ? "2019" : i < 370 ? "2020" : null;
+                    List<String> expected = year == null ? expectedNone
+                            : year.equals("2019") ? expected2019 : expected2020;
+                    expected.add("Segment " + i);
+                    writer.writeTU(tu(i), year);
+                }
+            }
+            batch.commit();
+        }
+
+        List<String> files = Arrays.asList(dir.list());
+        files.sort(null);
+        assertEquals(Arrays.asList("main_2019_0001.tmx.gz", "main_2019_0002.tmx.gz", "main_2019_0003.tmx.gz",
+                "main_2020_0001.tmx.gz", "main_2020_0002.tmx.gz", "main_none_0001.tmx.gz"), files);
+        assertEquals(expected2019, concat(dir, "main_2019_0001", "main_2019_0002", "main_2019_0003"));
+        assertEquals(expected2020, concat(dir, "main_2020_0001", "main_2020_0002"));
+        assertEquals(expectedNone, concat(dir, "main_none_0001"));
+        assertEquals(100, sources(new File(dir, "main_2019_0002.tmx.gz")).size());
+        assertEquals(50, sources(new File(dir, "main_2019_0003.tmx.gz")).size());
+    }
+
+    @Test
+    public void testShardsBySize() throws Exception {
+        TMSharding sharding = new TMSharding();
+        sharding.setMaxBytes(10_000);
+        SDLTMConverter converter = new SDLTMConverter();
+        converter.setSharding(sharding);
+
+        File dir = folder.newFolder("tm");
+        List<String> expected = new ArrayList<>();
+        List<String> shards;
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            ShardedTMXWriter writer = (ShardedTMXWriter) converter.openTMX(dir, "main", "en-US", batch);
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    expected.add("Segment " + i);
+                    writer.writeTU(tu(i));
+                }
+            } finally {
+                writer.close();
+            }
+            shards = writer.getShardNames();
+            batch.commit();
+        }
+
+        assertTrue(shards.size() > 5);
+        assertEquals(expected, concat(dir, shards.toArray(new String[0])));
+        for (String shard : shards) {
+            File file = new File(dir, shard + ".tmx");
+            // The TU of a shard are below the limit, not its header
+            assertTrue(shard + " " + file.length(), file.length() < 10_000 + 1_000);
+        }
+    }
+
+    @Test
+    public void testFailedShardLeavesNoFile() throws Exception {
+        TMSharding sharding = new TMSharding();
+        sharding.setMaxTUs(10);
+        SDLTMConverter converter = new SDLTMConverter();
+        File dir = folder.newFolder("tm");
+        Files.write(new File(dir, "main_0001.tmx").toPath(), "previous".getBytes("UTF-8"));
+
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            int[] opened = new int[1];
+            try (TUWriter writer = new ShardedTMXWriter("main", sharding, shardName -> {
+                if (++opened[0] == 3) {
+                    throw new IOException("Disk full");
+                }
+                return converter.openWriter(new File(dir, shardName + ".tmx"), "en-US", batch);
+            })) {
+                for (int i = 0; i < 100; i++) {
+                    writer.writeTU(tu(i));
+                }
+                fail("The third shard was opened");
+            } catch (IOException e) {
+                assertEquals("Disk full", e.getMessage());
+            }
+        }
+
+        // The batch was not committed, the previous file is unchanged
+        assertEquals(Arrays.asList("main_0001.tmx"), Arrays.asList(dir.list()));
+        assertEquals("previous", new String(Files.readAllBytes(new File(dir, "main_0001.tmx").toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void testStaleFilesAreDeleted() throws Exception {
+        TMSharding sharding = new TMSharding();
+        sharding.setKey(TMSharding.KEY_YEAR);
+        sharding.setMaxTUs(100);
+        SDLTMConverter converter = new SDLTMConverter();
+        converter.setSharding(sharding);
+
+        File dir = folder.newFolder("tm");
+        // An unsharded export of the same TM, and files of other TM
+        for (String name : new String[] { "main.tmx", "other.tmx", "main_extra.tmx", "other_0001.tmx" }) {
+            Files.write(new File(dir, name).toPath(), "previous".getBytes("UTF-8"));
+        }
+
+        export(converter, dir, 250, 150);
+        assertEquals(Arrays.asList("main_2019_0001.tmx", "main_2019_0002.tmx", "main_2019_0003.tmx",
+                "main_2020_0001.tmx", "main_2020_0002.tmx", "main_extra.tmx", "other.tmx", "other_0001.tmx"),
+                list(dir));
+
+        // Fewer shards, a key value gone, and compressed
+        converter.setCompress(true);
+        export(converter, dir, 150, 0);
+        assertEquals(Arrays.asList("main_2019_0001.tmx.gz", "main_2019_0002.tmx.gz", "main_extra.tmx", "other.tmx",
+                "other_0001.tmx"), list(dir));
+
+        // Not sharded any more
+        converter.setCompress(false);
+        converter.setSharding(new TMSharding());
+        export(converter, dir, 50, 0);
+        assertEquals(Arrays.asList("main.tmx", "main_extra.tmx", "other.tmx", "other_0001.tmx"), list(dir));
+        assertEquals(50, sources(new File(dir, "main.tmx")).size());
+    }
+
+    @Test
+    public void testStaleFilesAreKeptWhenNotCommitted() throws Exception {
+        TMSharding sharding = new TMSharding();
+        sharding.setMaxTUs(10);
+        SDLTMConverter converter = new SDLTMConverter();
+        converter.setSharding(sharding);
+        File dir = folder.newFolder("tm");
+        Files.write(new File(dir, "main.tmx").toPath(), "previous".getBytes("UTF-8"));
+
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            try (TUWriter writer = converter.openTMX(dir, "main", "en-US", batch)) {
+                for (int i = 0; i < 25; i++) {
+                    writer.writeTU(tu(i));
+                }
+            }
+        }
+        assertEquals(Arrays.asList("main.tmx"), list(dir));
+    }
+
+    private static void export(SDLTMConverter converter, File dir, int count2019, int count2020) throws Exception {
+        try (ReplacingFileOutputStream.Batch batch = new ReplacingFileOutputStream.Batch()) {
+            try (TUWriter writer = converter.openTMX(dir, "main", "en-US", batch)) {
+                for (int i = 0; i < count2019 + count2020; i++) {
+                    writer.writeTU(tu(i), i < count2019 ? "2019" : "2020");
+                }
+            }
+            batch.commit();
+        }
+    }
+
+    private static List<String> list(File dir) {
+        List<String> files = Arrays.asList(dir.list());
+        files.sort(null);
+        return files;
+    }
+
+    private static TranslationUnit tu(int i) {
+        TranslationUnit tu = new TranslationUnit(i, new Tuv("en-US", "Segment " + i, "Segment " + i),
+                new Tuv("fr-FR", "Segment " + i + " &amp; traduction", "Segment " + i + " & traduction"));
+        tu.setChangeDate("2019-01-01 10:00:00");
+        return tu;
+    }
+
+    private static List<String> concat(File dir, String... shards) throws Exception {
+        List<String> sources = new ArrayList<>();
+        for (String shard : shards) {
+            File file = new File(dir, shard + ".tmx");
+            sources.addAll(sources(file.exists() ? file : new File(dir, shard + ".tmx.gz")));
+        }
+        return sources;
+    }
+
+    /**
+     * @return the source segments of a complete TMX, gzipped or not
+     */
+    private static List<String> sources(File tmx) throws Exception {
+        Document document;
+        try (InputStream is = tmx.getName().endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(tmx.toPath()))
+                : Files.newInputStream(tmx.toPath())) {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+        }
+        assertEquals("tmx", document.getDocumentElement().getNodeName());
+        NodeList tus = document.getElementsByTagName("tu");
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < tus.getLength(); i++) {
+            Element tu = (Element) tus.item(i);
+            assertEquals(2, tu.getElementsByTagName("seg").getLength());
+            assertTrue(tu.getElementsByTagName("seg").item(1).getTextContent().endsWith(" & traduction"));
+            sources.add(tu.getElementsByTagName("seg").item(0).getTextContent());
+        }
+        return sources;
+    }
+
+}
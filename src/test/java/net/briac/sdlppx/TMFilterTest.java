@@ -0,0 +1,225 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TMFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path sdltm;
+
+    @Before
+    public void createSdltm() throws IOException, SQLException {
+        sdltm = SQLiteFileReaderTest.database(folder, "UTF-8",
+                "CREATE TABLE translation_units (id INTEGER PRIMARY KEY, source_segment TEXT, target_segment TEXT, "
+                        + "creation_date DATETIME, creation_user TEXT, change_date DATETIME, change_user TEXT)");
+        try (Connection connection = SQLiteFileReaderTest.connect(sdltm);
+                Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE attributes (id INTEGER PRIMARY KEY, name TEXT)");
+            statement.executeUpdate(
+                    "CREATE TABLE string_attributes (translation_unit_id INTEGER, attribute_id INTEGER, value TEXT)");
+            statement.executeUpdate(
+                    "CREATE TABLE numeric_attributes (translation_unit_id INTEGER, attribute_id INTEGER, value INTEGER)");
+            statement.executeUpdate(
+                    "CREATE TABLE date_attributes (translation_unit_id INTEGER, attribute_id INTEGER, value DATETIME)");
+            statement.executeUpdate(
+                    "CREATE TABLE picklist_values (id INTEGER PRIMARY KEY, attribute_id INTEGER, value TEXT)");
+            statement.executeUpdate(
+                    "CREATE TABLE picklist_attributes (translation_unit_id INTEGER, picklist_value_id INTEGER)");
+
+            statement.executeUpdate("INSERT INTO translation_units VALUES "
+                    + "(1, 'Short', 'Court', '2024-01-05 10:00:00', 'alice', '2024-01-10 09:00:00', 'alice'), "
+                    + "(2, 'A longer source', 'Une source plus longue', '2024-01-05 10:00:00', 'alice', "
+                    + "'2024-02-01 00:00:00', 'bob'), "
+                    + "(3, 'Priority', 'Priorité', '2024-02-10 08:00:00', 'bob', '2024-02-15 17:30:00', 'bob'), "
+                    + "(4, 'Deadline', 'Échéance', '2024-02-20 08:00:00', 'carol', '2024-03-01 12:30:00', 'carol'), "
+                    + "(5, 'Legal domain', 'Domaine juridique', '2024-03-02 08:00:00', 'carol', "
+                    + "'2024-03-05 08:00:00', 'alice')");
+            statement.executeUpdate(
+                    "INSERT INTO attributes VALUES (1, 'Client'), (2, 'Priority'), (3, 'Deadline'), (4, 'Domain')");
+            statement.executeUpdate("INSERT INTO string_attributes VALUES (1, 1, 'ACME'), (2, 1, 'Other'), "
+                    + "(5, 1, 'ACME')");
+            statement.executeUpdate("INSERT INTO numeric_attributes VALUES (3, 2, 5), (4, 2, 50)");
+            statement.executeUpdate("INSERT INTO date_attributes VALUES (4, 3, '2024-03-01 12:00:00'), "
+                    + "(5, 3, '2024-04-01 12:00:00')");
+            statement.executeUpdate("INSERT INTO picklist_values VALUES (1, 4, 'Legal'), (2, 4, 'Medical')");
+            statement.executeUpdate("INSERT INTO picklist_attributes VALUES (5, 1), (2, 2)");
+        }
+    }
+
+    @Test
+    public void testEmptyFilter() throws SQLException {
+        TMFilter filter = new TMFilter();
+        assertTrue(filter.isEmpty());
+        assertEquals("", filter.toWhereClause());
+        assertEquals("", filter.toString());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), ids(filter));
+        assertTrue(filter.acceptsSource(""));
+    }
+
+    @Test
+    public void testDates() throws SQLException {
+        TMFilter filter = new TMFilter();
+        filter.setChangedAfter("2024-02-01");
+        filter.setChangedBefore("2024-03-01T12:30:00");
+        assertEquals("2024-02-01 00:00:00", filter.getChangedAfter());
+        assertEquals("2024-03-01 12:30:00", filter.getChangedBefore());
+        // The lower bound is inclusive, the upper one exclusive
+        assertEquals(Arrays.asList(2L, 3L), ids(filter));
+
+        filter.setChangedBefore(null);
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), ids(filter));
+    }
+
+    @Test(expected = DateTimeParseException.class)
+    public void testInvalidDate() {
+        new TMFilter().setChangedAfter("01/02/2024");
+    }
+
+    @Test
+    public void testUser() throws SQLException {
+        TMFilter filter = new TMFilter();
+        filter.setUser("bob");
+        // Created or changed by the user
+        assertEquals(Arrays.asList(2L, 3L), ids(filter));
+    }
+
+    @Test
+    public void testAttributes() throws SQLException {
+        assertEquals(Arrays.asList(1L, 5L), ids(attribute("Client", "ACME")));
+        assertEquals(Arrays.asList(3L), ids(attribute("Priority", "5")));
+        // A date matches the values of that day
+        assertEquals(Arrays.asList(4L), ids(attribute("Deadline", "2024-03-01")));
+        assertEquals(Arrays.asList(5L), ids(attribute("Domain", "Legal")));
+        // The name and the value must match together
+        assertEquals(Arrays.asList(), ids(attribute("Client", "Legal")));
+        assertEquals(Arrays.asList(), ids(attribute("Domain", "ACME")));
+
+        TMFilter filter = attribute("Client", "ACME");
+        filter.addAttribute("Domain", "Legal");
+        assertEquals(Arrays.asList(5L), ids(filter));
+        assertEquals("attribute:Client=ACME, attribute:Domain=Legal", filter.toString());
+    }
+
+    @Test
+    public void testSourceLength() throws SQLException {
+        TMFilter filter = new TMFilter();
+        filter.setMinLength(6);
+        filter.setMaxLength(12);
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), ids(filter));
+        // The XML of the segment can be longer than its text
+        assertFalse(filter.acceptsSource("Short"));
+        assertTrue(filter.acceptsSource("Legal domain"));
+        assertFalse(filter.acceptsSource("A longer source"));
+        // Code points, not chars
+        assertTrue(filter.acceptsSource("😀😀😀😀😀😀"));
+        assertFalse(filter.acceptsSource("😀😀😀"));
+    }
+
+    @Test
+    public void testBindingOrder() throws SQLException {
+        TMFilter filter = new TMFilter();
+        filter.setChangedAfter("2024-01-01");
+        filter.setChangedBefore("2024-12-31");
+        filter.setUser("alice");
+        filter.setMinLength(5);
+        filter.addAttribute("Client", "ACME");
+        filter.addAttribute("Deadline", "2024-04");
+        assertEquals("changedAfter=2024-01-01 00:00:00, changedBefore=2024-12-31 00:00:00, user=alice, "
+                + "minLength=5, attribute:Client=ACME, attribute:Deadline=2024-04", filter.toString());
+
+        // Parameters before and after the filter ones, as in the export query
+        String where = filter.toWhereClause();
+        assertTrue(where, where.startsWith(" where "));
+        List<Long> ids = new ArrayList<>();
+        try (Connection connection = SQLiteFileReaderTest.connect(sdltm);
+                PreparedStatement query = connection.prepareStatement(
+                        "select tu.id, ? from translation_units tu" + where + " and tu.id > ? order by tu.id")) {
+            query.setString(1, "shard");
+            int index = filter.bind(query, 2);
+            // 2 dates, the user twice, the length and 4 name/value pairs per
+            // attribute
+            assertEquals(2 + 2 + 2 + 1 + 2 * 8, index);
+            query.setLong(index, 0);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    assertEquals("shard", rs.getString(2));
+                    ids.add(rs.getLong(1));
+                }
+            }
+        }
+        assertEquals(Arrays.asList(5L), ids);
+    }
+
+    @Test
+    public void testCopy() throws SQLException {
+        TMFilter filter = attribute("Client", "ACME");
+        filter.setUser("carol");
+        TMFilter copy = new TMFilter(filter);
+        copy.addAttribute("Domain", "Legal");
+        copy.setUser(null);
+        assertEquals(Arrays.asList(5L), ids(filter));
+        assertEquals("user=carol, attribute:Client=ACME", filter.toString());
+        assertEquals(Arrays.asList(5L), ids(copy));
+        assertEquals("attribute:Client=ACME, attribute:Domain=Legal", copy.toString());
+    }
+
+    private static TMFilter attribute(String name, String value) {
+        TMFilter filter = new TMFilter();
+        filter.addAttribute(name, value);
+        return filter;
+    }
+
+    private List<Long> ids(TMFilter filter) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (Connection connection = SQLiteFileReaderTest.connect(sdltm);
+                PreparedStatement query = connection
+                        .prepareStatement("select tu.id from translation_units tu" + filter.toWhereClause()
+                                + " order by tu.id")) {
+            assertEquals(filter.toWhereClause().split("\\?", -1).length, filter.bind(query, 1));
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,168 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.healthmarketscience.jackcess.ColumnBuilder;
+import com.healthmarketscience.jackcess.DataType;
+import com.healthmarketscience.jackcess.Database;
+import com.healthmarketscience.jackcess.DatabaseBuilder;
+import com.healthmarketscience.jackcess.Table;
+import com.healthmarketscience.jackcess.TableBuilder;
+
+import net.briac.sdlppx.model.Concept;
+
+public class TermBaseStateTest {
+
+    private static final FileTime OLD = FileTime.fromMillis(1_000_000_000_000L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SDLTBConverter converter = new SDLTBConverter(SDLTBConverter.OutputType.OMEGAT,
+            SDLTBConverter.Synonym.COLUMN, false, true);
+    private final Map<Integer, String> concepts = new TreeMap<>();
+    private File sdltb;
+    private File outputDir;
+    private File glossary;
+    private File stateFile;
+
+    @Before
+    public void setUp() throws Exception {
+        sdltb = new File(folder.getRoot(), "terms.sdltb");
+        outputDir = folder.newFolder("glossary");
+        glossary = new File(outputDir, "test_glossary_English_French.txt");
+        stateFile = new File(outputDir, "test_terms.sdltb" + TermBaseState.EXT_STATE);
+        concepts.put(1, concept("contract", "contrat"));
+        concepts.put(2, concept("invoice", "facture"));
+        concepts.put(3, concept("tax", "taxe"));
+        convert();
+    }
+
+    @Test
+    public void testUnchangedTermBaseReusesTheConcepts() throws Exception {
+        TermBaseState state = TermBaseState.load(stateFile);
+        for (Map.Entry<Integer, String> entry : concepts.entrySet()) {
+            Concept concept = state.reuse(entry.getKey(), TermBaseState.hash(entry.getValue()));
+            assertNotNull(concept);
+        }
+        assertEquals("contract", state.reuse(1, TermBaseState.hash(concepts.get(1))).termGroups.get("English")
+                .terms.get(0).getWord());
+        assertEquals(0, state.getParsed());
+        assertTrue(state.isUpToDate(glossary));
+
+        String before = read(glossary);
+        Files.setLastModifiedTime(glossary.toPath(), OLD);
+        convert();
+        assertEquals(OLD, Files.getLastModifiedTime(glossary.toPath()));
+        assertEquals(before, read(glossary));
+    }
+
+    @Test
+    public void testChangedConceptIsParsedAgain() throws Exception {
+        String changed = concept("invoice", "note");
+        TermBaseState state = TermBaseState.load(stateFile);
+        assertNull(state.reuse(2, TermBaseState.hash(changed)));
+
+        concepts.put(2, changed);
+        convert();
+        assertTrue(read(glossary).contains("note"));
+        assertFalse(read(glossary).contains("facture"));
+    }
+
+    @Test
+    public void testRemovedConceptRewritesTheGlossary() throws Exception {
+        concepts.remove(3);
+        TermBaseState state = TermBaseState.load(stateFile);
+        for (Map.Entry<Integer, String> entry : concepts.entrySet()) {
+            state.reuse(entry.getKey(), TermBaseState.hash(entry.getValue()));
+        }
+        assertFalse(state.isUpToDate(glossary));
+
+        Files.setLastModifiedTime(glossary.toPath(), OLD);
+        convert();
+        assertNotEquals(OLD, Files.getLastModifiedTime(glossary.toPath()));
+        assertFalse(read(glossary).contains("taxe"));
+        assertTrue(read(glossary).contains("facture"));
+    }
+
+    @Test
+    public void testCorruptStateIsIgnored() throws Exception {
+        byte[] state = Files.readAllBytes(stateFile.toPath());
+        Files.write(stateFile.toPath(), Arrays.copyOf(state, state.length / 2));
+        assertNull(TermBaseState.load(stateFile).reuse(1, TermBaseState.hash(concepts.get(1))));
+
+        String before = read(glossary);
+        convert();
+        assertEquals(before, read(glossary));
+        // All the concepts are parsed and the state written again
+        assertArrayEquals(state, Files.readAllBytes(stateFile.toPath()));
+        assertNotNull(TermBaseState.load(stateFile).reuse(1, TermBaseState.hash(concepts.get(1))));
+    }
+
+    @Test
+    public void testMissingGlossaryIsWrittenAgain() throws Exception {
+        String before = read(glossary);
+        Files.delete(glossary.toPath());
+        convert();
+        assertEquals(before, read(glossary));
+    }
+
+    private void convert() throws Exception {
+        Files.deleteIfExists(sdltb.toPath());
+        try (Database db = DatabaseBuilder.create(Database.FileFormat.V2010, sdltb)) {
+            Table table = new TableBuilder("mtConcepts").addColumn(new ColumnBuilder("conceptid", DataType.LONG))
+                    .addColumn(new ColumnBuilder("text", DataType.MEMO)).toTable(db);
+            for (Map.Entry<Integer, String> entry : concepts.entrySet()) {
+                table.addRow(entry.getKey(), entry.getValue());
+            }
+        }
+        converter.convertSDLTB(sdltb, outputDir, "test");
+    }
+
+    private static String concept(String english, String french) {
+        return "<cG><trG><tr type=\"origination\">briac</tr><dt>2020-01-01T00:00:00</dt></trG>"
+                + "<lG><l type=\"English\"/><tG><t>" + english + "</t></tG></lG>"
+                + "<lG><l type=\"French\"/><tG><t>" + french + "</t></tG></lG></cG>";
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,135 @@
+/**************************************************************************
+ Copyright (C) 2020 Briac Pilpré
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+package net.briac.sdlppx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import net.briac.sdlppx.model.Concept;
+import net.briac.sdlppx.model.Term;
+import net.briac.sdlppx.model.TermBase;
+
+public class TermCheckerTest {
+
+    @Test
+    public void testHitsAndForbiddenTerms() throws IOException {
+        TermChecker.Report report = new TermChecker(Collections.singletonList(termbase())).check("doc.sdlxliff",
+                sdlxliff("en-US", "fr-FR",
+                        segment("1", "The database and the DATABASE", "La base de données et la base de données"),
+                        segment("2", "Login to the database", "Le login de la base de données"),
+                        segment("3", "Databases are not a database term", "")));
+        Map<String, Integer> hits = new TreeMap<>();
+        hits.put("database", 3);
+        hits.put("login", 1);
+        assertEquals(hits, report.getHits());
+        assertEquals(Collections.singletonMap("tu2/2", new TreeSet<>(Collections.singleton("login"))),
+                report.getForbidden());
+    }
+
+    @Test
+    public void testTermsWithoutSpaces() throws IOException {
+        TermChecker.Report report = new TermChecker(Collections.singletonList(termbase())).check("doc.sdlxliff",
+                sdlxliff("ja-JP", "en-US", segment("1", "このデータベースは大きい", "This database is big")));
+        assertEquals(Collections.singletonMap("データベース", 1), report.getHits());
+        assertEquals(Collections.emptyMap(), report.getForbidden());
+    }
+
+    @Test
+    public void testNoTermsForTheLanguage() throws IOException {
+        TermChecker.Report report = new TermChecker(Collections.singletonList(termbase())).check("doc.sdlxliff",
+                sdlxliff("de-DE", "fr-FR", segment("1", "Die database", "Le login")));
+        assertEquals(Collections.emptyMap(), report.getHits());
+        assertEquals(Collections.singletonMap("tu1/1", new TreeSet<>(Collections.singleton("login"))),
+                report.getForbidden());
+    }
+
+    @Test
+    public void testFindLanguage() {
+        Set<String> languages = new LinkedHashSet<>(
+                Arrays.asList("English", "French_France", "French_Canada", "pt-BR", "Japanese"));
+        assertEquals("English", TermChecker.findLanguage(languages, "en-US"));
+        assertEquals("English", TermChecker.findLanguage(languages, "en"));
+        // The full name wins over an earlier termbase language of the same
+        // language
+        assertEquals("French_Canada", TermChecker.findLanguage(languages, "fr-CA"));
+        assertEquals("French_France", TermChecker.findLanguage(languages, "fr-FR"));
+        assertEquals("French_France", TermChecker.findLanguage(languages, "fr-BE"));
+        assertEquals("French_France", TermChecker.findLanguage(languages, "fr"));
+        assertEquals("pt-BR", TermChecker.findLanguage(languages, "PT-br"));
+        assertEquals("Japanese", TermChecker.findLanguage(languages, "ja-JP"));
+        assertNull(TermChecker.findLanguage(languages, "de-DE"));
+        assertNull(TermChecker.findLanguage(languages, "pt-PT"));
+    }
+
+    private static TermBase termbase() {
+        TermBase termbase = new TermBase();
+        termbase.addLanguage("English");
+        termbase.addLanguage("French_France");
+        termbase.addLanguage("Japanese");
+        addConcept(termbase, 1, "English", "database");
+        addConcept(termbase, 1, "French_France", "base de données");
+        addConcept(termbase, 1, "Japanese", "データベース");
+        addConcept(termbase, 2, "English", "login");
+        addConcept(termbase, 2, "French_France", "connexion");
+        Term login = new Term("login");
+        login.addTermInfo("NonTerm");
+        termbase.concepts.get(2).addTerm(login, "French_France");
+        return termbase;
+    }
+
+    private static void addConcept(TermBase termbase, int key, String language, String word) {
+        if (!termbase.concepts.containsKey(key)) {
+            termbase.addConcept(key);
+        }
+        Concept concept = termbase.concepts.get(key);
+        concept.addTermgroup(language);
+        concept.addTerm(new Term(word), language);
+    }
+
+    private static ByteArrayInputStream sdlxliff(String sourceLanguage, String targetLanguage, String... segments) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<xliff xmlns:sdl=\"http://sdl.com/FileTypes/SdlXliff/1.0\" version=\"1.2\" "
+                + "xmlns=\"urn:oasis:names:tc:xliff:document:1.2\"><file original=\"doc.docx\" source-language=\""
+                + sourceLanguage + "\" target-language=\"" + targetLanguage + "\"><header/><body>\n");
+        for (String segment : segments) {
+            xml.append(segment);
+        }
+        xml.append("</body></file></xliff>");
+        return new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String segment(String id, String source, String target) {
+        return "<trans-unit id=\"tu" + id + "\"><seg-source><mrk mtype=\"seg\" mid=\"" + id + "\">" + source
+                + "</mrk></seg-source>" + (target.isEmpty() ? ""
+                        : "<target><mrk mtype=\"seg\" mid=\"" + id + "\">" + target + "</mrk></target>")
+                + "</trans-unit>\n";
+    }
+
+}